@@ -0,0 +1,82 @@
+package kianxali.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import kianxali.decoder.Decoder;
+import kianxali.decoder.Instruction;
+import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
+import kianxali.decoder.arch.x86.X86CPU.Model;
+import kianxali.decoder.arch.x86.X86Context;
+import kianxali.loader.ByteSequence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of the x86 decoder, one instruction per operation.
+ * @author fwi
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+    private static final int STREAM_SIZE = 64 * 1024;
+
+    @Param({"REAL", "PROTECTED", "LONG"})
+    public ExecutionMode mode;
+
+    private X86Context ctx;
+    private Decoder decoder;
+    private ByteSequence seq;
+    private Instruction reuse;
+
+    @Setup
+    public void setup() {
+        ctx = new X86Context(Model.ANY, mode);
+        decoder = ctx.createInstructionDecoder();
+        seq = ByteSequence.fromBytes(new SyntheticCode(mode).stream(STREAM_SIZE));
+    }
+
+    // start again before the end so that every instruction can be decoded completely
+    private void rewind() {
+        if(seq.getRemaining() < 16) {
+            seq.seek(0);
+        }
+        ctx.setInstructionPointer(seq.getPosition());
+    }
+
+    @Benchmark
+    public Instruction decodeOpcode() {
+        rewind();
+        return decoder.decodeOpcode(ctx, seq);
+    }
+
+    @Benchmark
+    public Instruction decodeOpcodeReused() {
+        rewind();
+        Instruction res = decoder.decodeOpcode(ctx, seq, reuse);
+        if(res != null) {
+            reuse = res;
+        }
+        return res;
+    }
+
+    @Benchmark
+    public int decodeLength() {
+        rewind();
+        return decoder.decodeLength(ctx, seq);
+    }
+}
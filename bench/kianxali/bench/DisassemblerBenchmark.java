@@ -0,0 +1,105 @@
+package kianxali.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import kianxali.disassembler.Disassembler;
+import kianxali.disassembler.DisassemblyData;
+import kianxali.disassembler.DisassemblyListener;
+import kianxali.loader.ImageFile;
+import kianxali.loader.elf.ELFFile;
+import kianxali.loader.pe.PEFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a complete analysis of generated image files, including loading
+ * the file and filling the disassembly data.
+ * @author fwi
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DisassemblerBenchmark {
+    @Param({"PE", "ELF"})
+    public String format;
+
+    @Param({"1024"})
+    public int functions;
+
+    @Param({"0"})
+    public int instructionCacheSize;
+
+    @Param({"0", "3"})
+    public int workerThreads;
+
+    @Param({"false", "true"})
+    public boolean linearSweep;
+
+    private Path image;
+
+    @Setup
+    public void setup() throws IOException {
+        image = Files.createTempFile("kianxali-bench", "." + format.toLowerCase());
+        switch(format) {
+        case "PE":  SyntheticImages.writePE(image, functions); break;
+        case "ELF": SyntheticImages.writeELF(image, functions); break;
+        default:    throw new IllegalArgumentException("unknown image format: " + format);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(image);
+    }
+
+    @Benchmark
+    public int analyze() throws IOException, InterruptedException {
+        ImageFile imageFile;
+        if(format.equals("PE")) {
+            imageFile = new PEFile(image);
+        } else {
+            imageFile = new ELFFile(image);
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        DisassemblyData data = new DisassemblyData(instructionCacheSize);
+        Disassembler disassembler = new Disassembler(imageFile, data, workerThreads);
+        disassembler.setLinearSweep(linearSweep);
+        disassembler.addListener(new DisassemblyListener() {
+            @Override
+            public void onAnalyzeStart() {
+            }
+
+            @Override
+            public void onAnalyzeError(long memAddr, String reason) {
+            }
+
+            @Override
+            public void onAnalyzeStop() {
+                done.countDown();
+            }
+        });
+        disassembler.startAnalyzer();
+        done.await();
+        return data.getEntryCount();
+    }
+}
@@ -0,0 +1,79 @@
+package kianxali.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import kianxali.decoder.Decoder;
+import kianxali.decoder.Instruction;
+import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
+import kianxali.decoder.arch.x86.X86CPU.Model;
+import kianxali.decoder.arch.x86.X86Context;
+import kianxali.loader.ByteSequence;
+import kianxali.util.OutputFormatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of rendering decoded instructions, one instruction per operation.
+ * The instructions are decoded once during the setup.
+ * @author fwi
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatterBenchmark {
+    private static final int STREAM_SIZE = 16 * 1024;
+
+    @Param({"REAL", "PROTECTED", "LONG"})
+    public ExecutionMode mode;
+
+    @Param({"false", "true"})
+    public boolean rawBytes;
+
+    private OutputFormatter format;
+    private Instruction[] instructions;
+    private int index;
+
+    @Setup
+    public void setup() {
+        X86Context ctx = new X86Context(Model.ANY, mode);
+        Decoder decoder = ctx.createInstructionDecoder();
+        ByteSequence seq = ByteSequence.fromBytes(new SyntheticCode(mode).stream(STREAM_SIZE));
+        List<Instruction> res = new ArrayList<>();
+        while(seq.getRemaining() >= 16) {
+            ctx.setInstructionPointer(seq.getPosition());
+            Instruction inst = decoder.decodeOpcode(ctx, seq);
+            if(inst == null) {
+                throw new IllegalStateException("undecodable synthetic code at " + seq.getPosition());
+            }
+            res.add(inst);
+        }
+        instructions = res.toArray(new Instruction[res.size()]);
+
+        format = new OutputFormatter();
+        format.setIncludeRawBytes(rawBytes);
+    }
+
+    @Benchmark
+    public String asString() {
+        if(index == instructions.length) {
+            index = 0;
+        }
+        return instructions[index++].asString(format);
+    }
+}
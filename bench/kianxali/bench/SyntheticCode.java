@@ -0,0 +1,227 @@
+package kianxali.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
+
+/**
+ * Generates deterministic x86 machine code for the benchmarks. The instructions
+ * are taken from a small set of common encodings so that the decoder sees a
+ * realistic mix of opcodes, ModRM forms, prefixes and immediates.
+ * @author fwi
+ *
+ */
+public class SyntheticCode {
+    private static final long SEED = 0x4B69616E78616CL;
+    private final ExecutionMode mode;
+    private final Random random;
+    private byte[] code;
+    private int size;
+
+    /**
+     * Creates a generator for the given execution mode
+     * @param mode the mode that determines operand sizes and the use of REX prefixes
+     */
+    public SyntheticCode(ExecutionMode mode) {
+        this.mode = mode;
+        this.random = new Random(SEED);
+        this.code = new byte[4096];
+    }
+
+    /**
+     * Generates a linear stream of instructions that contains no undecodable bytes.
+     * Real mode streams contain no calls because the decoder reads their
+     * displacement with 32 bits.
+     * @param minSize the minimum number of bytes to generate
+     * @return the generated code
+     */
+    public byte[] stream(int minSize) {
+        size = 0;
+        while(size < minSize) {
+            switch(random.nextInt(8)) {
+            case 0:     emitBranch(random.nextInt(256) - 128); break;
+            case 1:
+                if(mode != ExecutionMode.REAL) {
+                    emitCall(random.nextInt(1 << 15));
+                }
+                break;
+            default:    emitLinear(); break;
+            }
+        }
+        return Arrays.copyOf(code, size);
+    }
+
+    /**
+     * Generates functions of a fixed size that call each other, starting with the entry function
+     * at offset 0. Every function is reachable from the entry so that a recursive traversal
+     * has to visit all of them.
+     * @param count the number of functions to generate
+     * @param functionSize the size of each function in bytes
+     * @return the generated code
+     */
+    public byte[] functions(int count, int functionSize) {
+        size = 0;
+        for(int i = 0; i < count; i++) {
+            int start = i * functionSize;
+            // leave enough room for the epilogue and the largest instruction
+            int bodyEnd = start + functionSize - 24;
+
+            emitPrologue();
+            if(i + 1 < count) {
+                emitCall((i + 1) * functionSize - size);
+            }
+            while(size < bodyEnd) {
+                if(random.nextInt(10) == 0) {
+                    emitCall(random.nextInt(count) * functionSize - size);
+                } else if(random.nextInt(6) == 0) {
+                    // conditional jump over the next instruction
+                    int branch = size;
+                    emitBranch(0);
+                    emitLinear();
+                    code[branch + 1] = (byte) (size - branch - 2);
+                } else {
+                    emitLinear();
+                }
+            }
+            emitEpilogue();
+            while(size < start + functionSize) {
+                emit(0xCC);
+            }
+        }
+        return Arrays.copyOf(code, size);
+    }
+
+    private void emitPrologue() {
+        emit(0x55);
+        emitWide();
+        emit(0x89, 0xE5);
+    }
+
+    private void emitEpilogue() {
+        emit(0x5D);
+        emit(0xC3);
+    }
+
+    private void emitBranch(int rel) {
+        emit(0x70 + random.nextInt(16), rel & 0xFF);
+    }
+
+    // rel is relative to the start of the call instruction
+    private void emitCall(int rel) {
+        emit(0xE8);
+        if(mode == ExecutionMode.REAL) {
+            emitImmediate(rel - 3, 2);
+        } else {
+            emitImmediate(rel - 5, 4);
+        }
+    }
+
+    private void emitLinear() {
+        int reg = random.nextInt(8);
+        int rm = random.nextInt(8);
+        switch(random.nextInt(12)) {
+        case 0:
+            emit(0x90);
+            break;
+        case 1:
+            emit(0x50 + reg);
+            break;
+        case 2:
+            emit(0x58 + reg);
+            break;
+        case 3:
+            // mov/add/sub/xor/cmp r/m, reg between registers
+            emitWide();
+            emit(pick(0x89, 0x01, 0x29, 0x31, 0x39), 0xC0 | (reg << 3) | rm);
+            break;
+        case 4:
+            // mov reg, [base + disp8]
+            emitWide();
+            emitMemory(0x8B, reg);
+            break;
+        case 5:
+            // mov [base + disp8], reg
+            emitWide();
+            emitMemory(0x89, reg);
+            break;
+        case 6:
+            // arithmetic with an 8 bit immediate
+            emitWide();
+            emit(0x83, 0xC0 | (reg << 3) | rm, random.nextInt(256));
+            break;
+        case 7:
+            // mov reg, imm
+            emit(0xB8 + reg);
+            emitImmediate(random.nextInt(), mode == ExecutionMode.REAL ? 2 : 4);
+            break;
+        case 8:
+            // movzx reg, r/m8
+            emit(0x0F, 0xB6, 0xC0 | (reg << 3) | rm);
+            break;
+        case 9:
+            // test reg, reg
+            emitWide();
+            emit(0x85, 0xC0 | (reg << 3) | rm);
+            break;
+        case 10:
+            // lea with a memory operand
+            emitWide();
+            emitMemory(0x8D, reg);
+            break;
+        case 11:
+            // operand size override
+            emit(0x66, 0x89, 0xC0 | (reg << 3) | rm);
+            break;
+        default:
+            throw new AssertionError();
+        }
+    }
+
+    private void emitMemory(int opcode, int reg) {
+        if(mode == ExecutionMode.REAL) {
+            // [bp + si + disp8] .. [bx + disp8]
+            emit(opcode, 0x40 | (reg << 3) | random.nextInt(8), random.nextInt(256));
+        } else if(random.nextBoolean()) {
+            // [base + disp8] without SIB
+            int base = random.nextInt(7);
+            if(base == 4) {
+                base = 7;
+            }
+            emit(opcode, 0x40 | (reg << 3) | base, random.nextInt(256));
+        } else {
+            // [base + index * scale + disp8]
+            int index = random.nextInt(8);
+            if(index == 4) {
+                index = 0;
+            }
+            emit(opcode, 0x44 | (reg << 3), (random.nextInt(4) << 6) | (index << 3) | random.nextInt(8), random.nextInt(256));
+        }
+    }
+
+    // REX.W for 64 bit operands in long mode
+    private void emitWide() {
+        if(mode == ExecutionMode.LONG && random.nextBoolean()) {
+            emit(0x48);
+        }
+    }
+
+    private void emitImmediate(int value, int bytes) {
+        for(int i = 0; i < bytes; i++) {
+            emit((value >> (8 * i)) & 0xFF);
+        }
+    }
+
+    private int pick(int... values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private void emit(int... bytes) {
+        if(size + bytes.length > code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        for(int b : bytes) {
+            code[size++] = (byte) b;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package kianxali.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
+
+/**
+ * Writes minimal PE and ELF image files that contain a single code section
+ * filled with {@link SyntheticCode#functions(int, int)}. The headers only contain
+ * the fields that the loaders actually read.
+ * @author fwi
+ *
+ */
+public final class SyntheticImages {
+    public static final int FUNCTION_SIZE = 256;
+    private static final long PE_IMAGE_BASE = 0x400000;
+    private static final int PE_CODE_RVA = 0x1000;
+    private static final int PE_CODE_OFFSET = 0x200;
+    private static final long ELF_CODE_ADDRESS = 0x400200;
+    private static final int ELF_CODE_OFFSET = 0x200;
+    private static final int ELF_STRINGS_OFFSET = 0x100;
+
+    private SyntheticImages() {
+    }
+
+    /**
+     * Writes a 32 bit PE file
+     * @param path the file to create
+     * @param functionCount the number of functions in the code section
+     * @throws IOException if the file couldn't be written
+     */
+    public static void writePE(Path path, int functionCount) throws IOException {
+        byte[] code = new SyntheticCode(ExecutionMode.PROTECTED).functions(functionCount, FUNCTION_SIZE);
+        ByteBuffer buf = ByteBuffer.allocate(PE_CODE_OFFSET + code.length).order(ByteOrder.LITTLE_ENDIAN);
+
+        // DOS stub with pointer to PE header
+        buf.putShort(0, (short) 0x5A4D);
+        buf.putInt(0x3C, 0x40);
+
+        // PE header
+        buf.position(0x40);
+        buf.putInt(0x4550);
+        buf.putShort((short) 0x14C);
+        buf.putShort((short) 1);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putShort((short) 224);
+        buf.putShort((short) 0x102);
+
+        // optional header
+        buf.putShort((short) 0x10B);
+        buf.putShort((short) 0);
+        buf.putInt(code.length);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(PE_CODE_RVA);
+        buf.putInt(PE_CODE_RVA);
+        buf.putInt(0);
+        buf.putInt((int) PE_IMAGE_BASE);
+        buf.putInt(0x1000);
+        buf.putInt(0x200);
+        buf.position(buf.position() + 16);
+        buf.putInt(PE_CODE_RVA + code.length);
+        buf.putInt(PE_CODE_OFFSET);
+        buf.putInt(0);
+        buf.putShort((short) 3);
+        buf.putShort((short) 0);
+        buf.position(buf.position() + 20);
+        buf.putInt(16);
+        // all data directories are empty, i.e. no imports
+        buf.position(buf.position() + 16 * 8);
+
+        // section header
+        buf.put(".text\0\0\0".getBytes("ASCII"));
+        buf.putInt(code.length);
+        buf.putInt(PE_CODE_RVA);
+        buf.putInt(code.length);
+        buf.putInt(PE_CODE_OFFSET);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putShort((short) 0);
+        buf.putShort((short) 0);
+        buf.putInt(0x60000020);
+
+        buf.position(PE_CODE_OFFSET);
+        buf.put(code);
+        Files.write(path, buf.array());
+    }
+
+    /**
+     * Writes a 64 bit ELF executable
+     * @param path the file to create
+     * @param functionCount the number of functions in the code section
+     * @throws IOException if the file couldn't be written
+     */
+    public static void writeELF(Path path, int functionCount) throws IOException {
+        byte[] code = new SyntheticCode(ExecutionMode.LONG).functions(functionCount, FUNCTION_SIZE);
+        byte[] strings = "\0.text\0.shstrtab\0".getBytes("ASCII");
+        int sectionOffset = (ELF_CODE_OFFSET + code.length + 7) & ~7;
+        ByteBuffer buf = ByteBuffer.allocate(sectionOffset + 3 * 64).order(ByteOrder.LITTLE_ENDIAN);
+
+        // ELF header
+        buf.put(new byte[] {0x7F, 'E', 'L', 'F', 2, 1, 1});
+        buf.position(16);
+        buf.putShort((short) 2);
+        buf.putShort((short) 62);
+        buf.putInt(1);
+        buf.putLong(ELF_CODE_ADDRESS);
+        buf.putLong(64);
+        buf.putLong(sectionOffset);
+        buf.putInt(0);
+        buf.putShort((short) 64);
+        buf.putShort((short) 56);
+        buf.putShort((short) 1);
+        buf.putShort((short) 64);
+        buf.putShort((short) 3);
+        buf.putShort((short) 2);
+
+        // program header that loads the code
+        buf.putInt(1);
+        buf.putInt(5);
+        buf.putLong(ELF_CODE_OFFSET);
+        buf.putLong(ELF_CODE_ADDRESS);
+        buf.putLong(ELF_CODE_ADDRESS);
+        buf.putLong(code.length);
+        buf.putLong(code.length);
+        buf.putLong(0x1000);
+
+        buf.position(ELF_STRINGS_OFFSET);
+        buf.put(strings);
+        buf.position(ELF_CODE_OFFSET);
+        buf.put(code);
+
+        // section headers: null, .text and .shstrtab
+        buf.position(sectionOffset + 64);
+        putELFSection(buf, 1, 1, 6, ELF_CODE_ADDRESS, ELF_CODE_OFFSET, code.length);
+        putELFSection(buf, 7, 3, 0, 0, ELF_STRINGS_OFFSET, strings.length);
+
+        Files.write(path, buf.array());
+    }
+
+    private static void putELFSection(ByteBuffer buf, int name, int type, long flags, long address, long offset, long size) {
+        buf.putInt(name);
+        buf.putInt(type);
+        buf.putLong(flags);
+        buf.putLong(address);
+        buf.putLong(offset);
+        buf.putLong(size);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putLong(16);
+        buf.putLong(0);
+    }
+}
@@ -1,7 +1,7 @@
 # Iterates all instructions and displays write-access to code, i.e. finds self-modifying code
 # Also tries to apply the changes statically to aid further analyzation
 
-# Changed addresses will be remembered here in order to reanalyze them later
+# Changed addresses will be remembered here in order to count them, patching reanalyzes them
 changes = []
 
 $api.traverseCode do |inst|
@@ -29,7 +29,4 @@ $api.traverseCode do |inst|
   end
 end
 
-# Now reanalyze the changed addresses
-changes.each {|dst| $api.reanalyze(dst)}
-
 puts "#{changes.size} self-modifying instructions patched"
@@ -1,36 +1,34 @@
 package kianxali.decoder;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * This class describes the prefix tree that is used to parse
- * opcodes.
+ * opcodes. Each node is dense, i.e. it stores its sub trees and
+ * leaves in arrays that are directly indexed by the byte value so
+ * that a lookup doesn't need any hashing or boxing.
  * @author fwi
  *
  * @param <LeafType> the type of data in the leaves, architecture dependent
  */
 public class DecodeTree<LeafType> {
-    private class Node {
-        public Map<Short, DecodeTree<LeafType>> subTrees;
-        public Map<Short, List<LeafType>> leaves;
+    private static final int NODE_SIZE = 256;
 
-        public Node() {
-            subTrees = new HashMap<>();
-            leaves = new HashMap<>();
-        }
-    }
-    private final Node node;
+    // both arrays are indexed by the byte value and allocated on first use
+    private DecodeTree<LeafType>[] subTrees;
+    private List<LeafType>[] leaves;
+    private int subTreeCount;
 
     /**
      * Creates a new and empty prefix tree
      */
     public DecodeTree() {
-        node = new Node();
+        subTreeCount = 0;
     }
 
     /**
@@ -47,7 +45,7 @@ public class DecodeTree<LeafType> {
      * @return true iff there are sub trees
      */
     public boolean hasSubTrees() {
-        return node.subTrees.size() != 0;
+        return subTreeCount != 0;
     }
 
     /**
@@ -56,7 +54,10 @@ public class DecodeTree<LeafType> {
      * @return the sub tree for this byte
      */
     public DecodeTree<LeafType> getSubTree(short s) {
-        return node.subTrees.get(s);
+        if(subTrees == null) {
+            return null;
+        }
+        return subTrees[s & 0xFF];
     }
 
     /**
@@ -64,7 +65,16 @@ public class DecodeTree<LeafType> {
      * @return a list of all sub trees inside this node
      */
     public Collection<DecodeTree<LeafType>> getSubTrees() {
-        return node.subTrees.values();
+        if(subTrees == null) {
+            return Collections.emptyList();
+        }
+        List<DecodeTree<LeafType>> res = new ArrayList<>(subTreeCount);
+        for(DecodeTree<LeafType> subTree : subTrees) {
+            if(subTree != null) {
+                res.add(subTree);
+            }
+        }
+        return res;
     }
 
     /**
@@ -73,7 +83,23 @@ public class DecodeTree<LeafType> {
      * @return the list of leaves matching this byte
      */
     public List<LeafType> getLeaves(short s) {
-        return node.leaves.get(s);
+        if(leaves == null) {
+            return null;
+        }
+        return leaves[s & 0xFF];
+    }
+
+    /**
+     * Replaces the list of leaves for a given byte, e.g. with a list
+     * that also indexes the leaves for faster lookups
+     * @param s the byte to replace the leaves for, must already have leaves
+     * @param leafList the new list of leaves
+     */
+    public void setLeaves(short s, List<LeafType> leafList) {
+        if(leaves == null || leaves[s & 0xFF] == null) {
+            throw new IllegalArgumentException("no leaves for byte " + s);
+        }
+        leaves[s & 0xFF] = leafList;
     }
 
     /**
@@ -81,27 +107,59 @@ public class DecodeTree<LeafType> {
      * @return the set of bytes
      */
     public Set<Short> getLeaveCodes() {
-        return node.leaves.keySet();
+        Set<Short> res = new TreeSet<>();
+        if(leaves != null) {
+            for(short s = 0; s < NODE_SIZE; s++) {
+                if(leaves[s] != null) {
+                    res.add(s);
+                }
+            }
+        }
+        return res;
     }
 
+    /**
+     * Returns a set of bytes that this tree has sub trees for
+     * @return the set of bytes
+     */
+    public Set<Short> getSubTreeCodes() {
+        Set<Short> res = new TreeSet<>();
+        if(subTrees != null) {
+            for(short s = 0; s < NODE_SIZE; s++) {
+                if(subTrees[s] != null) {
+                    res.add(s);
+                }
+            }
+        }
+        return res;
+    }
+
+    @SuppressWarnings("unchecked")
     private void addEntry(short[] sequence, int index, LeafType leaf) {
-        short s = sequence[index];
+        int s = sequence[index] & 0xFF;
         if(index < sequence.length - 1) {
             // non-leaf child
-            DecodeTree<LeafType> subTree = node.subTrees.get(s);
+            if(subTrees == null) {
+                subTrees = new DecodeTree[NODE_SIZE];
+            }
+            DecodeTree<LeafType> subTree = subTrees[s];
             if(subTree == null) {
                 subTree = new DecodeTree<LeafType>();
-                node.subTrees.put(s, subTree);
+                subTrees[s] = subTree;
+                subTreeCount++;
             }
             subTree.addEntry(sequence, index + 1, leaf);
         } else {
             // leaf
-            List<LeafType> leaves = node.leaves.get(s);
             if(leaves == null) {
-                leaves = new LinkedList<>();
-                node.leaves.put(s, leaves);
+                leaves = new List[NODE_SIZE];
+            }
+            List<LeafType> leafList = leaves[s];
+            if(leafList == null) {
+                leafList = new ArrayList<>(2);
+                leaves[s] = leafList;
             }
-            leaves.add(leaf);
+            leafList.add(leaf);
         }
     }
 }
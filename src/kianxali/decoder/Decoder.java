@@ -13,7 +13,46 @@ public interface Decoder {
      * Decode the next instruction from a byte sequence
      * @param ctx the current context
      * @param seq the byte sequence to read the instruction from
-     * @return
+     * @return the decoded instruction or null if nothing could be decoded
      */
     Instruction decodeOpcode(Context ctx, ByteSequence seq);
+
+    /**
+     * Decode the next instruction from a byte sequence into a reusable instruction.
+     * This is meant for passes that decode a lot of instructions without keeping
+     * them since it avoids creating a new instruction object for each call.
+     * The returned instruction will be overwritten by the next call that passes it
+     * as reuse parameter, i.e. it must not be stored.
+     * @param ctx the current context
+     * @param seq the byte sequence to read the instruction from
+     * @param reuse an instruction previously returned by this decoder that may be overwritten or null
+     * @return the decoded instruction (possibly the same object as reuse) or null if nothing could be decoded
+     */
+    Instruction decodeOpcode(Context ctx, ByteSequence seq, Instruction reuse);
+
+    /**
+     * Determine the length of the next instruction without decoding its operands.
+     * This is meant for scanning passes that only need to know where instructions
+     * start and end. It agrees with {@link Decoder#decodeOpcode(Context, ByteSequence)}
+     * on whether an instruction can be decoded and how long it is.
+     * @param ctx the current context
+     * @param seq the byte sequence to read the instruction from
+     * @return the length of the instruction in bytes or -1 if nothing could be decoded.
+     *         The sequence will be positioned after the instruction if it was decoded,
+     *         otherwise the position is unchanged.
+     */
+    int decodeLength(Context ctx, ByteSequence seq);
+
+    /**
+     * Decode all instructions in a memory range linearly, i.e. each instruction
+     * is assumed to start directly after the previous one. Bytes that can't be
+     * decoded are skipped one by one. The result is stored in primitive arrays
+     * so that passes over large sections don't need an object per instruction.
+     * @param ctx the current context, its instruction pointer will be modified
+     * @param seq the byte sequence positioned at the file offset of the start address
+     * @param start the memory address of the first instruction
+     * @param end the memory address where decoding stops (exclusive)
+     * @return a buffer containing the decoded instructions
+     */
+    InstructionBuffer decodeRange(Context ctx, ByteSequence seq, long start, long end);
 }
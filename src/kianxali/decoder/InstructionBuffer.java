@@ -0,0 +1,194 @@
+package kianxali.decoder;
+
+import java.util.Arrays;
+
+/**
+ * Stores a linear sequence of decoded instructions in primitive arrays instead
+ * of instruction objects. It only contains a summary of each instruction
+ * (address, length, mnemonic, control flow and operand kinds), which is enough
+ * for statistics, signature matching and sweeping passes over large sections.
+ * Such passes can then iterate the arrays without creating millions of objects.
+ * Bytes that couldn't be decoded are stored as entries of length 1 with
+ * the flow kind {@link InstructionBuffer#FLOW_INVALID}.
+ * @author fwi
+ *
+ */
+public final class InstructionBuffer {
+    /** the instruction continues with the next one */
+    public static final byte FLOW_NORMAL = 0;
+    /** the instruction is a conditional branch */
+    public static final byte FLOW_BRANCH = 1;
+    /** the instruction is an unconditional jump */
+    public static final byte FLOW_JUMP = 2;
+    /** the instruction is a function call */
+    public static final byte FLOW_CALL = 3;
+    /** the instruction stops the trace without a known target, e.g. a return */
+    public static final byte FLOW_STOP = 4;
+    /** the byte at this location couldn't be decoded */
+    public static final byte FLOW_INVALID = 5;
+
+    /** mnemonic id of entries without a mnemonic */
+    public static final int NO_MNEMONIC = -1;
+    /** branch target of entries without a known branch target */
+    public static final long NO_TARGET = -1;
+
+    /** mask to extract the number of operands from the operand summary */
+    public static final int OPERANDS_COUNT_MASK = 0x0F;
+    /** set in the operand summary if a register operand is present */
+    public static final int OPERANDS_REGISTER = 0x10;
+    /** set in the operand summary if a memory operand is present */
+    public static final int OPERANDS_MEMORY = 0x20;
+    /** set in the operand summary if an immediate operand is present */
+    public static final int OPERANDS_IMMEDIATE = 0x40;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final String[] mnemonicNames;
+    private long[] addresses;
+    private short[] lengths;
+    private int[] mnemonics;
+    private byte[] flows;
+    private long[] targets;
+    private byte[] operands;
+    private int count;
+
+    /**
+     * Creates an empty buffer
+     * @param mnemonicNames the names of the mnemonics, indexed by the mnemonic ids used by the decoder
+     */
+    public InstructionBuffer(String[] mnemonicNames) {
+        this(mnemonicNames, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates an empty buffer with a given initial capacity
+     * @param mnemonicNames the names of the mnemonics, indexed by the mnemonic ids used by the decoder
+     * @param capacity the number of instructions that can be stored before the arrays grow
+     */
+    public InstructionBuffer(String[] mnemonicNames, int capacity) {
+        this.mnemonicNames = mnemonicNames;
+        capacity = Math.max(capacity, 16);
+        this.addresses = new long[capacity];
+        this.lengths = new short[capacity];
+        this.mnemonics = new int[capacity];
+        this.flows = new byte[capacity];
+        this.targets = new long[capacity];
+        this.operands = new byte[capacity];
+    }
+
+    /**
+     * Appends an instruction to the buffer
+     * @param address the memory address of the instruction
+     * @param length the length of the instruction in bytes
+     * @param mnemonic the id of the mnemonic or {@link InstructionBuffer#NO_MNEMONIC}
+     * @param flow the flow kind, one of the FLOW constants
+     * @param target the branch target or {@link InstructionBuffer#NO_TARGET}
+     * @param operandSummary the operand count combined with the OPERANDS flags
+     */
+    public void add(long address, int length, int mnemonic, byte flow, long target, int operandSummary) {
+        if(count == addresses.length) {
+            grow();
+        }
+        addresses[count] = address;
+        lengths[count] = (short) length;
+        mnemonics[count] = mnemonic;
+        flows[count] = flow;
+        targets[count] = target;
+        operands[count] = (byte) operandSummary;
+        count++;
+    }
+
+    private void grow() {
+        int capacity = count * 2;
+        addresses = Arrays.copyOf(addresses, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        mnemonics = Arrays.copyOf(mnemonics, capacity);
+        flows = Arrays.copyOf(flows, capacity);
+        targets = Arrays.copyOf(targets, capacity);
+        operands = Arrays.copyOf(operands, capacity);
+    }
+
+    /**
+     * Removes all entries while keeping the allocated arrays
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Returns the number of stored instructions
+     * @return the number of stored instructions
+     */
+    public int size() {
+        return count;
+    }
+
+    public long getAddress(int index) {
+        checkIndex(index);
+        return addresses[index];
+    }
+
+    public int getLength(int index) {
+        checkIndex(index);
+        return lengths[index];
+    }
+
+    public int getMnemonicId(int index) {
+        checkIndex(index);
+        return mnemonics[index];
+    }
+
+    /**
+     * Returns the name of the mnemonic of an entry
+     * @param index the index of the entry
+     * @return the name of the mnemonic or null if the entry has no mnemonic
+     */
+    public String getMnemonic(int index) {
+        return getMnemonicName(getMnemonicId(index));
+    }
+
+    /**
+     * Converts a mnemonic id into its name
+     * @param mnemonic the mnemonic id
+     * @return the name of the mnemonic or null for {@link InstructionBuffer#NO_MNEMONIC}
+     */
+    public String getMnemonicName(int mnemonic) {
+        if(mnemonic == NO_MNEMONIC) {
+            return null;
+        }
+        return mnemonicNames[mnemonic];
+    }
+
+    /**
+     * Returns the number of different mnemonic ids, e.g. to size histogram arrays
+     * @return the number of mnemonic ids
+     */
+    public int getMnemonicCount() {
+        return mnemonicNames.length;
+    }
+
+    public byte getFlow(int index) {
+        checkIndex(index);
+        return flows[index];
+    }
+
+    public long getBranchTarget(int index) {
+        checkIndex(index);
+        return targets[index];
+    }
+
+    public int getOperandSummary(int index) {
+        checkIndex(index);
+        return operands[index];
+    }
+
+    public int getOperandCount(int index) {
+        return getOperandSummary(index) & OPERANDS_COUNT_MASK;
+    }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("invalid instruction index: " + index);
+        }
+    }
+}
@@ -12,15 +12,29 @@ import kianxali.loader.ByteSequence;
  *
  */
 class ModRM {
-    private final short codedMod;
-    private final short codedReg;
-    private final short codedMem;
-    private final X86Context ctx;
-    private final ByteSequence seq;
+    private short codedMod;
+    private short codedReg;
+    private short codedMem;
+    private X86Context ctx;
+    private ByteSequence seq;
+
+    public ModRM() {
+    }
 
     public ModRM(ByteSequence seq, X86Context ctx) {
-        this.seq = seq;
-        this.ctx = ctx;
+        read(seq, ctx);
+    }
+
+    /**
+     * Reads the next ModR/M byte into this instance, discarding the
+     * previous state. This allows to reuse an instance for each instruction.
+     * @param sequence the sequence to read the byte from
+     * @param context the context that contains the current prefixes
+     * @return this instance
+     */
+    public ModRM read(ByteSequence sequence, X86Context context) {
+        this.seq = sequence;
+        this.ctx = context;
         short code = seq.readUByte();
 
         codedMod = (short) (code >> 6);
@@ -36,6 +50,15 @@ class ModRM {
         } else {
             codedMem = (short) (code & 0x07);
         }
+        return this;
+    }
+
+    /**
+     * Drops the references to the sequence and context of the last read
+     */
+    public void clear() {
+        this.seq = null;
+        this.ctx = null;
     }
 
     public boolean isRMMem() {
@@ -46,11 +69,23 @@ class ModRM {
         return codedMod == 3;
     }
 
+    /**
+     * Returns the register encoded in the reg field
+     * @param op the operand description
+     * @return the register operand or null if the register number is invalid for the operand
+     */
     public Operand getReg(OperandDesc op) {
-        X86Register reg = X86CPU.getOperandRegister(op, ctx, codedReg);
-        return new RegisterOp(op.usageType, reg);
+        return getRegister(op, codedReg);
     }
 
+    /**
+     * Returns the operand encoded in the r/m field, reading the SIB byte and
+     * displacement if needed
+     * @param op the operand description
+     * @param allowRegister whether the field may encode a register
+     * @param mustBeRegister whether the field must encode a register
+     * @return the operand or null if the encoding is invalid for the operand
+     */
     public Operand getMem(OperandDesc op, boolean allowRegister, boolean mustBeRegister) {
         AddressSize addrSize = X86CPU.getAddressSize(ctx);
         switch(addrSize) {
@@ -67,7 +102,7 @@ class ModRM {
             if(!allowRegister) {
                 return null;
             }
-            return new RegisterOp(op.usageType, X86CPU.getOperandRegister(op, ctx, codedMem));
+            return getRegister(op, codedMem);
         } else if(mustBeRegister) {
             return null;
         }
@@ -89,13 +124,13 @@ class ModRM {
         case 0: {
             if(codedMem != 6) {
                 PointerOp res = new PointerOp(ctx, baseReg, 1, indexReg);
-                res.setOpType(op.operType);
+                res.setOpType(ctx, op.operType);
                 res.setUsage(op.usageType);
                 return res;
             } else {
                 long disp = seq.readSWord();
                 PointerOp res = new PointerOp(ctx, disp);
-                res.setOpType(op.operType);
+                res.setOpType(ctx, op.operType);
                 res.setUsage(op.usageType);
                 return res;
             }
@@ -103,14 +138,14 @@ class ModRM {
         case 1: {
             long disp = seq.readSByte();
             PointerOp res = new PointerOp(ctx, baseReg, 1, indexReg, disp);
-            res.setOpType(op.operType);
+            res.setOpType(ctx, op.operType);
             res.setUsage(op.usageType);
             return res;
         }
         case 2: {
             long disp = seq.readSWord();
             PointerOp res = new PointerOp(ctx, baseReg, 1, indexReg, disp);
-            res.setOpType(op.operType);
+            res.setOpType(ctx, op.operType);
             res.setUsage(op.usageType);
             return res;
         }
@@ -124,7 +159,7 @@ class ModRM {
             if(!allowRegister) {
                 return null;
             }
-            return new RegisterOp(op.usageType, X86CPU.getOperandRegister(op, ctx, codedMem));
+            return getRegister(op, codedMem);
         } else if(mustBeRegister) {
             return null;
         }
@@ -132,8 +167,7 @@ class ModRM {
         switch(codedMod) {
         case 0:
             if(codedMem == 4 || codedMem == 12) {
-                SIB sib = new SIB(seq, op, codedMod, ctx);
-                return sib.getOp();
+                return SIB.decode(seq, op, codedMod, ctx);
             } else if(codedMem == 5 || codedMem == 13) {
                 long disp = seq.readUDword();
                 if(is64) {
@@ -143,45 +177,55 @@ class ModRM {
                 if(is64) {
                     res.setNeedSizeFix(true);
                 }
-                res.setOpType(op.operType);
+                res.setOpType(ctx, op.operType);
                 res.setUsage(op.usageType);
                 return res;
             } else {
                 PointerOp res;
-                res = new PointerOp(ctx, X86CPU.getGenericAddressRegister(ctx, codedMem));
-                res.setOpType(op.operType);
+                X86Register baseReg = X86CPU.getGenericAddressRegister(ctx, codedMem);
+                if(baseReg == null) {
+                    return null;
+                }
+                res = new PointerOp(ctx, baseReg);
+                res.setOpType(ctx, op.operType);
                 res.setUsage(op.usageType);
                 return res;
             }
         case 1:
             if(codedMem == 4 || codedMem == 12) {
-                SIB sib = new SIB(seq, op, codedMod, ctx);
-                PointerOp pOp = sib.getOp();
-                if(!pOp.hasOffset()) {
+                PointerOp pOp = SIB.decode(seq, op, codedMod, ctx);
+                if(pOp != null && !pOp.hasOffset()) {
                     pOp.setOffset(seq.readUByte());
                 }
                 return pOp;
             } else {
                 long disp = seq.readSByte();
                 PointerOp res;
-                res = new PointerOp(ctx, X86CPU.getGenericAddressRegister(ctx, codedMem), disp);
-                res.setOpType(op.operType);
+                X86Register baseReg = X86CPU.getGenericAddressRegister(ctx, codedMem);
+                if(baseReg == null) {
+                    return null;
+                }
+                res = new PointerOp(ctx, baseReg, disp);
+                res.setOpType(ctx, op.operType);
                 res.setUsage(op.usageType);
                 return res;
             }
         case 2:
             if(codedMem == 4 || codedMem == 12) {
-                SIB sib = new SIB(seq, op, codedMod, ctx);
-                PointerOp pOp = sib.getOp();
-                if(!pOp.hasOffset()) {
+                PointerOp pOp = SIB.decode(seq, op, codedMod, ctx);
+                if(pOp != null && !pOp.hasOffset()) {
                     pOp.setOffset(seq.readUDword());
                 }
                 return pOp;
             } else {
                 long disp = seq.readSDword();
                 PointerOp res;
-                res = new PointerOp(ctx, X86CPU.getGenericAddressRegister(ctx, codedMem), disp);
-                res.setOpType(op.operType);
+                X86Register baseReg = X86CPU.getGenericAddressRegister(ctx, codedMem);
+                if(baseReg == null) {
+                    return null;
+                }
+                res = new PointerOp(ctx, baseReg, disp);
+                res.setOpType(ctx, op.operType);
                 res.setUsage(op.usageType);
                 return res;
             }
@@ -189,4 +233,12 @@ class ModRM {
             throw new UnsupportedOperationException("unsupported mode: " + codedMod);
         }
     }
+
+    private Operand getRegister(OperandDesc op, short id) {
+        X86Register reg = X86CPU.getOperandRegister(op, ctx, id);
+        if(reg == null) {
+            return null;
+        }
+        return RegisterOp.get(op.usageType, reg);
+    }
 }
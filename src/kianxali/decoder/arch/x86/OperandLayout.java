@@ -0,0 +1,449 @@
+package kianxali.decoder.arch.x86;
+
+import kianxali.decoder.arch.x86.X86CPU.AddressSize;
+import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
+import kianxali.decoder.arch.x86.X86CPU.Model;
+import kianxali.decoder.arch.x86.X86CPU.OperandSize;
+import kianxali.decoder.arch.x86.xml.OpcodeEntry;
+import kianxali.decoder.arch.x86.xml.OpcodeSyntax;
+import kianxali.decoder.arch.x86.xml.OperandDesc;
+
+/**
+ * Describes the bytes that follow the opcode of a syntax: the ModR/M byte,
+ * the SIB and displacement bytes of its memory operand and the immediates.
+ * The immediate sizes and the valid register numbers of all operands are
+ * computed for each combination of the size prefixes when the decode tree
+ * is indexed. That way, the length of an instruction and whether its operands
+ * are valid can be determined by table lookups before decoding any operand.
+ * @author fwi
+ *
+ */
+final class OperandLayout {
+    static final int INVALID = -1;
+    // upper bound of the bytes following the opcode, i.e. of the lengths returned by getLength
+    static final int MAX_LENGTH = 32;
+
+    // prefix flags, the lower three bits select the state for the tables
+    static final int OP_SIZE = 1;
+    static final int ADR_SIZE = 2;
+    static final int REX_W = 4;
+    static final int REX_R = 8;
+    static final int REX_B = 16;
+    private static final int STATES = 8;
+
+    // displacement bytes following a ModR/M byte, indexed by the byte
+    private static final byte[] DISPLACEMENT_16 = new byte[256];
+    private static final byte[] DISPLACEMENT_32 = new byte[256];
+    // marks a ModR/M byte that is followed by a SIB byte
+    private static final byte SIB_FOLLOWS = -1;
+    // displacement bytes following a SIB byte, indexed by the mode and the base
+    private static final byte[] SIB_DISPLACEMENT = new byte[32];
+
+    static {
+        for(int code = 0; code < 256; code++) {
+            int mod = code >> 6;
+            int rm = code & 0x07;
+            switch(mod) {
+            case 0:
+                DISPLACEMENT_16[code] = (byte) (rm == 6 ? 2 : 0);
+                DISPLACEMENT_32[code] = (byte) (rm == 4 ? SIB_FOLLOWS : (rm == 5 ? 4 : 0));
+                break;
+            case 1:
+                DISPLACEMENT_16[code] = 1;
+                DISPLACEMENT_32[code] = (byte) (rm == 4 ? SIB_FOLLOWS : 1);
+                break;
+            case 2:
+                DISPLACEMENT_16[code] = 2;
+                DISPLACEMENT_32[code] = (byte) (rm == 4 ? SIB_FOLLOWS : 4);
+                break;
+            default:
+                break;
+            }
+        }
+        for(int base = 0; base < 8; base++) {
+            SIB_DISPLACEMENT[base] = (byte) (base == 5 ? 4 : 0);
+            SIB_DISPLACEMENT[8 + base] = 1;
+            SIB_DISPLACEMENT[16 + base] = 4;
+        }
+    }
+
+    // whether a ModR/M byte follows the opcode
+    private final boolean modRM;
+    // number of operands that decode the r/m field, each of them reads its own SIB and displacement bytes
+    private int memReads;
+    // whether the r/m field may encode a register or memory
+    private boolean regAllowed, memAllowed;
+    // bit mask of the states in which all operands that don't depend on the following bytes are valid
+    private int validStates;
+    // bit mask of the states that use 16 bit addressing
+    private int addr16States;
+    // valid register numbers per state, as bit masks
+    private final int[] regMasks, rmMasks;
+    private int[] leastRegMasks;
+    // number of immediate, offset and relative bytes per state
+    private final int[] immediates;
+
+    private OperandLayout(boolean modRM) {
+        this.modRM = modRM;
+        this.regAllowed = true;
+        this.memAllowed = true;
+        this.validStates = (1 << STATES) - 1;
+        this.regMasks = new int[STATES];
+        this.rmMasks = new int[STATES];
+        this.immediates = new int[STATES];
+        for(int state = 0; state < STATES; state++) {
+            regMasks[state] = 0xFFFF;
+            rmMasks[state] = 0xFFFF;
+        }
+    }
+
+    /**
+     * Computes the layout of a syntax in a given execution mode
+     * @param syntax the syntax to examine
+     * @param mode the execution mode of the decode tree
+     * @return the layout or null if the operands of the syntax can never be decoded
+     */
+    static OperandLayout create(OpcodeSyntax syntax, ExecutionMode mode) {
+        OpcodeEntry entry = syntax.getOpcodeEntry();
+        int modRMOperands = 0;
+        for(OperandDesc op : syntax.getOperands()) {
+            if(!op.indirect && isModRMOperand(op)) {
+                modRMOperands++;
+            }
+        }
+        if(!entry.modRM && modRMOperands > 1) {
+            // each operand would read its own ModR/M byte, this isn't used by the XML
+            return null;
+        }
+
+        OperandLayout res = new OperandLayout(entry.modRM || modRMOperands > 0);
+        X86Context ctx = new X86Context(Model.ANY, mode);
+        Prefix prefix = ctx.getPrefix();
+        for(int state = 0; state < STATES; state++) {
+            prefix.opSizePrefix = (state & OP_SIZE) != 0;
+            prefix.adrSizePrefix = (state & ADR_SIZE) != 0;
+            prefix.rexWPrefix = (state & REX_W) != 0;
+            if(X86CPU.getAddressSize(ctx) == AddressSize.A16) {
+                res.addr16States |= 1 << state;
+            }
+            for(OperandDesc op : syntax.getOperands()) {
+                if(op.indirect) {
+                    continue;
+                }
+                if(!res.addOperand(op, entry, ctx, state)) {
+                    return null;
+                }
+            }
+        }
+        if(res.validStates == 0) {
+            return null;
+        }
+        for(int state = 0; state < STATES; state++) {
+            // ModR/M byte plus SIB and displacement for each memory operand
+            int maxLength = res.immediates[state] + (res.modRM ? 1 + res.memReads * 5 : 0);
+            if(maxLength > MAX_LENGTH) {
+                throw new UnsupportedOperationException("operands too long: " + syntax);
+            }
+        }
+        return res;
+    }
+
+    private static boolean isModRMOperand(OperandDesc op) {
+        switch(op.adrType) {
+        case MOD_RM_R_CTRL:
+        case MOD_RM_R_DEBUG:
+        case MOD_RM_R_TEST:
+        case MOD_RM_R_MMX:
+        case MOD_RM_R_SEG:
+        case MOD_RM_R_XMM:
+        case MOD_RM_R:
+        case MOD_RM_R_FORCE_GEN:
+        case MOD_RM_MUST_M:
+        case MOD_RM_M_FPU_REG:
+        case MOD_RM_M_XMM_REG:
+        case MOD_RM_M_FORCE_GEN:
+        case MOD_RM_M_FPU:
+        case MOD_RM_M_MMX:
+        case MOD_RM_M:
+        case MOD_RM_MMX:
+        case MOD_RM_XMM:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    // mirrors X86Instruction#decodeOperand, returns false if the operand can't be decoded in any state
+    private boolean addOperand(OperandDesc op, OpcodeEntry entry, X86Context ctx, int state) {
+        switch(op.adrType) {
+        case GROUP:
+            if(X86CPU.getOperandRegister(op, ctx, (short) op.numForGroup) == null) {
+                validStates &= ~(1 << state);
+            }
+            return true;
+        case SEGMENT2:
+        case SEGMENT33:
+        case SEGMENT30:
+            if(X86CPU.getOperandRegister(op, ctx, entry.opcode) == null) {
+                validStates &= ~(1 << state);
+            }
+            return true;
+        case LEAST_REG:
+            if(leastRegMasks == null) {
+                leastRegMasks = new int[STATES];
+                for(int i = 0; i < STATES; i++) {
+                    leastRegMasks[i] = 0xFFFF;
+                }
+            }
+            leastRegMasks[state] &= getRegisterMask(op, ctx);
+            return true;
+        case ES_EDI_RDI:
+        case DS_ESI_RSI:
+        case DS_EBX_AL_RBX:
+            return true;
+        case OFFSET:
+            immediates[state] += getAddressBytes(ctx);
+            return true;
+        case DIRECT:
+        case IMMEDIATE:
+            return addImmediate(getImmediateBytes(op, entry, ctx), state);
+        case RELATIVE:
+            switch(op.operType) {
+            case WORD_DWORD_S64:    return addImmediate(4, state);
+            case BYTE_SGN:          return addImmediate(1, state);
+            default:                return false;
+            }
+        case MOD_RM_R_CTRL:
+        case MOD_RM_R_DEBUG:
+        case MOD_RM_R_TEST:
+        case MOD_RM_R_MMX:
+        case MOD_RM_R_SEG:
+        case MOD_RM_R_XMM:
+        case MOD_RM_R:
+            regMasks[state] &= getRegisterMask(op, ctx);
+            return true;
+        case MOD_RM_M_FORCE_GEN:
+            if(!entry.modRM) {
+                // the decoder doesn't read a ModR/M byte for this type
+                return false;
+            }
+            return addMemory(op, ctx, state, true, true);
+        case MOD_RM_MUST_M:
+            return addMemory(op, ctx, state, false, false);
+        case MOD_RM_M_FPU_REG:
+        case MOD_RM_M_XMM_REG:
+            return addMemory(op, ctx, state, true, true);
+        case MOD_RM_R_FORCE_GEN:
+        case MOD_RM_M_FPU:
+        case MOD_RM_M_MMX:
+        case MOD_RM_M:
+        case MOD_RM_MMX:
+        case MOD_RM_XMM:
+            return addMemory(op, ctx, state, true, false);
+        default:
+            return false;
+        }
+    }
+
+    private boolean addImmediate(int bytes, int state) {
+        if(bytes == INVALID) {
+            validStates &= ~(1 << state);
+        } else {
+            immediates[state] += bytes;
+        }
+        return true;
+    }
+
+    private boolean addMemory(OperandDesc op, X86Context ctx, int state, boolean allowRegister, boolean mustBeRegister) {
+        // the flags are the same in all states, so only count the operand once
+        if(state == 0) {
+            memReads++;
+            regAllowed &= allowRegister;
+            memAllowed &= !mustBeRegister;
+        }
+        if(allowRegister) {
+            rmMasks[state] &= getRegisterMask(op, ctx);
+        }
+        return true;
+    }
+
+    private static int getRegisterMask(OperandDesc op, X86Context ctx) {
+        int res = 0;
+        for(short id = 0; id < 16; id++) {
+            if(X86CPU.getOperandRegister(op, ctx, id) != null) {
+                res |= 1 << id;
+            }
+        }
+        return res;
+    }
+
+    private static int getAddressBytes(X86Context ctx) {
+        switch(X86CPU.getAddressSize(ctx)) {
+        case A16:   return 2;
+        case A32:   return 4;
+        case A64:   return 8;
+        default:    return INVALID;
+        }
+    }
+
+    // mirrors X86Instruction#decodeImmediate
+    private static int getImmediateBytes(OperandDesc op, OpcodeEntry entry, X86Context ctx) {
+        if(op.hardcoded != null) {
+            return 0;
+        }
+        if(op.operType == null) {
+            return INVALID;
+        }
+        OperandSize size = X86CPU.getOperandSize(ctx, op.operType);
+        switch(op.operType) {
+        case BYTE:
+        case BYTE_STACK:
+        case BYTE_SGN:
+            return 1;
+        case WORD:
+            return 2;
+        case WORD_DWORD_STACK:
+            return 4;
+        case WORD_DWORD_64:
+            if(size == OperandSize.O16) {
+                return 2;
+            } else if(size == OperandSize.O32) {
+                return 4;
+            } else if(size == OperandSize.O64) {
+                return entry.opSize ? 4 : 8;
+            }
+            return INVALID;
+        case WORD_DWORD_S64:
+            if(size == OperandSize.O16) {
+                return 2;
+            } else if(size == OperandSize.O32 || size == OperandSize.O64) {
+                return 4;
+            }
+            return INVALID;
+        case POINTER:
+            if(size == OperandSize.O16) {
+                return 4;
+            } else if(size == OperandSize.O32) {
+                return 6;
+            }
+            return INVALID;
+        default:
+            return INVALID;
+        }
+    }
+
+    /**
+     * Returns the number of operands that decode the r/m field of the ModR/M byte
+     * @return the number of memory operands
+     */
+    int getMemoryReads() {
+        return memReads;
+    }
+
+    /**
+     * Converts the flags of a prefix into the flags used by {@link OperandLayout#getLength(byte[], int, int, int, int)}
+     * @param prefix the prefix to convert
+     * @return the flags of the prefix
+     */
+    static int getFlags(Prefix prefix) {
+        int res = 0;
+        if(prefix.opSizePrefix) {
+            res |= OP_SIZE;
+        }
+        if(prefix.adrSizePrefix) {
+            res |= ADR_SIZE;
+        }
+        if(prefix.rexWPrefix) {
+            res |= REX_W;
+        }
+        if(prefix.rexRPrefix) {
+            res |= REX_R;
+        }
+        if(prefix.rexBPrefix) {
+            res |= REX_B;
+        }
+        return res;
+    }
+
+    /**
+     * Returns the number of bytes that follow the opcode and checks whether the
+     * operands are valid, i.e. whether the decoder will be able to decode them.
+     * At most {@link OperandLayout#MAX_LENGTH} bytes after the opcode are examined.
+     * @param code the bytes of the instruction
+     * @param offset the index of the first byte after the opcode
+     * @param limit the number of valid bytes in code
+     * @param flags the prefix flags as returned by {@link OperandLayout#getFlags(Prefix)}
+     * @param leastReg the lower 3 bits of the register encoded in the opcode, if any
+     * @return the number of bytes or {@link OperandLayout#INVALID} if the operands are invalid
+     *         or if there are not enough bytes left
+     */
+    int getLength(byte[] code, int offset, int limit, int flags, int leastReg) {
+        int state = flags & (STATES - 1);
+        if((validStates & (1 << state)) == 0) {
+            return INVALID;
+        }
+        if(leastRegMasks != null) {
+            int id = leastReg | ((flags & REX_B) != 0 ? 8 : 0);
+            if((leastRegMasks[state] & (1 << id)) == 0) {
+                return INVALID;
+            }
+        }
+
+        int length = immediates[state];
+        if(modRM) {
+            if(offset >= limit) {
+                return INVALID;
+            }
+            int modLength = getModRMLength(code, offset, limit, state, flags);
+            if(modLength == INVALID) {
+                return INVALID;
+            }
+            length += modLength;
+        }
+        if(offset + length > limit) {
+            return INVALID;
+        }
+        return length;
+    }
+
+    // returns the length including the ModR/M byte at the offset
+    private int getModRMLength(byte[] code, int offset, int limit, int state, int flags) {
+        int modRMByte = code[offset] & 0xFF;
+        int reg = ((modRMByte >> 3) & 0x07) | ((flags & REX_R) != 0 ? 8 : 0);
+        if((regMasks[state] & (1 << reg)) == 0) {
+            return INVALID;
+        }
+        if(memReads == 0) {
+            return 1;
+        }
+
+        if((modRMByte >> 6) == 3) {
+            int rm = (modRMByte & 0x07) | ((flags & REX_B) != 0 ? 8 : 0);
+            if(!regAllowed || (rmMasks[state] & (1 << rm)) == 0) {
+                return INVALID;
+            }
+            return 1;
+        } else if(!memAllowed) {
+            return INVALID;
+        }
+
+        if((addr16States & (1 << state)) != 0) {
+            return 1 + memReads * DISPLACEMENT_16[modRMByte];
+        }
+        int length = 1;
+        int disp = DISPLACEMENT_32[modRMByte];
+        for(int i = 0; i < memReads; i++) {
+            if(disp != SIB_FOLLOWS) {
+                length += disp;
+                continue;
+            }
+            // the SIB byte is read again by each operand, so it isn't always the same byte
+            if(offset + length >= limit) {
+                return INVALID;
+            }
+            int base = code[offset + length] & 0x07;
+            length += 1 + SIB_DISPLACEMENT[((modRMByte >> 6) << 3) | base];
+        }
+        return length;
+    }
+}
@@ -20,9 +20,10 @@ import kianxali.util.OutputFormatter;
  *
  */
 public class PointerOp implements Operand {
-    // TODO: context should be removed from here
     private static final Logger LOG = Logger.getLogger("kianxali.decoder.arch.x86");
-    private final X86Context context;
+    // taken from the context while decoding because the context changes with the next instruction
+    private final Segment overrideSegment;
+    private OperandSize opSize;
     private UsageType usage;
     private OperandType opType;
     private Segment segment;
@@ -33,25 +34,25 @@ public class PointerOp implements Operand {
 
     // ptr [address]
     PointerOp(X86Context ctx, long offset) {
-        this.context = ctx;
+        this.overrideSegment = ctx.getPrefix().overrideSegment;
         this.offset = offset;
     }
 
     // ptr [register]
     PointerOp(X86Context ctx, X86Register baseRegister) {
-        this.context = ctx;
+        this.overrideSegment = ctx.getPrefix().overrideSegment;
         this.baseRegister = baseRegister;
     }
 
     PointerOp(X86Context ctx, X86Register baseRegister, long offset) {
-        this.context = ctx;
+        this.overrideSegment = ctx.getPrefix().overrideSegment;
         this.baseRegister = baseRegister;
         this.offset = offset;
     }
 
     // ptr [scale * register]
     PointerOp(X86Context ctx, X86Register indexRegister, int scale) {
-        this.context = ctx;
+        this.overrideSegment = ctx.getPrefix().overrideSegment;
         this.indexRegister = indexRegister;
         if(scale > 1 && indexRegister != null) {
             this.indexScale = scale;
@@ -60,7 +61,7 @@ public class PointerOp implements Operand {
 
     // ptr [scale * register + offset]
     PointerOp(X86Context ctx, X86Register indexRegister, int scale, long offset) {
-        this.context = ctx;
+        this.overrideSegment = ctx.getPrefix().overrideSegment;
         this.indexRegister = indexRegister;
         if(scale > 1 && indexRegister != null) {
             this.indexScale = scale;
@@ -70,7 +71,7 @@ public class PointerOp implements Operand {
 
     // ptr [base + scale * index]
     PointerOp(X86Context ctx, X86Register baseRegister, int scale, X86Register indexRegister) {
-        this.context = ctx;
+        this.overrideSegment = ctx.getPrefix().overrideSegment;
         this.baseRegister = baseRegister;
         if(scale > 1 && indexRegister != null) {
             this.indexScale = scale;
@@ -80,7 +81,7 @@ public class PointerOp implements Operand {
 
     // ptr [scale * index + offset]
     PointerOp(X86Context ctx, int scale, X86Register indexRegister, long offset) {
-        this.context = ctx;
+        this.overrideSegment = ctx.getPrefix().overrideSegment;
         if(scale > 1 && indexRegister != null) {
             this.indexScale = scale;
         }
@@ -90,7 +91,7 @@ public class PointerOp implements Operand {
 
     // ptr [base + scale * index + offset]
     PointerOp(X86Context ctx, X86Register baseRegister, int scale, X86Register indexRegister, long offset) {
-        this.context = ctx;
+        this.overrideSegment = ctx.getPrefix().overrideSegment;
         this.baseRegister = baseRegister;
         if(scale > 1 && indexRegister != null) {
             this.indexScale = scale;
@@ -119,8 +120,10 @@ public class PointerOp implements Operand {
         return offset;
     }
 
-    void setOpType(OperandType opType) {
+    void setOpType(X86Context ctx, OperandType opType) {
         this.opType = opType;
+        // null if the type has no size, reported when the size is needed
+        this.opSize = X86CPU.getOperandSize(ctx, opType);
     }
 
     void setUsage(UsageType usage) {
@@ -155,10 +158,8 @@ public class PointerOp implements Operand {
             DataType type;
             // only addressed by constant -> great because we know the size then
             // TODO: work on opType directly for more information
-            try {
-                OperandSize size = X86CPU.getOperandSize(context, opType);
-
-                switch(size) {
+            if(opSize != null) {
+                switch(opSize) {
                 case O8:    type = DataType.BYTE; break;
                 case O16:   type = DataType.WORD; break;
                 case O32:   type = DataType.DWORD; break;
@@ -167,7 +168,7 @@ public class PointerOp implements Operand {
                 case O512:  type = DataType.DYWORD; break;
                 default:    type = DataType.UNKNOWN;
                 }
-            } catch(Exception e) {
+            } else {
                 LOG.warning("Unknown operand size for " + opType);
                 type = DataType.UNKNOWN;
             }
@@ -191,7 +192,10 @@ public class PointerOp implements Operand {
 
     @Override
     public Short getPointerDestSize() {
-        switch(X86CPU.getOperandSize(context, opType)) {
+        if(opSize == null) {
+            throw new RuntimeException("invalid operand size: " + opType);
+        }
+        switch(opSize) {
         case O8:    return 8;
         case O16:   return 16;
         case O32:   return 32;
@@ -213,18 +217,20 @@ public class PointerOp implements Operand {
             str.append("xmmword ptr ");
             break;
         default:
-            try {
-                switch(X86CPU.getOperandSize(context, opType)) {
-                case O8:    str.append("byte ptr "); break;
-                case O16:   str.append("word ptr "); break;
-                case O32:   str.append("dword ptr "); break;
-                case O64:   str.append("qword ptr "); break;
-                case O80:   str.append("tbyte ptr "); break;
-                case O128:  str.append("dqword ptr "); break;
-                case O512:  str.append("dyword ptr "); break;
-                default: throw new RuntimeException("invalid operand size: " + opType);
-                }
-            } catch(Exception e) {
+            if(opSize == null) {
+                LOG.warning("Unknown operand size for " + opType);
+                str.append("? ptr ");
+                break;
+            }
+            switch(opSize) {
+            case O8:    str.append("byte ptr "); break;
+            case O16:   str.append("word ptr "); break;
+            case O32:   str.append("dword ptr "); break;
+            case O64:   str.append("qword ptr "); break;
+            case O80:   str.append("tbyte ptr "); break;
+            case O128:  str.append("dqword ptr "); break;
+            case O512:  str.append("dyword ptr "); break;
+            default:
                 LOG.warning("Unknown operand size for " + opType);
                 str.append("? ptr ");
             }
@@ -232,8 +238,8 @@ public class PointerOp implements Operand {
 
         if(segment != null) {
             str.append(segment + ":");
-        } else if(context.getPrefix().overrideSegment != null) {
-            str.append(context.getPrefix().overrideSegment + ":");
+        } else if(overrideSegment != null) {
+            str.append(overrideSegment + ":");
         }
 
         str.append("[");
@@ -1,7 +1,6 @@
 package kianxali.decoder.arch.x86;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import kianxali.decoder.arch.x86.X86CPU.Segment;
 
@@ -9,46 +8,116 @@ import kianxali.decoder.arch.x86.X86CPU.Segment;
  * This class is used to store the information that can be encoded in
  * prefixes to opcodes. The information are stored in flags and as raw
  * bytes (in case the opcode needs to check whether a mandatory prefix
- * is present).
+ * is present). The raw bytes are kept in a primitive array so that
+ * an instance can be reused for each instruction without creating garbage.
  * @author fwi
  *
  */
 public class Prefix {
+    // x86 instructions are at most 15 bytes long, the array grows for longer garbage sequences
+    private static final int INITIAL_BYTES = 15;
+
+    // all possible results of toString, indexed by lock / wait and repz / repnz state
+    private static final String[] PREFIX_STRINGS = {
+        "",         "repz ",        "repnz ",
+        "lock ",    "lock repz ",   "lock repnz ",
+        "wait ",    "wait repz ",   "wait repnz "
+    };
+
     public Segment overrideSegment;
     public boolean lockPrefix, waitPrefix;
     public boolean repZPrefix, repNZPrefix, opSizePrefix, adrSizePrefix;
     public boolean rexWPrefix, rexRPrefix, rexBPrefix, rexXPrefix;
-    public List<Short> prefixBytes;
+    private short[] prefixBytes;
+    private int prefixCount;
 
     public Prefix() {
-        prefixBytes = new ArrayList<>(5);
+        prefixBytes = new short[INITIAL_BYTES];
+    }
+
+    /**
+     * Clears all flags and bytes so the instance can be used for the next instruction
+     */
+    public void reset() {
+        overrideSegment = null;
+        lockPrefix = false;
+        waitPrefix = false;
+        repZPrefix = false;
+        repNZPrefix = false;
+        opSizePrefix = false;
+        adrSizePrefix = false;
+        rexWPrefix = false;
+        rexRPrefix = false;
+        rexBPrefix = false;
+        rexXPrefix = false;
+        prefixCount = 0;
+    }
+
+    /**
+     * Copies all flags from another prefix, but not the bytes
+     * @param other the prefix to copy the flags from
+     */
+    public void copyFlags(Prefix other) {
+        overrideSegment = other.overrideSegment;
+        lockPrefix = other.lockPrefix;
+        waitPrefix = other.waitPrefix;
+        repZPrefix = other.repZPrefix;
+        repNZPrefix = other.repNZPrefix;
+        opSizePrefix = other.opSizePrefix;
+        adrSizePrefix = other.adrSizePrefix;
+        rexWPrefix = other.rexWPrefix;
+        rexRPrefix = other.rexRPrefix;
+        rexBPrefix = other.rexBPrefix;
+        rexXPrefix = other.rexXPrefix;
     }
 
     public void pushPrefixByte(short b) {
-        prefixBytes.add(b);
+        if(prefixCount == prefixBytes.length) {
+            prefixBytes = Arrays.copyOf(prefixBytes, prefixCount * 2);
+        }
+        prefixBytes[prefixCount++] = b;
     }
 
     public void popPrefixByte() {
-        int size = prefixBytes.size();
-        if(size > 0) {
-            prefixBytes.remove(size - 1);
+        if(prefixCount > 0) {
+            prefixCount--;
+        }
+    }
+
+    /**
+     * Returns the number of bytes that were read for the current instruction so far
+     * @return the number of bytes pushed
+     */
+    public int getPrefixByteCount() {
+        return prefixCount;
+    }
+
+    /**
+     * Returns a byte that was read for the current instruction
+     * @param index the index of the byte, must be less than {@link Prefix#getPrefixByteCount()}
+     * @return the byte at the given index
+     */
+    public short getPrefixByte(int index) {
+        if(index >= prefixCount) {
+            throw new IndexOutOfBoundsException("invalid prefix index: " + index);
         }
+        return prefixBytes[index];
     }
 
     @Override
     public String toString() {
-        StringBuilder res = new StringBuilder();
+        int index = 0;
         if(lockPrefix) {
-            res.append("lock ");
+            index = 3;
         } else if(waitPrefix) {
-            res.append("wait ");
+            index = 6;
         }
 
         if(repZPrefix) {
-            res.append("repz ");
+            index += 1;
         } else if(repNZPrefix) {
-            res.append("repnz ");
+            index += 2;
         }
-        return res.toString();
+        return PREFIX_STRINGS[index];
     }
 }
@@ -12,14 +12,31 @@ import kianxali.util.OutputFormatter;
  *
  */
 public class RegisterOp implements Operand {
+    // register operands are immutable, so they are shared to avoid garbage while decoding
+    private static final RegisterOp[][] CACHE = new RegisterOp[UsageType.values().length][X86Register.values().length];
     private final UsageType usage;
     private final X86Register register;
 
-    RegisterOp(UsageType usage, X86Register register) {
+    static {
+        for(UsageType usage : UsageType.values()) {
+            for(X86Register register : X86Register.values()) {
+                CACHE[usage.ordinal()][register.ordinal()] = new RegisterOp(usage, register);
+            }
+        }
+    }
+
+    private RegisterOp(UsageType usage, X86Register register) {
         this.usage = usage;
         this.register = register;
     }
 
+    static RegisterOp get(UsageType usage, X86Register register) {
+        if(usage == null || register == null) {
+            return new RegisterOp(usage, register);
+        }
+        return CACHE[usage.ordinal()][register.ordinal()];
+    }
+
     @Override
     public UsageType getUsage() {
         return usage;
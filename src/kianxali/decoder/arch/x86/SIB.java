@@ -9,10 +9,20 @@ import kianxali.loader.ByteSequence;
  * @author fwi
  *
  */
-class SIB {
-    private PointerOp sibOp;
+final class SIB {
+    private SIB() {
+    }
 
-    public SIB(ByteSequence seq, OperandDesc op, short mode, X86Context ctx) {
+    /**
+     * Reads a SIB byte and the displacement belonging to it.
+     * @param seq the sequence to read from, positioned at the SIB byte
+     * @param op the operand that is described by the SIB byte
+     * @param mode the mode field of the preceding ModR/M byte
+     * @param ctx the context that contains the current prefixes
+     * @return the decoded memory operand or null if a register number is invalid in this context
+     */
+    public static PointerOp decode(ByteSequence seq, OperandDesc op, short mode, X86Context ctx) {
+        PointerOp sibOp;
         short sib = seq.readUByte();
         int scale = 1 << (sib >> 6);
         short index = (short) ((sib >> 3) & 0x07);
@@ -29,6 +39,9 @@ class SIB {
             indexReg = null;
         } else {
             indexReg =  X86CPU.getGenericAddressRegister(ctx, index);
+            if(indexReg == null) {
+                return null;
+            }
         }
 
         long disp;
@@ -51,13 +64,13 @@ class SIB {
             }
         } else {
             X86Register baseReg = X86CPU.getGenericAddressRegister(ctx, base);
+            if(baseReg == null) {
+                return null;
+            }
             sibOp = new PointerOp(ctx, baseReg, scale, indexReg);
         }
-        sibOp.setOpType(op.operType);
+        sibOp.setOpType(ctx, op.operType);
         sibOp.setUsage(op.usageType);
-    }
-
-    public PointerOp getOp() {
         return sibOp;
     }
 }
\ No newline at end of file
@@ -0,0 +1,478 @@
+package kianxali.decoder.arch.x86;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import kianxali.decoder.DecodeTree;
+import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
+import kianxali.decoder.arch.x86.xml.OpcodeEntry;
+import kianxali.decoder.arch.x86.xml.OpcodeGroup;
+import kianxali.decoder.arch.x86.xml.OpcodeSyntax;
+import kianxali.decoder.arch.x86.xml.OperandDesc;
+
+/**
+ * Contains the candidate syntaxes of a leaf in the decode tree and selects
+ * the ones that match an instruction. Which candidates match only depends on
+ * the opcode extension and mode encoded in the ModR/M byte, on the mandatory
+ * prefixes that are present and on whether the opcode is the first byte of
+ * the instruction. The matching candidates, ordered by preference, are
+ * computed for each combination of those when the decode tree is indexed,
+ * so decoding an instruction only needs a lookup. The operand layouts of the
+ * candidates are computed at the same time.
+ * @author fwi
+ *
+ */
+final class SyntaxSelector extends AbstractList<OpcodeSyntax> {
+    private static final int NO_EXTENSION = -1;
+    private static final int MODRM_EXTENSION = -2;
+    // index for the byte following the opcode: 0 if there is none, otherwise the extension and whether the mode is register
+    private static final int BYTE_KEYS = 17;
+    // entry in the length tables if the tree must be walked to find the length
+    static final byte NOT_CACHED = -2;
+    // flag in the length tables: add four displacement bytes if the base in the SIB byte is 5
+    static final byte SIB_BASE_5 = 0x40;
+    // the length tables: for instructions without prefixes, with an operand size prefix and with REX.W
+    static final int NO_PREFIX = 0;
+    static final int OP_SIZE_PREFIX = 1;
+    static final int REX_W_PREFIX = 2;
+    private static final short[] TABLE_PREFIXES = {-1, 0x66, 0x48};
+    private static final int[] TABLE_FLAGS = {0, OperandLayout.OP_SIZE, OperandLayout.REX_W};
+
+    // state that is shared by all selectors of a tree while indexing it
+    private static class IndexState {
+        final ExecutionMode mode;
+        final Map<OpcodeSyntax, OperandLayout> layouts;
+        final Map<ByteBuffer, byte[]> lengths;
+        // whether the prefix of a length table is always decoded as a prefix
+        final boolean[] tablePrefixes;
+
+        IndexState(DecodeTree<OpcodeSyntax> root, ExecutionMode mode) {
+            this.mode = mode;
+            this.layouts = new HashMap<>();
+            this.lengths = new HashMap<>();
+            this.tablePrefixes = new boolean[TABLE_PREFIXES.length];
+            tablePrefixes[NO_PREFIX] = true;
+            for(int i = 1; i < TABLE_PREFIXES.length; i++) {
+                tablePrefixes[i] = isPlainPrefix(root, TABLE_PREFIXES[i]);
+            }
+        }
+    }
+
+    private final OpcodeSyntax[] syntaxes;
+    private final OperandLayout[] layouts;
+    // prefix flags that remain after hiding the mandatory prefix of each candidate
+    private final int[] flagMasks;
+    // lower 3 bits of the register encoded in the opcode, if any
+    private final int[] leastRegs;
+    // whether the candidate is a prefix, cached because the group lookup is slow
+    private final boolean[] prefixGroups;
+    // the distinct mandatory prefixes and the number of opcode bytes that follow them
+    private final short[] prefixes;
+    private final int[] prefixLengths;
+    private final boolean peekByte, checkFirstByte;
+    // the ordered candidates for each key
+    private final int[][] candidates;
+    // operand lengths for each table prefix, indexed by the byte following the opcode
+    private final byte[][] lengthTables;
+
+    private SyntaxSelector(List<OpcodeSyntax> leaves, short[] path, IndexState state) {
+        int count = leaves.size();
+        this.syntaxes = leaves.toArray(new OpcodeSyntax[count]);
+        this.layouts = new OperandLayout[count];
+        this.flagMasks = new int[count];
+        this.leastRegs = new int[count];
+        this.prefixGroups = new boolean[count];
+
+        List<Short> prefixList = new ArrayList<>();
+        List<Integer> lengthList = new ArrayList<>();
+        boolean modRM = false, nop = false;
+        for(int i = 0; i < count; i++) {
+            OpcodeSyntax syntax = syntaxes[i];
+            OpcodeEntry entry = syntax.getOpcodeEntry();
+            if(!isSupported(syntax)) {
+                continue;
+            }
+            OperandLayout layout;
+            if(state.layouts.containsKey(syntax)) {
+                layout = state.layouts.get(syntax);
+            } else {
+                layout = OperandLayout.create(syntax, state.mode);
+                state.layouts.put(syntax, layout);
+            }
+            layouts[i] = layout;
+            if(layout == null) {
+                continue;
+            }
+
+            flagMasks[i] = ~0;
+            if(entry.prefix != null) {
+                if(entry.prefix == 0x66) {
+                    flagMasks[i] = ~OperandLayout.OP_SIZE;
+                } else if(entry.prefix == 0x67) {
+                    flagMasks[i] = ~OperandLayout.ADR_SIZE;
+                }
+                if(findPrefix(prefixList, lengthList, entry.prefix, syntax.getPrefixLength()) == -1) {
+                    prefixList.add(entry.prefix);
+                    lengthList.add(syntax.getPrefixLength());
+                }
+            }
+            prefixGroups[i] = entry.belongsTo(OpcodeGroup.PREFIX);
+            if(syntax.hasEncodedRegister()) {
+                leastRegs[i] = path[path.length - 1 - syntax.getEncodedRegisterRelativeIndex()] & 0x07;
+            }
+            modRM |= entry.modRM;
+            nop |= isPreferredNop(syntax);
+        }
+        int extension = getExtension(syntaxes);
+
+        this.prefixes = new short[prefixList.size()];
+        this.prefixLengths = new int[prefixList.size()];
+        for(int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = prefixList.get(i);
+            prefixLengths[i] = lengthList.get(i);
+        }
+        this.peekByte = modRM || extension == MODRM_EXTENSION;
+        this.checkFirstByte = nop;
+
+        int keyCount = (peekByte ? BYTE_KEYS : 1) << (prefixes.length + (checkFirstByte ? 1 : 0));
+        this.candidates = new int[keyCount][];
+        Map<List<Integer>, int[]> shared = new HashMap<>();
+        for(int key = 0; key < keyCount; key++) {
+            List<Integer> order = rateCandidates(key, extension);
+            int[] res = shared.get(order);
+            if(res == null) {
+                res = new int[order.size()];
+                for(int i = 0; i < res.length; i++) {
+                    res[i] = order.get(i);
+                }
+                shared.put(order, res);
+            }
+            candidates[key] = res;
+        }
+        this.lengthTables = new byte[TABLE_PREFIXES.length][];
+        for(int i = 0; i < TABLE_PREFIXES.length; i++) {
+            if(!state.tablePrefixes[i]) {
+                continue;
+            }
+            // many opcodes have the same lengths, so share the tables to keep them in the cache
+            byte[] lengths = computeLengths(path, TABLE_PREFIXES[i], TABLE_FLAGS[i]);
+            byte[] sharedLengths = state.lengths.get(ByteBuffer.wrap(lengths));
+            if(sharedLengths == null) {
+                sharedLengths = lengths;
+                state.lengths.put(ByteBuffer.wrap(lengths), lengths);
+            }
+            lengthTables[i] = sharedLengths;
+        }
+    }
+
+    // whether a byte is always decoded as a prefix that has no operands when it starts an instruction
+    private static boolean isPlainPrefix(DecodeTree<OpcodeSyntax> root, short s) {
+        List<OpcodeSyntax> leaves = root.getLeaves(s);
+        if(root.getSubTree(s) != null || leaves == null || leaves.size() != 1) {
+            return false;
+        }
+        OpcodeSyntax syntax = leaves.get(0);
+        return syntax.getOpcodeEntry().belongsTo(OpcodeGroup.PREFIX) && syntax.getOpcodeEntry().prefix == null
+                && !syntax.isExtended() && !syntax.getOpcodeEntry().modRM && syntax.getOperands().isEmpty();
+    }
+
+    // the lengths of instructions with at most one prefix, for each value of the byte following the opcode
+    private byte[] computeLengths(short[] opcode, short prefix, int flags) {
+        byte[] res = new byte[256];
+        int start = prefix == -1 ? 0 : 1;
+        int end = start + opcode.length;
+        byte[] code = new byte[end + 1 + OperandLayout.MAX_LENGTH];
+        if(prefix != -1) {
+            code[0] = (byte) prefix;
+        }
+        for(int i = 0; i < opcode.length; i++) {
+            code[start + i] = (byte) opcode[i];
+        }
+        for(int next = 0; next < 256; next++) {
+            code[end] = (byte) next;
+            int index = -1, length = OperandLayout.INVALID;
+            for(int candidate : select(code, end, code.length)) {
+                code[end + 1] = 0;
+                length = getOperandLength(candidate, code, end, code.length, flags);
+                if(length != OperandLayout.INVALID) {
+                    index = candidate;
+                    break;
+                }
+            }
+            if(index == -1) {
+                res[next] = OperandLayout.INVALID;
+            } else if(prefixGroups[index] || layouts[index].getMemoryReads() > 1) {
+                res[next] = NOT_CACHED;
+            } else {
+                // only a SIB byte with a base of 5 can add displacement bytes
+                code[end + 1] = 5;
+                int sibLength = getOperandLength(index, code, end, code.length, flags);
+                if(sibLength == length) {
+                    res[next] = (byte) length;
+                } else if(sibLength == length + 4) {
+                    res[next] = (byte) (length | SIB_BASE_5);
+                } else {
+                    res[next] = NOT_CACHED;
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Replaces all leaves of a decode tree with selectors. This must be done once
+     * after building the tree and before decoding with it.
+     * @param tree the tree to index
+     * @param mode the execution mode the tree was built for
+     */
+    static void indexTree(DecodeTree<OpcodeSyntax> tree, ExecutionMode mode) {
+        indexTree(tree, new short[0], new IndexState(tree, mode));
+    }
+
+    private static void indexTree(DecodeTree<OpcodeSyntax> tree, short[] path, IndexState state) {
+        short[] subPath = Arrays.copyOf(path, path.length + 1);
+        for(short s : tree.getLeaveCodes()) {
+            subPath[path.length] = s;
+            tree.setLeaves(s, new SyntaxSelector(tree.getLeaves(s), subPath, state));
+        }
+        for(short s : tree.getSubTreeCodes()) {
+            subPath[path.length] = s;
+            indexTree(tree.getSubTree(s), subPath.clone(), state);
+        }
+    }
+
+    /**
+     * Returns the selector of a leaf in an indexed decode tree
+     * @param tree the tree that was indexed by {@link SyntaxSelector#indexTree(DecodeTree, ExecutionMode)}
+     * @param s the opcode byte
+     * @return the selector for the byte or null if there is no leaf
+     */
+    static SyntaxSelector getLeaves(DecodeTree<OpcodeSyntax> tree, short s) {
+        return (SyntaxSelector) tree.getLeaves(s);
+    }
+
+    // whether all operands can be decoded, i.e. the decoder has a decoding function for them
+    private static boolean isSupported(OpcodeSyntax syn) {
+        for(OperandDesc op : syn.getOperands()) {
+            if(op.indirect) {
+                continue;
+            }
+            switch(op.adrType) {
+            case DS_EAX_RAX:
+            case DS_EDI_RDI:
+            case FLAGS:
+            case STACK:
+                return false;
+            default:
+                break;
+            }
+        }
+        return true;
+    }
+
+    // prefer NOP over xchg eax, eax, i.e. when the instruction is a single byte
+    private static boolean isPreferredNop(OpcodeSyntax syn) {
+        if(syn.getMnemonic() != X86Mnemonic.NOP || syn.getOpcodeEntry().modRM) {
+            return false;
+        }
+        for(OperandDesc op : syn.getOperands()) {
+            if(!op.indirect) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the extension is taken from the first supported syntax that has one
+    private static int getExtension(OpcodeSyntax[] candidates) {
+        for(OpcodeSyntax syn : candidates) {
+            if(!syn.isExtended() || !isSupported(syn)) {
+                continue;
+            }
+            if(syn.getOpcodeEntry().secondOpcode != null) {
+                // TODO: verify that this is always correct
+                return (syn.getOpcodeEntry().secondOpcode >> 3) & 0x07;
+            } else {
+                return MODRM_EXTENSION;
+            }
+        }
+        return NO_EXTENSION;
+    }
+
+    private static int findPrefix(List<Short> prefixList, List<Integer> lengthList, short prefix, int length) {
+        for(int i = 0; i < prefixList.size(); i++) {
+            if(prefixList.get(i) == prefix && lengthList.get(i) == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // returns the candidates that match the key, the best one first
+    private List<Integer> rateCandidates(int key, int extension) {
+        boolean firstByte = false;
+        if(checkFirstByte) {
+            firstByte = (key & 1) != 0;
+            key >>= 1;
+        }
+        int prefixMask = key & ((1 << prefixes.length) - 1);
+        int byteKey = key >> prefixes.length;
+        boolean hasByte = byteKey != 0;
+        boolean rmIsReg = hasByte && ((byteKey - 1) & 1) != 0;
+        if(extension == MODRM_EXTENSION) {
+            extension = hasByte ? (byteKey - 1) >> 1 : NO_EXTENSION;
+        }
+
+        int[] scores = new int[syntaxes.length];
+        for(int i = 0; i < syntaxes.length; i++) {
+            scores[i] = rateSyntax(i, extension, prefixMask, hasByte, rmIsReg, firstByte);
+        }
+
+        // stable selection of the best scores so that the first candidate wins on equal scores
+        List<Integer> res = new ArrayList<>();
+        while(true) {
+            int best = -1;
+            for(int i = 0; i < scores.length; i++) {
+                if(scores[i] > 0 && (best == -1 || scores[i] > scores[best])) {
+                    best = i;
+                }
+            }
+            if(best == -1) {
+                return res;
+            }
+            res.add(best);
+            scores[best] = 0;
+        }
+    }
+
+    // returns score where 0 means don't accept
+    private int rateSyntax(int index, int extension, int prefixMask, boolean hasByte, boolean rmIsReg, boolean firstByte) {
+        OpcodeSyntax syn = syntaxes[index];
+        OpcodeEntry entry = syn.getOpcodeEntry();
+        int score = 1;
+
+        if(layouts[index] == null) {
+            return 0;
+        }
+
+        if(syn.isExtended() && syn.getExtension() != extension) {
+            return 0;
+        }
+
+        // check if required prefix is present, but only actual prefixes
+        if(entry.prefix != null) {
+            int bit = 0;
+            while(prefixes[bit] != entry.prefix || prefixLengths[bit] != syn.getPrefixLength()) {
+                bit++;
+            }
+            if((prefixMask & (1 << bit)) == 0) {
+                return 0;
+            }
+            score++;
+        }
+
+        if(entry.modRM) {
+            if(!hasByte) {
+                return 0;
+            }
+            if(/*(syn.isModRMMustMem() && rmIsReg) || */(syn.isModRMMustReg() && !rmIsReg)) {
+                return 0;
+            }
+        }
+
+        if(firstByte && isPreferredNop(syn)) {
+            score++;
+        }
+
+        return score;
+    }
+
+    /**
+     * Returns the candidates that match the next instruction, the best one first
+     * @param code the bytes of the instruction, starting with the first prefix byte
+     * @param opcodeEnd the index of the first byte after the opcode, i.e. the number of prefix and opcode bytes
+     * @param limit the number of valid bytes in code
+     * @return the indices of the matching candidates, must not be modified
+     */
+    int[] select(byte[] code, int opcodeEnd, int limit) {
+        int key = 0;
+        if(peekByte && opcodeEnd < limit) {
+            int modRM = code[opcodeEnd] & 0xFF;
+            key = 1 + (((modRM >> 3) & 0x07) << 1) + ((modRM >> 6) == 3 ? 1 : 0);
+        }
+        key <<= prefixes.length;
+        for(int i = 0; i < prefixes.length; i++) {
+            for(int j = 0; j < opcodeEnd - prefixLengths[i]; j++) {
+                if((code[j] & 0xFF) == prefixes[i]) {
+                    key |= 1 << i;
+                    break;
+                }
+            }
+        }
+        if(checkFirstByte) {
+            key = (key << 1) | (opcodeEnd == 1 ? 1 : 0);
+        }
+        return candidates[key];
+    }
+
+    /**
+     * Returns the number of bytes that follow the opcode for a candidate and checks whether its operands are valid
+     * @param index the index of the candidate
+     * @param code the bytes of the instruction, starting with the first prefix byte
+     * @param opcodeEnd the index of the first byte after the opcode
+     * @param limit the number of valid bytes in code
+     * @param flags the prefix flags as returned by {@link OperandLayout#getFlags(Prefix)}
+     * @return the number of bytes or {@link OperandLayout#INVALID} if the operands are invalid
+     */
+    int getOperandLength(int index, byte[] code, int opcodeEnd, int limit, int flags) {
+        return layouts[index].getLength(code, opcodeEnd, limit, flags & flagMasks[index], leastRegs[index]);
+    }
+
+    /**
+     * Removes the mandatory prefix of a candidate from the prefix flags
+     * @param index the index of the candidate
+     * @param flags the prefix flags as returned by {@link OperandLayout#getFlags(Prefix)}
+     * @return the flags that remain for the operands
+     */
+    int hideMandatoryPrefix(int index, int flags) {
+        return flags & flagMasks[index];
+    }
+
+    /**
+     * Returns the number of bytes following the opcode for instructions that have no
+     * prefix or only the prefix of a table. The lengths are indexed by the byte following
+     * the opcode and are valid if that byte and the one after it are available. An entry
+     * can be {@link OperandLayout#INVALID}, {@link SyntaxSelector#NOT_CACHED} if the decode
+     * tree must be walked or have the {@link SyntaxSelector#SIB_BASE_5} flag.
+     * @param table {@link SyntaxSelector#NO_PREFIX}, {@link SyntaxSelector#OP_SIZE_PREFIX}
+     *        or {@link SyntaxSelector#REX_W_PREFIX}
+     * @return the lengths or null if the prefix of the table isn't a prefix in the execution mode
+     */
+    byte[] getLengths(int table) {
+        return lengthTables[table];
+    }
+
+    /**
+     * Returns whether a candidate is a prefix
+     * @param index the index of the candidate
+     * @return true iff the candidate belongs to the prefix group
+     */
+    boolean isPrefix(int index) {
+        return prefixGroups[index];
+    }
+
+    @Override
+    public OpcodeSyntax get(int index) {
+        return syntaxes[index];
+    }
+
+    @Override
+    public int size() {
+        return syntaxes.length;
+    }
+}
@@ -186,9 +186,12 @@ public final class X86CPU {
      * of the operand
      * @param ctx the context to analyze
      * @param opType the operand type
-     * @return the expected size of the operand
+     * @return the expected size of the operand or null if the type has no size
      */
     public static OperandSize getOperandSize(X86Context ctx, OperandType opType) {
+        if(opType == null) {
+            return null;
+        }
         switch(opType) {
         case BYTE:
             return OperandSize.O8;
@@ -262,7 +265,7 @@ public final class X86CPU {
         case FPU_SIMD_STATE:
             return OperandSize.O512;
         default:
-            throw new UnsupportedOperationException("invalid operand type: " + opType);
+            return null;
         }
     }
 
@@ -285,7 +288,7 @@ public final class X86CPU {
         case 14:return X86Register.R14B;
         case 15:return X86Register.R15B;
         default:
-            throw new UnsupportedOperationException("invalid generic 8 bit register: " + id);
+            return null;
         }
     }
 
@@ -308,7 +311,7 @@ public final class X86CPU {
         case 14:return X86Register.R14W;
         case 15:return X86Register.R15W;
         default:
-            throw new UnsupportedOperationException("invalid generic 16 bit register: " + id);
+            return null;
         }
     }
 
@@ -331,7 +334,7 @@ public final class X86CPU {
         case 14:return X86Register.R14D;
         case 15:return X86Register.R15D;
         default:
-            throw new UnsupportedOperationException("invalid generic 32 bit register: " + id);
+            return null;
         }
     }
 
@@ -354,7 +357,7 @@ public final class X86CPU {
         case 14:return X86Register.R14;
         case 15:return X86Register.R15;
         default:
-            throw new UnsupportedOperationException("invalid generic 64 bit register: " + id);
+            return null;
         }
     }
 
@@ -367,7 +370,7 @@ public final class X86CPU {
         case 4: return X86Register.FS;
         case 5: return X86Register.GS;
         default:
-            throw new UnsupportedOperationException("invalid segment register: " + id);
+            return null;
         }
     }
 
@@ -382,7 +385,7 @@ public final class X86CPU {
         case 6: return X86Register.ST6;
         case 7: return X86Register.ST7;
         default:
-            throw new UnsupportedOperationException("invalid FPU register: " + id);
+            return null;
         }
     }
 
@@ -397,7 +400,7 @@ public final class X86CPU {
         case 6: return X86Register.MM6;
         case 7: return X86Register.MM7;
         default:
-            throw new UnsupportedOperationException("invalid MMX register: " + id);
+            return null;
         }
     }
 
@@ -420,7 +423,7 @@ public final class X86CPU {
         case 14: return X86Register.XMM14;
         case 15: return X86Register.XMM15;
         default:
-            throw new UnsupportedOperationException("invalid XMM register: " + id);
+            return null;
         }
     }
 
@@ -431,7 +434,7 @@ public final class X86CPU {
         case 3: return X86Register.CR3;
         case 4: return X86Register.CR4;
         default:
-            throw new UnsupportedOperationException("invalid control register: " + id);
+            return null;
         }
     }
 
@@ -446,7 +449,7 @@ public final class X86CPU {
         case 6: return X86Register.DR6;
         case 7: return X86Register.DR7;
         default:
-            throw new UnsupportedOperationException("invalid debug register: " + id);
+            return null;
         }
     }
 
@@ -461,7 +464,7 @@ public final class X86CPU {
         case 6: return X86Register.TR6;
         case 7: return X86Register.TR7;
         default:
-            throw new UnsupportedOperationException("invalid test register: " + id);
+            return null;
         }
     }
 
@@ -470,11 +473,11 @@ public final class X86CPU {
      * that the number represents
      * @param ctx the context to analyze
      * @param id the register number
-     * @return the register represented by the number
+     * @return the register represented by the number or null if the number is invalid
      */
     public static X86Register getGenericAddressRegister(X86Context ctx, short id) {
         if(ctx.getExecMode() != ExecutionMode.LONG && id > 7) {
-            throw new UnsupportedOperationException("used 64 bit register id in 32 bit mode");
+            return null;
         }
         AddressSize adrSize = getAddressSize(ctx);
         switch(adrSize) {
@@ -491,19 +494,22 @@ public final class X86CPU {
      * @param op the operand description of the operand
      * @param ctx the context to analyze
      * @param id the register number
-     * @return the register represented by the number
+     * @return the register represented by the number or null if the number is invalid
      */
     private static X86Register getOperandRegisterGeneral(OperandDesc op, X86Context ctx, short id) {
         if(ctx.getExecMode() != ExecutionMode.LONG && id > 7) {
-            throw new UnsupportedOperationException("used 64 bit register id in 32 bit mode");
+            return null;
         }
         OperandSize opSize = getOperandSize(ctx, op.operType);
+        if(opSize == null) {
+            return null;
+        }
         switch(opSize) {
         case O8:    return getGenericRegister8(id);
         case O16:   return getGenericRegister16(id);
         case O32:   return getGenericRegister32(id);
         case O64:   return getGenericRegister64(id);
-        default:    throw new UnsupportedOperationException("invalid opSize: " + opSize);
+        default:    return null;
         }
     }
 
@@ -513,7 +519,7 @@ public final class X86CPU {
      * @param op the operand description of the operand
      * @param ctx the context to analyze
      * @param id the register number
-     * @return the register represented by the number
+     * @return the register represented by the number or null if the number is invalid for the operand
      */
     public static X86Register getOperandRegister(OperandDesc op, X86Context ctx, short id) {
         switch(op.adrType) {
@@ -550,10 +556,10 @@ public final class X86CPU {
             switch(op.directGroup) {
             case GENERIC:   return getOperandRegisterGeneral(op, ctx, id);
             case X87FPU:    return getFPURegister(id);
-            default:        throw new UnsupportedOperationException("invalid directGroup: " + op.directGroup);
+            default:        return null;
             }
         default:
-            throw new UnsupportedOperationException("invalid adrType: " + op.adrType);
+            return null;
         }
     }
 }
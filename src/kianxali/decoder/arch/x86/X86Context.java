@@ -24,7 +24,11 @@ public class X86Context implements Context {
     private Model model;
     private ExecutionMode execMode;
     private long instructionPointer;
-    private Prefix prefix;
+    private final Prefix prefix;
+    // scratch state for decoding, kept here so that the decoded instructions don't need to own it
+    private final Prefix savedPrefix;
+    private final ModRM modRMBuffer;
+    private byte[] codeBuffer;
 
     /**
      * Create a context for a certain CPU model in a given execution mode.
@@ -34,7 +38,10 @@ public class X86Context implements Context {
     public X86Context(Model model, ExecutionMode execMode) {
         this.model = model;
         this.execMode = execMode;
-        reset();
+        this.prefix = new Prefix();
+        this.savedPrefix = new Prefix();
+        this.modRMBuffer = new ModRM();
+        this.codeBuffer = new byte[16 + OperandLayout.MAX_LENGTH];
     }
 
     @Override
@@ -51,6 +58,23 @@ public class X86Context implements Context {
         return prefix;
     }
 
+    // used to restore the prefix flags if a syntax with a mandatory prefix doesn't match
+    Prefix getSavedPrefix() {
+        return savedPrefix;
+    }
+
+    ModRM getModRMBuffer() {
+        return modRMBuffer;
+    }
+
+    // returns a buffer for the bytes of an instruction that has at least the given length
+    byte[] getCodeBuffer(int length) {
+        if(codeBuffer.length < length) {
+            codeBuffer = new byte[length];
+        }
+        return codeBuffer;
+    }
+
     boolean acceptsOpcode(OpcodeSyntax syntax) {
         if(!syntax.getOpcodeEntry().isSupportedOn(model, execMode)) {
             return false;
@@ -78,7 +102,10 @@ public class X86Context implements Context {
     }
 
     void applyPrefix(X86Instruction inst) {
-        OpcodeEntry opcode = inst.getOpcode();
+        applyPrefix(inst.getOpcode());
+    }
+
+    void applyPrefix(OpcodeEntry opcode) {
         if(!opcode.belongsTo(OpcodeGroup.PREFIX)) {
             throw new UnsupportedOperationException("not a prefix");
         }
@@ -179,7 +206,7 @@ public class X86Context implements Context {
     }
 
     public void reset() {
-        prefix = new Prefix();
+        prefix.reset();
     }
 
     @Override
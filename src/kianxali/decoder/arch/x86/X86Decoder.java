@@ -1,8 +1,13 @@
 package kianxali.decoder.arch.x86;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -13,9 +18,11 @@ import kianxali.decoder.Context;
 import kianxali.decoder.DecodeTree;
 import kianxali.decoder.Decoder;
 import kianxali.decoder.Instruction;
+import kianxali.decoder.InstructionBuffer;
 import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
 import kianxali.decoder.arch.x86.X86CPU.Model;
 import kianxali.decoder.arch.x86.xml.OpcodeSyntax;
+import kianxali.decoder.arch.x86.xml.OpcodeTable;
 import kianxali.decoder.arch.x86.xml.XMLParserX86;
 import kianxali.loader.ByteSequence;
 
@@ -24,21 +31,32 @@ import org.xml.sax.SAXException;
 /**
  * An instruction decoder for the x86 architecture.
  * It uses an XML file to read the instruction set and creates a prefix
- * tree from that in order to parse opcodes and their operands.
+ * tree from that in order to parse opcodes and their operands. To avoid
+ * parsing the XML file on each start, a precompiled {@link OpcodeTable}
+ * is used if it was created during the build.
  * @author fwi
  *
  */
 public final class X86Decoder implements Decoder {
     private static final Logger LOG = Logger.getLogger("kianxali.decoder.arch.x86");
     private static XMLParserX86 parser;
+    private static OpcodeTable table;
+    // decode trees are never modified once built, so they are shared by all decoders of the same model and mode
+    private static final Map<Model, Map<ExecutionMode, DecodeTree<OpcodeSyntax>>> treeCache = new EnumMap<>(Model.class);
+    private static String[] mnemonicNames;
     private final DecodeTree<OpcodeSyntax> decodeTree;
+    private X86LengthDecoder lengthDecoder;
 
     private X86Decoder(DecodeTree<OpcodeSyntax> tree) {
         this.decodeTree = tree;
     }
 
     /**
-     * Construct a decoder for a given CPU
+     * Construct a decoder for a given CPU. If the precompiled opcode table
+     * is available on the class path and not older than the XML file, it will
+     * be used instead of parsing the XML file. The decode tree is only built
+     * and indexed once per CPU model and execution mode and then shared by all
+     * decoders, i.e. the XML file is only read on the first call.
      * @param cpu the CPU model to use
      * @param mode the execution mode to use
      * @param xmlPath path to the XML file that contains the instruction set
@@ -48,20 +66,89 @@ public final class X86Decoder implements Decoder {
      * @throws IOException if the XML file couldn't be read
      */
     public static synchronized X86Decoder fromXML(Model cpu, ExecutionMode mode, String xmlPath, String dtdPath) throws SAXException, IOException {
-        DecodeTree<OpcodeSyntax> tree = createDecodeTree(cpu, mode, xmlPath, dtdPath);
+        Map<ExecutionMode, DecodeTree<OpcodeSyntax>> modeTrees = treeCache.get(cpu);
+        if(modeTrees == null) {
+            modeTrees = new EnumMap<>(ExecutionMode.class);
+            treeCache.put(cpu, modeTrees);
+        }
+        DecodeTree<OpcodeSyntax> tree = modeTrees.get(mode);
+        if(tree == null) {
+            tree = createDecodeTree(cpu, mode, xmlPath, dtdPath);
+            SyntaxSelector.indexTree(tree, mode);
+            modeTrees.put(mode, tree);
+        }
         return new X86Decoder(tree);
     }
 
+    /**
+     * Parses the XML file and builds the filtered decode trees for all execution
+     * modes on {@link Model#ANY}. This is used at build time to create the
+     * precompiled opcode table.
+     * @param xmlPath path to the XML file that contains the instruction set
+     * @param dtdPath path to the DTD file that describes the syntax of the XML file
+     * @return the opcode table containing all syntaxes and decode trees
+     * @throws SAXException if the XML file couldn't be parsed
+     * @throws IOException if the XML file couldn't be read
+     */
+    public static OpcodeTable compileTable(String xmlPath, String dtdPath) throws SAXException, IOException {
+        XMLParserX86 xmlParser = new XMLParserX86();
+        xmlParser.loadXML(xmlPath, dtdPath);
+        List<OpcodeSyntax> syntaxes = xmlParser.getSyntaxEntries();
+        OpcodeTable res = new OpcodeTable(syntaxes);
+        for(ExecutionMode mode : ExecutionMode.values()) {
+            res.addTree(mode, buildDecodeTree(Model.ANY, mode, syntaxes));
+        }
+        return res;
+    }
+
     private static DecodeTree<OpcodeSyntax> createDecodeTree(Model cpu, ExecutionMode mode, String xmlPath, String dtdPath) throws SAXException, IOException {
+        if(table == null && parser == null) {
+            table = loadTable(xmlPath);
+        }
+
+        if(table != null) {
+            DecodeTree<OpcodeSyntax> tree = table.getTree(mode);
+            if(cpu == Model.ANY && tree != null) {
+                return tree;
+            }
+            return buildDecodeTree(cpu, mode, table.getSyntaxEntries());
+        }
+
         if(parser == null) {
             LOG.config("Creating x86 decoding tree from XML...");
             parser = new XMLParserX86();
             parser.loadXML(xmlPath, dtdPath);
         }
+        return buildDecodeTree(cpu, mode, parser.getSyntaxEntries());
+    }
+
+    // returns null if there is no precompiled table or if it is older than the XML file
+    private static OpcodeTable loadTable(String xmlPath) {
+        URL url = X86Decoder.class.getResource(OpcodeTable.RESOURCE_NAME);
+        if(url == null) {
+            return null;
+        }
+        try {
+            URLConnection connection = url.openConnection();
+            if(connection.getLastModified() < new File(xmlPath).lastModified()) {
+                LOG.config("Precompiled x86 opcode table is older than XML, ignoring it");
+                return null;
+            }
+            LOG.config("Loading precompiled x86 opcode table...");
+            try(InputStream in = connection.getInputStream()) {
+                return OpcodeTable.load(in);
+            }
+        } catch(IOException e) {
+            LOG.warning("Couldn't load precompiled x86 opcode table: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static DecodeTree<OpcodeSyntax> buildDecodeTree(Model cpu, ExecutionMode mode, List<OpcodeSyntax> syntaxes) {
         DecodeTree<OpcodeSyntax> tree = new DecodeTree<>();
 
         // build decode tree
-        for(final OpcodeSyntax entry : parser.getSyntaxEntries()) {
+        for(final OpcodeSyntax entry : syntaxes) {
             // if an opcode isn't supported on this model, don't put it into the tree
             if(!entry.getOpcodeEntry().isSupportedOn(cpu, mode)) {
                 continue;
@@ -187,46 +274,115 @@ public final class X86Decoder implements Decoder {
 
     @Override
     public Instruction decodeOpcode(Context context, ByteSequence seq) {
+        return decodeOpcode(context, seq, null);
+    }
+
+    @Override
+    public Instruction decodeOpcode(Context context, ByteSequence seq, Instruction reuse) {
         X86Context ctx = (X86Context) context;
         ctx.reset();
-        X86Instruction inst = decodeNext(seq, ctx, decodeTree);
-        return inst;
+        X86Instruction inst;
+        if(reuse instanceof X86Instruction) {
+            inst = (X86Instruction) reuse;
+        } else {
+            inst = new X86Instruction();
+        }
+        if(decodeNext(seq, ctx, decodeTree, inst)) {
+            return inst;
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public int decodeLength(Context context, ByteSequence seq) {
+        if(lengthDecoder == null) {
+            lengthDecoder = new X86LengthDecoder(decodeTree);
+        }
+        return lengthDecoder.decodeLength(seq);
+    }
+
+    @Override
+    public InstructionBuffer decodeRange(Context context, ByteSequence seq, long start, long end) {
+        X86Context ctx = (X86Context) context;
+        InstructionBuffer res = new InstructionBuffer(getMnemonicNames());
+        X86Instruction inst = new X86Instruction();
+        long address = start;
+        while(address < end && seq.hasMore()) {
+            ctx.reset();
+            ctx.setInstructionPointer(address);
+            long pos = seq.getPosition();
+            if(!decodeNext(seq, ctx, decodeTree, inst) || address + inst.getSize() > end) {
+                seq.seek(pos + 1);
+                res.add(address, 1, InstructionBuffer.NO_MNEMONIC, InstructionBuffer.FLOW_INVALID, InstructionBuffer.NO_TARGET, 0);
+                address++;
+                continue;
+            }
+
+            byte flow;
+            long target = inst.getBranchTarget();
+            if(inst.isFunctionCall()) {
+                flow = InstructionBuffer.FLOW_CALL;
+            } else if(inst.isUnconditionalJump()) {
+                flow = InstructionBuffer.FLOW_JUMP;
+            } else if(inst.stopsTrace()) {
+                flow = InstructionBuffer.FLOW_STOP;
+            } else if(target != InstructionBuffer.NO_TARGET) {
+                flow = InstructionBuffer.FLOW_BRANCH;
+            } else {
+                flow = InstructionBuffer.FLOW_NORMAL;
+            }
+            res.add(address, inst.getSize(), inst.getMnemonicOrdinal(), flow, target, inst.getOperandSummary());
+            address += inst.getSize();
+        }
+        return res;
+    }
+
+    private static String[] getMnemonicNames() {
+        if(mnemonicNames == null) {
+            X86Mnemonic[] mnemonics = X86Mnemonic.values();
+            String[] names = new String[mnemonics.length];
+            for(int i = 0; i < mnemonics.length; i++) {
+                names[i] = mnemonics[i].toString();
+            }
+            mnemonicNames = names;
+        }
+        return mnemonicNames;
     }
 
-    private X86Instruction decodeNext(ByteSequence sequence, X86Context ctx, DecodeTree<OpcodeSyntax> tree) {
+    private boolean decodeNext(ByteSequence sequence, X86Context ctx, DecodeTree<OpcodeSyntax> tree, X86Instruction inst) {
         if(!sequence.hasMore()) {
-            return null;
+            return false;
         }
         short s = sequence.readUByte();
         ctx.getPrefix().pushPrefixByte(s);
 
         DecodeTree<OpcodeSyntax> subTree = tree.getSubTree(s);
         if(subTree != null) {
-            X86Instruction res = decodeNext(sequence, ctx, subTree);
-            if(res != null) {
-                return res;
+            if(decodeNext(sequence, ctx, subTree, inst)) {
+                return true;
             }
         }
 
         // no success in sub tree -> could be in leaf
-        List<OpcodeSyntax> leaves = tree.getLeaves(s);
+        SyntaxSelector leaves = SyntaxSelector.getLeaves(tree, s);
         if(leaves == null) {
             sequence.skip(-1);
             ctx.getPrefix().popPrefixByte();
-            return null;
+            return false;
         }
 
-        X86Instruction inst = new X86Instruction(ctx.getInstructionPointer(), leaves);
+        inst.reset(ctx.getInstructionPointer(), leaves);
         if(!inst.decode(sequence, ctx)) {
             sequence.skip(-1);
             ctx.getPrefix().popPrefixByte();
-            return null;
+            return false;
         }
         if(inst.isPrefix()) {
             ctx.applyPrefix(inst);
-            return decodeNext(sequence, ctx, decodeTree);
+            return decodeNext(sequence, ctx, decodeTree, inst);
         } else {
-            return inst;
+            return true;
         }
     }
 }
@@ -8,8 +8,10 @@ import java.util.Map;
 
 import kianxali.decoder.Data;
 import kianxali.decoder.Instruction;
+import kianxali.decoder.InstructionBuffer;
 import kianxali.decoder.Operand;
 import kianxali.decoder.UsageType;
+import kianxali.decoder.arch.x86.X86CPU.OperandSize;
 import kianxali.decoder.arch.x86.X86CPU.Segment;
 import kianxali.decoder.arch.x86.X86CPU.X86Register;
 import kianxali.decoder.arch.x86.xml.OpcodeEntry;
@@ -22,114 +24,125 @@ import kianxali.util.OutputFormatter;
 /**
  * This class represents a fully decoded x86 instruction, e.g. including
  * all operands. Its main task is to select the correct syntax and parse
- * all operands.
+ * all operands. An instance can be reused for several instructions by
+ * calling {@link X86Instruction#reset(long, SyntaxSelector)} before decoding.
  * @author fwi
  *
  */
 class X86Instruction implements Instruction {
-    private final long memAddr;
-    private final List<OpcodeSyntax> syntaxes;
+    private long memAddr;
+    private SyntaxSelector candidates;
     private OpcodeSyntax syntax;
     private final List<Operand> operands;
-    private Short parsedExtension;
     private String prefixString;
     private short[] rawData;
+    private long operandPos;
     // the size is not known during while decoding operands, so this will cause a (desired) NullPointerException
     private Integer size;
 
-    public X86Instruction(long memAddr, List<OpcodeSyntax> leaves) {
-        this.memAddr = memAddr;
-        this.syntaxes = leaves;
+    public X86Instruction() {
         this.operands = new ArrayList<>(5);
     }
 
+    public X86Instruction(long memAddr, SyntaxSelector leaves) {
+        this();
+        reset(memAddr, leaves);
+    }
+
+    /**
+     * Prepares this instance for decoding a new instruction, discarding
+     * all previously decoded information.
+     * @param address the memory address of the new instruction
+     * @param leaves the candidate syntaxes for the new instruction
+     */
+    public void reset(long address, SyntaxSelector leaves) {
+        this.memAddr = address;
+        this.candidates = leaves;
+        this.syntax = null;
+        this.prefixString = null;
+        this.size = null;
+        operands.clear();
+    }
+
+    /**
+     * Selects the matching syntax from the candidates and decodes its operands.
+     * The candidates that match the opcode extension, mandatory prefix and ModR/M
+     * mode are looked up in the index of the leaf. The operand layout of the best
+     * one is checked before decoding the operands, so they are decoded only once.
+     * The next candidate is only tried if the registers or the length turn out
+     * to be invalid.
+     * @param seq the sequence to read from, positioned after the opcode bytes
+     * @param ctx the context containing the current prefixes
+     * @return true iff a syntax matched
+     */
     public boolean decode(ByteSequence seq, X86Context ctx) {
-        OpcodeSyntax selected = null;
-        int bestScore = 0;
-
-        for(OpcodeSyntax syn : syntaxes) {
-            this.syntax = syn;
-            int score;
-            long oldPos = seq.getPosition();
-            try {
-                score = tryDecode(seq, ctx);
-            } catch(Exception e) {
+        Prefix prefix = ctx.getPrefix();
+        int opcodeEnd = prefix.getPrefixByteCount();
+        // the prefix and opcode bytes followed by the bytes that the operands can use
+        byte[] code = ctx.getCodeBuffer(opcodeEnd + OperandLayout.MAX_LENGTH);
+        for(int i = 0; i < opcodeEnd; i++) {
+            code[i] = (byte) prefix.getPrefixByte(i);
+        }
+        int limit = opcodeEnd + seq.peek(code, opcodeEnd, OperandLayout.MAX_LENGTH);
+
+        int[] order = candidates.select(code, opcodeEnd, limit);
+        int flags = OperandLayout.getFlags(prefix);
+        syntax = null;
+        for(int i = 0; i < order.length; i++) {
+            int index = order[i];
+            if(candidates.getOperandLength(index, code, opcodeEnd, limit, flags) == OperandLayout.INVALID) {
                 continue;
-            } finally {
-                seq.seek(oldPos);
             }
 
-            if(score > bestScore) {
-                selected = syn;
-                bestScore = score;
-            }
-        }
-
-        syntax = selected;
-        if(syntax != null) {
-            Short needPrefix = syntax.getOpcodeEntry().prefix;
+            OpcodeSyntax candidate = candidates.get(index);
+            Short needPrefix = candidate.getOpcodeEntry().prefix;
             if(needPrefix != null) {
+                ctx.getSavedPrefix().copyFlags(prefix);
                 ctx.hidePrefix(needPrefix);
             }
-            prefixString = ctx.getPrefix().toString();
-            tryDecode(seq, ctx);
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    // the prefix has been read from seq already
-    // returns score where 0 means don't accept
-    public int tryDecode(ByteSequence seq, X86Context ctx) {
-        int score = 1;
-        Prefix prefix = ctx.getPrefix();
 
-        if(syntax.isExtended()) {
-            if(parsedExtension == null) {
-                if(syntax.getOpcodeEntry().secondOpcode != null) {
-                    // TODO: verify that this is always correct
-                    parsedExtension = (short) ((syntax.getOpcodeEntry().secondOpcode >> 3) & 0x07);
-                } else {
-                    parsedExtension = (short) ((seq.readUByte() >> 3) & 0x07);
-                    seq.skip(-1);
-                }
-            }
-            if(syntax.getExtension() != parsedExtension) {
-                return 0;
+            syntax = candidate;
+            if(decodeOperands(seq, ctx)) {
+                break;
             }
-        }
 
-        // check if required prefix is present, but only actual prefixes
-        Short needPrefix = syntax.getOpcodeEntry().prefix;
-        boolean prefixOk = true;
-        if(needPrefix != null) {
-            prefixOk = false;
-            List<Short> prefixBytes = prefix.prefixBytes;
-            for(int i = 0; i < prefixBytes.size() - syntax.getPrefix().length; i++) {
-                if(prefixBytes.get(i).equals(needPrefix)) {
-                    prefixOk = true;
-                    score++;
-                    break;
-                }
+            // can only happen if the layout doesn't match the operand decoding
+            seq.seek(operandPos);
+            if(needPrefix != null) {
+                prefix.copyFlags(ctx.getSavedPrefix());
             }
+            syntax = null;
+        }
+        // the buffer belongs to the context, so it must not keep the sequence
+        ctx.getModRMBuffer().clear();
+        if(syntax == null) {
+            return false;
         }
 
-        if(!prefixOk) {
-            return 0;
+        prefixString = prefix.toString();
+
+        // finally, retrieve the raw bytes
+        if(rawData == null || rawData.length != size) {
+            rawData = new short[size];
+        }
+        seq.skip(-size);
+        for(int i = 0; i < size; i++) {
+            rawData[i] = seq.readUByte();
         }
+        return true;
+    }
 
+    // decodes the operands of the selected syntax, returns false if they are invalid
+    private boolean decodeOperands(ByteSequence seq, X86Context ctx) {
+        Prefix prefix = ctx.getPrefix();
         operands.clear();
         ModRM modRM = null;
-        long operandPos = seq.getPosition();
+        operandPos = seq.getPosition();
 
+        // the operand layout has already checked that there are enough bytes left
         OpcodeEntry entry = syntax.getOpcodeEntry();
         if(entry.modRM) {
-            modRM = new ModRM(seq, ctx);
-            if(/*(syntax.isModRMMustMem() && !modRM.isRMMem()) || */(syntax.isModRMMustReg() && !modRM.isRMReg())) {
-                seq.skip(-1);
-                return 0;
-            }
+            modRM = ctx.getModRMBuffer().read(seq, ctx);
         }
 
         for(OperandDesc op : syntax.getOperands()) {
@@ -141,18 +154,15 @@ class X86Instruction implements Instruction {
                 operands.add(decodedOp);
             } else {
                 // failure to decode one operand -> failure to decode instruction
-                seq.seek(operandPos);
-                return 0;
+                return false;
             }
         }
-        size = (int) (prefix.prefixBytes.size() + seq.getPosition() - operandPos);
+        size = (int) (prefix.getPrefixByteCount() + seq.getPosition() - operandPos);
 
-        // now that the size is known, convert RelativeOps to ImmediateOps etc.
+        // now that the size is known, fix RIP-relative addresses
         for(int i = 0; i < operands.size(); i++) {
             Operand op = operands.get(i);
-            if(op instanceof RelativeOp) {
-                operands.set(i, ((RelativeOp) op).toImmediateOp(size));
-            } else if(op instanceof PointerOp) {
+            if(op instanceof PointerOp) {
                 PointerOp res = (PointerOp) op;
                 if(res.needsSizeFix()) {
                     res.setOffset(res.getOffset() + size);
@@ -160,19 +170,7 @@ class X86Instruction implements Instruction {
             }
         }
 
-        // prefer NOP over xchg eax, eax
-        if(syntax.getMnemonic() == X86Mnemonic.NOP && size == 1) {
-            score++;
-        }
-
-        // finally, retrieve the raw bytes
-        rawData = new short[size];
-        seq.skip(-size);
-        for(int i = 0; i < size; i++) {
-            rawData[i] = seq.readUByte();
-        }
-
-        return score;
+        return true;
     }
 
     public boolean isPrefix() {
@@ -201,23 +199,23 @@ class X86Instruction implements Instruction {
         case MOD_RM_R_XMM:
         case MOD_RM_R:
             if(modRM == null) {
-                modRM = new ModRM(seq, ctx);
+                modRM = ctx.getModRMBuffer().read(seq, ctx);
             }
             return modRM.getReg(op);
         case MOD_RM_R_FORCE_GEN: // sic!
             if(modRM == null) {
-                modRM = new ModRM(seq, ctx);
+                modRM = ctx.getModRMBuffer().read(seq, ctx);
             }
             return modRM.getMem(op, true, false);
         case MOD_RM_MUST_M:
             if(modRM == null) {
-                modRM = new ModRM(seq, ctx);
+                modRM = ctx.getModRMBuffer().read(seq, ctx);
             }
             return modRM.getMem(op, false, false);
         case MOD_RM_M_FPU_REG:
         case MOD_RM_M_XMM_REG:
             if(modRM == null) {
-                modRM = new ModRM(seq, ctx);
+                modRM = ctx.getModRMBuffer().read(seq, ctx);
             }
             return modRM.getMem(op, true, true);
         case MOD_RM_M_FORCE_GEN:
@@ -226,12 +224,12 @@ class X86Instruction implements Instruction {
         case MOD_RM_M_MMX:
         case MOD_RM_M:
             if(modRM == null) {
-                modRM = new ModRM(seq, ctx);
+                modRM = ctx.getModRMBuffer().read(seq, ctx);
             }
             return modRM.getMem(op, true, false);
         case DIRECT:
         case IMMEDIATE:             return decodeImmediate(seq, op, ctx);
-        case RELATIVE:              return decodeRelative(seq, op);
+        case RELATIVE:              return decodeRelative(seq, op, ctx);
         case ES_EDI_RDI: {
             // TODO: check
             PointerOp res;
@@ -242,7 +240,7 @@ class X86Instruction implements Instruction {
             default: throw new UnsupportedOperationException("unsupported address size: " + X86CPU.getAddressSize(ctx));
             }
             res.setSegment(Segment.ES);
-            res.setOpType(op.operType);
+            res.setOpType(ctx, op.operType);
             res.setUsage(op.usageType);
             return res;
         }
@@ -256,7 +254,7 @@ class X86Instruction implements Instruction {
             default: throw new UnsupportedOperationException("unsupported address size: " + X86CPU.getAddressSize(ctx));
             }
             res.setSegment(Segment.DS);
-            res.setOpType(op.operType);
+            res.setOpType(ctx, op.operType);
             res.setUsage(op.usageType);
             return res;
         }
@@ -264,14 +262,14 @@ class X86Instruction implements Instruction {
         case MOD_RM_XMM:
             // TODO: not sure about those two
             if(modRM == null) {
-                modRM = new ModRM(seq, ctx);
+                modRM = ctx.getModRMBuffer().read(seq, ctx);
             }
             return modRM.getMem(op, true, false);
         case SEGMENT2:
         case SEGMENT33:
         case SEGMENT30:
             X86Register reg = X86CPU.getOperandRegister(op, ctx, syntax.getOpcodeEntry().opcode);
-            return new RegisterOp(op.usageType, reg);
+            return getRegister(op, reg);
         case DS_EBX_AL_RBX: {
             PointerOp res;
             switch(X86CPU.getAddressSize(ctx)) {
@@ -280,7 +278,7 @@ class X86Instruction implements Instruction {
             case A64: res = new PointerOp(ctx, X86Register.RBX, 1, X86Register.AL); break;
             default: throw new UnsupportedOperationException("invalid address size: " + X86CPU.getAddressSize(ctx));
             }
-            res.setOpType(op.operType);
+            res.setOpType(ctx, op.operType);
             res.setUsage(op.usageType);
             res.setSegment(Segment.DS);
             return res;
@@ -294,7 +292,8 @@ class X86Instruction implements Instruction {
         }
     }
 
-    private Operand decodeRelative(ByteSequence seq, OperandDesc op) {
+    // relative operands are always the last operand, so the instruction size is known after reading it
+    private Operand decodeRelative(ByteSequence seq, OperandDesc op, X86Context ctx) {
         long relOffset;
         switch(op.operType) {
         case WORD_DWORD_S64:
@@ -307,7 +306,8 @@ class X86Instruction implements Instruction {
             throw new UnsupportedOperationException("unsupported relative type: " + op.operType);
         }
 
-        return new RelativeOp(op.usageType, memAddr, relOffset);
+        long instSize = ctx.getPrefix().getPrefixByteCount() + seq.getPosition() - operandPos;
+        return new ImmediateOp(op.usageType, memAddr + instSize + relOffset);
     }
 
     private Operand decodeImmediate(ByteSequence seq, OperandDesc op, X86Context ctx) {
@@ -315,6 +315,7 @@ class X86Instruction implements Instruction {
         if(op.hardcoded != null) {
             immediate = Long.parseLong(op.hardcoded, 16);
         } else {
+            OperandSize opSize = X86CPU.getOperandSize(ctx, op.operType);
             switch(op.operType) {
             case BYTE:
                 immediate = seq.readUByte();
@@ -332,7 +333,10 @@ class X86Instruction implements Instruction {
                 immediate = seq.readSDword();
                 break;
             case WORD_DWORD_64:
-                switch(X86CPU.getOperandSize(ctx, op.operType)) {
+                if(opSize == null) {
+                    return null;
+                }
+                switch(opSize) {
                 case O16:
                     immediate = seq.readUWord();
                     break;
@@ -347,23 +351,29 @@ class X86Instruction implements Instruction {
                         immediate = seq.readSQword();
                     }
                     break;
-                default: throw new UnsupportedOperationException("invalid size: " + X86CPU.getOperandSize(ctx, op.operType));
+                default: throw new UnsupportedOperationException("invalid size: " + opSize);
                 }
                 break;
             case WORD_DWORD_S64:
-                switch(X86CPU.getOperandSize(ctx, op.operType)) {
+                if(opSize == null) {
+                    return null;
+                }
+                switch(opSize) {
                 case O16: immediate = seq.readSWord(); break;
                 case O32: immediate = seq.readSDword(); break;
                 case O64: immediate = seq.readSDword(); break; // sign extended doesn't mean the immediate is 64 bit already
-                default: throw new UnsupportedOperationException("invalid size: " + X86CPU.getOperandSize(ctx, op.operType));
+                default: throw new UnsupportedOperationException("invalid size: " + opSize);
                 }
                 break;
             case POINTER: {
                 long seg, off;
-                switch(X86CPU.getOperandSize(ctx, op.operType)) {
+                if(opSize == null) {
+                    return null;
+                }
+                switch(opSize) {
                 case O16:  off = seq.readUWord(); break;
                 case O32:  off = seq.readUDword(); break;
-                default: throw new UnsupportedOperationException("unsupported pointer type: " + X86CPU.getOperandSize(ctx, op.operType));
+                default: throw new UnsupportedOperationException("unsupported pointer type: " + opSize);
                 }
                 seg = seq.readUWord();
                 return new ImmediateOp(op.usageType, seg, off);
@@ -384,23 +394,31 @@ class X86Instruction implements Instruction {
         default: throw new UnsupportedOperationException("invalid address size: " + X86CPU.getAddressSize(ctx));
         }
         PointerOp res = new PointerOp(ctx, offset);
-        res.setOpType(op.operType);
+        res.setOpType(ctx, op.operType);
         return res;
     }
 
     private Operand decodeLeastReg(OperandDesc op, X86Context ctx) {
-        int regIndex = ctx.getPrefix().prefixBytes.size() - 1 - syntax.getEncodedRegisterRelativeIndex();
-        short regId = (short) (ctx.getPrefix().prefixBytes.get(regIndex) & 0x7);
+        int regIndex = ctx.getPrefix().getPrefixByteCount() - 1 - syntax.getEncodedRegisterRelativeIndex();
+        short regId = (short) (ctx.getPrefix().getPrefixByte(regIndex) & 0x7);
         if(ctx.getPrefix().rexBPrefix) {
             regId |= 8;
         }
         X86Register reg = X86CPU.getOperandRegister(op, ctx, regId);
-        return new RegisterOp(op.usageType, reg);
+        return getRegister(op, reg);
     }
 
     private Operand decodeGroup(OperandDesc op, X86Context ctx) {
         X86Register reg = X86CPU.getOperandRegister(op, ctx, (short) op.numForGroup);
-        return new RegisterOp(op.usageType, reg);
+        return getRegister(op, reg);
+    }
+
+    // null if the register is invalid in the current context
+    private static Operand getRegister(OperandDesc op, X86Register reg) {
+        if(reg == null) {
+            return null;
+        }
+        return RegisterOp.get(op.usageType, reg);
     }
 
     // whether this instruction stops an execution trace
@@ -510,6 +528,61 @@ class X86Instruction implements Instruction {
         return res;
     }
 
+    /**
+     * Returns the first branch address like {@link X86Instruction#getBranchAddresses()},
+     * but without creating a list.
+     * @return the branch address or {@link InstructionBuffer#NO_TARGET}
+     */
+    long getBranchTarget() {
+        if(!syntax.getOpcodeEntry().belongsTo(OpcodeGroup.GENERAL_BRANCH)) {
+            return InstructionBuffer.NO_TARGET;
+        }
+
+        X86Mnemonic mnem = syntax.getMnemonic();
+        if(mnem == X86Mnemonic.RETF || mnem == X86Mnemonic.RETN) {
+            return InstructionBuffer.NO_TARGET;
+        }
+
+        for(int i = 0; i < operands.size(); i++) {
+            Operand op = operands.get(i);
+            if(op instanceof ImmediateOp) {
+                return ((ImmediateOp) op).getImmediate();
+            }
+        }
+        return InstructionBuffer.NO_TARGET;
+    }
+
+    /**
+     * Returns the number of operands combined with the OPERANDS flags of {@link InstructionBuffer}
+     * @return the operand summary of this instruction
+     */
+    int getOperandSummary() {
+        int res = Math.min(operands.size(), InstructionBuffer.OPERANDS_COUNT_MASK);
+        for(int i = 0; i < operands.size(); i++) {
+            Operand op = operands.get(i);
+            if(op instanceof RegisterOp) {
+                res |= InstructionBuffer.OPERANDS_REGISTER;
+            } else if(op instanceof PointerOp) {
+                res |= InstructionBuffer.OPERANDS_MEMORY;
+            } else if(op instanceof ImmediateOp) {
+                res |= InstructionBuffer.OPERANDS_IMMEDIATE;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns the ordinal of the mnemonic as used in {@link InstructionBuffer}
+     * @return the ordinal of the mnemonic or {@link InstructionBuffer#NO_MNEMONIC}
+     */
+    int getMnemonicOrdinal() {
+        X86Mnemonic mnem = syntax.getMnemonic();
+        if(mnem == null) {
+            return InstructionBuffer.NO_MNEMONIC;
+        }
+        return mnem.ordinal();
+    }
+
     @Override
     public Map<Data, Boolean> getAssociatedData() {
         Map<Data, Boolean> res = new HashMap<Data, Boolean>();
@@ -568,40 +641,3 @@ class X86Instruction implements Instruction {
         return syntax.getOpcodeEntry().briefDescription;
     }
 }
-
-// lives only temporarily, will be converted to ImmediateOp
-class RelativeOp implements Operand {
-    private final UsageType usage;
-    private final long relOffset, baseAddr;
-
-    public RelativeOp(UsageType usage, long baseAddr, long relOffset) {
-        this.usage = usage;
-        this.baseAddr = baseAddr;
-        this.relOffset = relOffset;
-    }
-
-    public ImmediateOp toImmediateOp(int instSize) {
-        return new ImmediateOp(usage, baseAddr + instSize + relOffset);
-    }
-
-    @Override
-    public UsageType getUsage() {
-        return usage;
-    }
-
-    @Override
-    public String asString(OutputFormatter options) {
-        return null;
-    }
-
-    @Override
-    public Number asNumber() {
-        return null;
-    }
-
-    @Override
-    public Short getPointerDestSize() {
-        return null;
-    }
-}
-
@@ -0,0 +1,186 @@
+package kianxali.decoder.arch.x86;
+
+import java.util.Arrays;
+
+import kianxali.decoder.DecodeTree;
+import kianxali.decoder.arch.x86.xml.OpcodeSyntax;
+import kianxali.loader.ByteSequence;
+
+/**
+ * Determines the length of x86 instructions without decoding their operands.
+ * The bytes of the instruction are copied into a buffer once. For instructions
+ * without prefixes or with only an operand size or REX.W prefix, the length is
+ * looked up in the tables that were computed for the leaves of the decode tree
+ * when it was indexed.
+ * Otherwise, the same decode tree is walked and the syntax is selected like in
+ * the full decoder, using the precomputed operand layouts. The prefixes are only
+ * tracked as flags and no objects are created.
+ * @author fwi
+ *
+ */
+class X86LengthDecoder {
+    private static final int INVALID = OperandLayout.INVALID;
+    private final DecodeTree<OpcodeSyntax> decodeTree;
+    // the lengths of the one byte opcodes without prefixes, null for bytes that have a sub tree
+    private final byte[][] rootLengths;
+    // the bytes of the current instruction, starting with the first prefix
+    private byte[] code;
+    // the number of valid bytes in code
+    private int limit;
+    // the prefix flags as used by OperandLayout
+    private int flags;
+    private ByteSequence seq;
+
+    public X86LengthDecoder(DecodeTree<OpcodeSyntax> tree) {
+        this.decodeTree = tree;
+        this.code = new byte[16 + OperandLayout.MAX_LENGTH];
+        this.rootLengths = new byte[256][];
+        for(short s = 0; s < 256; s++) {
+            SyntaxSelector leaves = SyntaxSelector.getLeaves(tree, s);
+            if(leaves != null && tree.getSubTree(s) == null) {
+                rootLengths[s] = leaves.getLengths(SyntaxSelector.NO_PREFIX);
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the instruction at the current position.
+     * The sequence will be positioned after the instruction if it could
+     * be decoded, otherwise the position will be unchanged.
+     * @param sequence the sequence to read from
+     * @return the length of the instruction in bytes or -1 if it couldn't be decoded
+     */
+    public int decodeLength(ByteSequence sequence) {
+        limit = sequence.peek(code, 0, code.length);
+        int res = lookupLength();
+        if(res == SyntaxSelector.NOT_CACHED) {
+            seq = sequence;
+            flags = 0;
+            res = decodeNext(decodeTree, 0);
+        }
+        seq = null;
+        if(res == INVALID) {
+            return INVALID;
+        }
+        sequence.skip(res);
+        return res;
+    }
+
+    // returns the length from the tables or NOT_CACHED if the tree must be walked
+    private int lookupLength() {
+        if(limit >= 3) {
+            byte[] lengths = rootLengths[code[0] & 0xFF];
+            if(lengths != null && lengths[code[1] & 0xFF] != SyntaxSelector.NOT_CACHED) {
+                return lookupLength(lengths, 1);
+            }
+        }
+        switch(code[0]) {
+        case 0x66:  return lookupLength(decodeTree, 1, SyntaxSelector.OP_SIZE_PREFIX);
+        case 0x48:  return lookupLength(decodeTree, 1, SyntaxSelector.REX_W_PREFIX);
+        default:    return lookupLength(decodeTree, 0, SyntaxSelector.NO_PREFIX);
+        }
+    }
+
+    // mirrors the tree walk of decodeNext for instructions that only have the prefix of a table
+    private int lookupLength(DecodeTree<OpcodeSyntax> tree, int pos, int table) {
+        if(pos + 2 >= limit) {
+            return SyntaxSelector.NOT_CACHED;
+        }
+        short s = (short) (code[pos] & 0xFF);
+        DecodeTree<OpcodeSyntax> subTree = tree.getSubTree(s);
+        if(subTree != null) {
+            int res = lookupLength(subTree, pos + 1, table);
+            if(res != INVALID) {
+                return res;
+            }
+        }
+        SyntaxSelector leaves = SyntaxSelector.getLeaves(tree, s);
+        if(leaves == null) {
+            return INVALID;
+        }
+        byte[] lengths = leaves.getLengths(table);
+        if(lengths == null) {
+            return SyntaxSelector.NOT_CACHED;
+        }
+        return lookupLength(lengths, pos + 1);
+    }
+
+    private int lookupLength(byte[] lengths, int opcodeEnd) {
+        int entry = lengths[code[opcodeEnd] & 0xFF];
+        if(entry < 0) {
+            return entry;
+        }
+        int res = opcodeEnd + (entry & ~SyntaxSelector.SIB_BASE_5);
+        if((entry & SyntaxSelector.SIB_BASE_5) != 0 && (code[opcodeEnd + 1] & 0x07) == 5) {
+            res += 4;
+        }
+        if(res > limit) {
+            // the tree walk might find a shorter candidate
+            return SyntaxSelector.NOT_CACHED;
+        }
+        return res;
+    }
+
+    // mirrors X86Decoder.decodeNext, returns the total length including all prefix and opcode bytes
+    private int decodeNext(DecodeTree<OpcodeSyntax> tree, int pos) {
+        if(pos >= limit) {
+            return INVALID;
+        }
+        short s = (short) (code[pos] & 0xFF);
+
+        DecodeTree<OpcodeSyntax> subTree = tree.getSubTree(s);
+        if(subTree != null) {
+            int res = decodeNext(subTree, pos + 1);
+            if(res != INVALID) {
+                return res;
+            }
+        }
+
+        SyntaxSelector leaves = SyntaxSelector.getLeaves(tree, s);
+        if(leaves == null) {
+            return INVALID;
+        }
+        int opcodeEnd = pos + 1;
+        if(opcodeEnd + OperandLayout.MAX_LENGTH > code.length) {
+            // many prefixes, the operands might not fit into the buffer
+            code = Arrays.copyOf(code, code.length * 2);
+            limit = seq.peek(code, 0, code.length);
+        }
+
+        int[] order = leaves.select(code, opcodeEnd, limit);
+        for(int i = 0; i < order.length; i++) {
+            int index = order[i];
+            int length = leaves.getOperandLength(index, code, opcodeEnd, limit, flags);
+            if(length == INVALID) {
+                continue;
+            }
+            flags = leaves.hideMandatoryPrefix(index, flags);
+            if(leaves.isPrefix(index)) {
+                applyPrefix(leaves.get(index).getOpcodeEntry().opcode);
+                return decodeNext(decodeTree, opcodeEnd);
+            }
+            return opcodeEnd + length;
+        }
+        return INVALID;
+    }
+
+    // mirrors X86Context#applyPrefix for the flags that change the operand lengths
+    private void applyPrefix(short opcode) {
+        if(opcode == 0x66) {
+            flags |= OperandLayout.OP_SIZE;
+        } else if(opcode == 0x67) {
+            flags |= OperandLayout.ADR_SIZE;
+        } else if(opcode >= 0x40 && opcode <= 0x4F) {
+            flags &= ~(OperandLayout.REX_W | OperandLayout.REX_R | OperandLayout.REX_B);
+            if((opcode & 8) != 0) {
+                flags |= OperandLayout.REX_W;
+            }
+            if((opcode & 4) != 0) {
+                flags |= OperandLayout.REX_R;
+            }
+            if((opcode & 1) != 0) {
+                flags |= OperandLayout.REX_B;
+            }
+        }
+    }
+}
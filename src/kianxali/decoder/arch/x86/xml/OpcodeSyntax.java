@@ -150,6 +150,22 @@ public class OpcodeSyntax {
         return Arrays.copyOf(res, i);
     }
 
+    /**
+     * Returns the number of bytes returned by {@link OpcodeSyntax#getPrefix()}
+     * without creating the array.
+     * @return the number of opcode bytes, excluding mandatory prefix
+     */
+    public int getPrefixLength() {
+        int len = 1;
+        if(entry.twoByte) {
+            len++;
+        }
+        if(entry.secondOpcode != null) {
+            len++;
+        }
+        return len;
+    }
+
     /**
      * Returns a hex string representation of the full opcode bytes,
      * including mandatory prefixes but excluding operands.
@@ -0,0 +1,384 @@
+package kianxali.decoder.arch.x86.xml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import kianxali.decoder.DecodeTree;
+import kianxali.decoder.UsageType;
+import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
+import kianxali.decoder.arch.x86.X86CPU.InstructionSetExtension;
+import kianxali.decoder.arch.x86.X86CPU.Model;
+import kianxali.decoder.arch.x86.X86Decoder;
+import kianxali.decoder.arch.x86.X86Mnemonic;
+import kianxali.decoder.arch.x86.xml.OperandDesc.AddressType;
+import kianxali.decoder.arch.x86.xml.OperandDesc.DirectGroup;
+import kianxali.decoder.arch.x86.xml.OperandDesc.OperandType;
+
+import org.xml.sax.SAXException;
+
+/**
+ * A precompiled, binary version of the x86 instruction set. It contains all
+ * {@link OpcodeSyntax} entries parsed from the XML document as well as the already
+ * filtered decode trees for each {@link ExecutionMode} on {@link Model#ANY}.
+ * It is created during the build by running the main method of this class so
+ * that the decoder doesn't need to parse the XML document on every start.
+ * @author fwi
+ *
+ */
+public class OpcodeTable {
+    private static final Logger LOG = Logger.getLogger("kianxali.decoder.arch.x86.xml");
+
+    /** Name of the class path resource that stores the table, relative to {@link X86Decoder} */
+    public static final String RESOURCE_NAME = "x86reference.bin";
+
+    private static final int MAGIC = 0x4B583836; // "KX86"
+    private static final int VERSION = 1;
+
+    private final List<OpcodeSyntax> syntaxes;
+    private final Map<ExecutionMode, DecodeTree<OpcodeSyntax>> trees;
+
+    /**
+     * Creates a new table for a list of syntax entries. The decode trees
+     * have to be added with {@link OpcodeTable#addTree(ExecutionMode, DecodeTree)}.
+     * @param syntaxes the syntax entries that make up the instruction set
+     */
+    public OpcodeTable(List<OpcodeSyntax> syntaxes) {
+        this.syntaxes = syntaxes;
+        this.trees = new EnumMap<>(ExecutionMode.class);
+    }
+
+    /**
+     * Stores a decode tree that was built and filtered for a given mode on {@link Model#ANY}.
+     * All leaves of the tree must be contained in the syntax list of this table.
+     * @param mode the execution mode the tree was built for
+     * @param tree the decode tree
+     */
+    public void addTree(ExecutionMode mode, DecodeTree<OpcodeSyntax> tree) {
+        trees.put(mode, tree);
+    }
+
+    /**
+     * Returns the precompiled decode tree for a given execution mode
+     * @param mode the execution mode
+     * @return the decode tree for this mode on {@link Model#ANY} or null if not contained
+     */
+    public DecodeTree<OpcodeSyntax> getTree(ExecutionMode mode) {
+        return trees.get(mode);
+    }
+
+    /**
+     * Returns a list of all the opcode syntaxes contained in the table.
+     * @return the syntax list as an unmodifiable list
+     */
+    public List<OpcodeSyntax> getSyntaxEntries() {
+        return Collections.unmodifiableList(syntaxes);
+    }
+
+    /**
+     * Compiles the XML document into a binary table file.
+     * Arguments: path to XML document, path to DTD, path to output file
+     * @param args the command line arguments
+     * @throws SAXException if the XML document couldn't be parsed
+     * @throws IOException if one of the files couldn't be read or written
+     */
+    public static void main(String[] args) throws SAXException, IOException {
+        if(args.length != 3) {
+            System.err.println("Usage: OpcodeTable <xml path> <dtd path> <output path>");
+            System.exit(1);
+        }
+        OpcodeTable table = X86Decoder.compileTable(args[0], args[1]);
+        try(OutputStream out = new FileOutputStream(args[2])) {
+            table.save(out);
+        }
+        LOG.info(String.format("Wrote %d opcode syntaxes to %s", table.syntaxes.size(), args[2]));
+    }
+
+    /**
+     * Writes the table to a stream.
+     * @param output the stream to write to, will not be closed
+     * @throws IOException if the stream couldn't be written
+     */
+    public void save(OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(X86Mnemonic.values().length);
+        out.writeInt(OpcodeGroup.values().length);
+
+        // opcode entries are shared between syntaxes, so store them once
+        Map<OpcodeEntry, Integer> entryIndex = new IdentityHashMap<>();
+        List<OpcodeEntry> entries = new ArrayList<>();
+        for(OpcodeSyntax syntax : syntaxes) {
+            OpcodeEntry entry = syntax.getOpcodeEntry();
+            if(!entryIndex.containsKey(entry)) {
+                entryIndex.put(entry, entries.size());
+                entries.add(entry);
+            }
+        }
+
+        out.writeInt(entries.size());
+        for(OpcodeEntry entry : entries) {
+            writeEntry(out, entry);
+        }
+
+        Map<OpcodeSyntax, Integer> syntaxIndex = new IdentityHashMap<>();
+        out.writeInt(syntaxes.size());
+        for(OpcodeSyntax syntax : syntaxes) {
+            syntaxIndex.put(syntax, syntaxIndex.size());
+            out.writeInt(entryIndex.get(syntax.getOpcodeEntry()));
+            writeSyntax(out, syntax);
+        }
+
+        out.writeInt(trees.size());
+        for(ExecutionMode mode : trees.keySet()) {
+            out.writeByte(mode.ordinal());
+            writeTree(out, trees.get(mode), syntaxIndex);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a table from a stream.
+     * @param input the stream to read from, will not be closed
+     * @return the table contained in the stream
+     * @throws IOException if the stream couldn't be read or has an invalid format
+     */
+    public static OpcodeTable load(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("not an opcode table or unsupported version");
+        }
+        if(in.readInt() != X86Mnemonic.values().length || in.readInt() != OpcodeGroup.values().length) {
+            throw new IOException("opcode table doesn't match the current mnemonics");
+        }
+
+        int entryCount = in.readInt();
+        List<OpcodeEntry> entries = new ArrayList<>(entryCount);
+        for(int i = 0; i < entryCount; i++) {
+            entries.add(readEntry(in));
+        }
+
+        int syntaxCount = in.readInt();
+        List<OpcodeSyntax> syntaxes = new ArrayList<>(syntaxCount);
+        for(int i = 0; i < syntaxCount; i++) {
+            OpcodeEntry entry = entries.get(in.readInt());
+            OpcodeSyntax syntax = readSyntax(in, entry);
+            entry.addSyntax(syntax);
+            syntaxes.add(syntax);
+        }
+
+        OpcodeTable res = new OpcodeTable(syntaxes);
+        int treeCount = in.readInt();
+        for(int i = 0; i < treeCount; i++) {
+            ExecutionMode mode = ExecutionMode.values()[in.readByte()];
+            DecodeTree<OpcodeSyntax> tree = new DecodeTree<>();
+            readTree(in, tree, new short[0], syntaxes);
+            res.addTree(mode, tree);
+        }
+        return res;
+    }
+
+    private static void writeEntry(DataOutputStream out, OpcodeEntry entry) throws IOException {
+        writeShort(out, entry.prefix);
+        out.writeBoolean(entry.twoByte);
+        out.writeShort(entry.opcode);
+        writeShort(out, entry.secondOpcode);
+        writeEnum(out, entry.mode);
+        out.writeBoolean(entry.modRM);
+        writeEnum(out, entry.instrExt);
+        writeString(out, entry.briefDescription);
+        out.writeByte(entry.groups.size());
+        for(OpcodeGroup group : entry.groups) {
+            out.writeByte(group.ordinal());
+        }
+        out.writeBoolean(entry.invalid);
+        out.writeBoolean(entry.undefined);
+        out.writeBoolean(entry.direction);
+        out.writeBoolean(entry.sgnExt);
+        out.writeBoolean(entry.opSize);
+        out.writeBoolean(entry.lock);
+        out.writeBoolean(entry.particular);
+        out.writeByte(entry.tttn);
+        writeEnum(out, entry.startModel);
+        writeEnum(out, entry.lastModel);
+        out.writeBoolean(entry.memFormat != null);
+        if(entry.memFormat != null) {
+            out.writeInt(entry.memFormat);
+        }
+    }
+
+    private static OpcodeEntry readEntry(DataInputStream in) throws IOException {
+        OpcodeEntry entry = new OpcodeEntry();
+        entry.prefix = readShort(in);
+        entry.twoByte = in.readBoolean();
+        entry.opcode = in.readShort();
+        entry.secondOpcode = readShort(in);
+        entry.mode = readEnum(in, ExecutionMode.values());
+        entry.modRM = in.readBoolean();
+        entry.instrExt = readEnum(in, InstructionSetExtension.values());
+        entry.briefDescription = readString(in);
+        int groupCount = in.readByte();
+        for(int i = 0; i < groupCount; i++) {
+            entry.addOpcodeGroup(OpcodeGroup.values()[in.readByte()]);
+        }
+        entry.invalid = in.readBoolean();
+        entry.undefined = in.readBoolean();
+        entry.direction = in.readBoolean();
+        entry.sgnExt = in.readBoolean();
+        entry.opSize = in.readBoolean();
+        entry.lock = in.readBoolean();
+        entry.particular = in.readBoolean();
+        entry.tttn = in.readByte();
+        entry.setStartProcessor(readEnum(in, Model.values()));
+        entry.setEndProcessor(readEnum(in, Model.values()));
+        if(in.readBoolean()) {
+            entry.memFormat = in.readInt();
+        }
+        return entry;
+    }
+
+    private static void writeSyntax(DataOutputStream out, OpcodeSyntax syntax) throws IOException {
+        writeShort(out, syntax.getExtension());
+        out.writeBoolean(syntax.isModRMMustMem());
+        out.writeBoolean(syntax.isModRMMustReg());
+        writeEnum(out, syntax.getMnemonic());
+        List<OperandDesc> operands = syntax.getOperands();
+        out.writeByte(operands.size());
+        for(OperandDesc op : operands) {
+            writeEnum(out, op.directGroup);
+            writeString(out, op.hardcoded);
+            out.writeLong(op.numForGroup);
+            out.writeBoolean(op.indirect);
+            out.writeBoolean(op.depends);
+            writeEnum(out, op.usageType);
+            writeEnum(out, op.adrType);
+            writeEnum(out, op.operType);
+        }
+    }
+
+    private static OpcodeSyntax readSyntax(DataInputStream in, OpcodeEntry entry) throws IOException {
+        OpcodeSyntax syntax;
+        Short extension = readShort(in);
+        if(extension != null) {
+            syntax = new OpcodeSyntax(entry, extension);
+        } else {
+            syntax = new OpcodeSyntax(entry);
+        }
+        syntax.setModRMMustMem(in.readBoolean());
+        syntax.setModRMMustReg(in.readBoolean());
+        syntax.setMnemonic(readEnum(in, X86Mnemonic.values()));
+        int opCount = in.readByte();
+        for(int i = 0; i < opCount; i++) {
+            OperandDesc op = new OperandDesc();
+            op.directGroup = readEnum(in, DirectGroup.values());
+            op.hardcoded = readString(in);
+            op.numForGroup = in.readLong();
+            op.indirect = in.readBoolean();
+            op.depends = in.readBoolean();
+            op.usageType = readEnum(in, UsageType.values());
+            op.adrType = readEnum(in, AddressType.values());
+            op.operType = readEnum(in, OperandType.values());
+            syntax.addOperand(op);
+        }
+        return syntax;
+    }
+
+    // a node is stored as its leaves followed by its sub trees
+    private static void writeTree(DataOutputStream out, DecodeTree<OpcodeSyntax> tree, Map<OpcodeSyntax, Integer> syntaxIndex) throws IOException {
+        out.writeShort(tree.getLeaveCodes().size());
+        for(short s : tree.getLeaveCodes()) {
+            List<OpcodeSyntax> leaves = tree.getLeaves(s);
+            out.writeByte(s);
+            out.writeShort(leaves.size());
+            for(OpcodeSyntax syntax : leaves) {
+                out.writeInt(syntaxIndex.get(syntax));
+            }
+        }
+        out.writeShort(tree.getSubTreeCodes().size());
+        for(short s : tree.getSubTreeCodes()) {
+            out.writeByte(s);
+            writeTree(out, tree.getSubTree(s), syntaxIndex);
+        }
+    }
+
+    private static void readTree(DataInputStream in, DecodeTree<OpcodeSyntax> root, short[] path, List<OpcodeSyntax> syntaxes) throws IOException {
+        short[] sequence = new short[path.length + 1];
+        System.arraycopy(path, 0, sequence, 0, path.length);
+
+        int leafCodes = in.readShort();
+        for(int i = 0; i < leafCodes; i++) {
+            sequence[path.length] = (short) in.readUnsignedByte();
+            int leafCount = in.readShort();
+            for(int j = 0; j < leafCount; j++) {
+                root.addEntry(sequence, syntaxes.get(in.readInt()));
+            }
+        }
+
+        int subTreeCodes = in.readShort();
+        for(int i = 0; i < subTreeCodes; i++) {
+            sequence[path.length] = (short) in.readUnsignedByte();
+            readTree(in, root, sequence.clone(), syntaxes);
+        }
+    }
+
+    private static void writeShort(DataOutputStream out, Short s) throws IOException {
+        out.writeBoolean(s != null);
+        if(s != null) {
+            out.writeShort(s);
+        }
+    }
+
+    private static Short readShort(DataInputStream in) throws IOException {
+        if(in.readBoolean()) {
+            return in.readShort();
+        }
+        return null;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        out.writeBoolean(str != null);
+        if(str != null) {
+            out.writeUTF(str);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        if(in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+
+    // enums are stored by ordinal + 1 so that 0 can represent null
+    private static void writeEnum(DataOutputStream out, Enum<?> value) throws IOException {
+        if(value == null) {
+            out.writeShort(0);
+        } else {
+            out.writeShort(value.ordinal() + 1);
+        }
+    }
+
+    private static <T extends Enum<T>> T readEnum(DataInputStream in, T[] values) throws IOException {
+        int ordinal = in.readShort();
+        if(ordinal == 0) {
+            return null;
+        }
+        if(ordinal > values.length) {
+            throw new IOException("invalid enum ordinal: " + (ordinal - 1));
+        }
+        return values[ordinal - 1];
+    }
+}
@@ -0,0 +1,614 @@
+package kianxali.disassembler;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import kianxali.decoder.DecodedEntity;
+
+/**
+ * A sorted map from memory addresses to data entries. The entries are not stored as
+ * objects but in parallel arrays that are split into pages of limited size: the address,
+ * the entity and the size and control flow of compact instructions. The arrays besides the
+ * addresses are only allocated when a page needs them and the pages grow in steps, so a
+ * compact instruction costs little more than a long, a short and a byte. The details that
+ * only few entries have, e.g. comments or function starts, are kept in a small list per page.
+ * The {@link DataEntry} instances returned by the map are immutable views of a slot that
+ * are created on each access.
+ * Changes must be synchronized by the caller, but the map can be read without
+ * locking while it is changed: Each page has a version that is odd while the page
+ * is changed, readers repeat their read if the version changed in the meantime.
+ * Iterators are weakly consistent, i.e. they never fail but might not reflect later changes.
+ * A snapshot shares the pages with the map. Pages that belong to a snapshot are never
+ * changed, the map replaces them with a copy when they are changed for the first time.
+ * The entries of a snapshot return its references, functions and instructions, see
+ * {@link AddressMap#snapshot(XrefIndex, InstructionCache, Map)}.
+ * @author fwi
+ *
+ */
+class AddressMap implements Iterable<DataEntry> {
+    private static final int PAGE_SIZE = 512;
+    // pages grow by this number of slots
+    private static final int GROW_SIZE = 64;
+
+    // the arrays of a page, replaced by a copy when the page grows or needs another array
+    private static class Slots {
+        final long[] keys;
+        // null if no slot of the page needs them, i.e. all slots are null or 0
+        final DecodedEntity[] entities;
+        // the size is 0 if the slot doesn't contain a compact instruction
+        final short[] sizes;
+        final byte[] flows;
+
+        Slots(int capacity, boolean withEntities, boolean compact) {
+            keys = new long[capacity];
+            entities = withEntities ? new DecodedEntity[capacity] : null;
+            sizes = compact ? new short[capacity] : null;
+            flows = compact ? new byte[capacity] : null;
+        }
+
+        // creates slots with the given range of these slots
+        Slots copy(int from, int to, int capacity, boolean withEntities, boolean compact) {
+            Slots res = new Slots(capacity, withEntities || entities != null, compact || sizes != null);
+            int count = to - from;
+            System.arraycopy(keys, from, res.keys, 0, count);
+            if(entities != null) {
+                System.arraycopy(entities, from, res.entities, 0, count);
+            }
+            if(sizes != null) {
+                System.arraycopy(sizes, from, res.sizes, 0, count);
+                System.arraycopy(flows, from, res.flows, 0, count);
+            }
+            return res;
+        }
+
+        // moves the slots starting at a position by a distance, the arrays must be large enough
+        void move(int pos, int size, int distance) {
+            int count = size - pos;
+            System.arraycopy(keys, pos, keys, pos + distance, count);
+            if(entities != null) {
+                System.arraycopy(entities, pos, entities, pos + distance, count);
+            }
+            if(sizes != null) {
+                System.arraycopy(sizes, pos, sizes, pos + distance, count);
+                System.arraycopy(flows, pos, flows, pos + distance, count);
+            }
+        }
+    }
+
+    // the details of a page sorted by their address, never changed but replaced by a copy
+    private static class DetailList {
+        final long[] keys;
+        final DataEntry.Details[] values;
+
+        DetailList(long[] keys, DataEntry.Details[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        DataEntry.Details get(long key) {
+            int pos = Arrays.binarySearch(keys, key);
+            return pos >= 0 ? values[pos] : null;
+        }
+
+        // returns a list with the details of a key replaced, null if the list would be empty
+        static DetailList with(DetailList list, long key, DataEntry.Details details) {
+            long[] keys = list != null ? list.keys : new long[0];
+            DataEntry.Details[] values = list != null ? list.values : new DataEntry.Details[0];
+            int pos = Arrays.binarySearch(keys, key);
+            if(pos >= 0) {
+                if(details != null) {
+                    DataEntry.Details[] newValues = values.clone();
+                    newValues[pos] = details;
+                    return new DetailList(keys, newValues);
+                } else if(keys.length == 1) {
+                    return null;
+                }
+                long[] newKeys = new long[keys.length - 1];
+                DataEntry.Details[] newValues = new DataEntry.Details[keys.length - 1];
+                System.arraycopy(keys, 0, newKeys, 0, pos);
+                System.arraycopy(values, 0, newValues, 0, pos);
+                System.arraycopy(keys, pos + 1, newKeys, pos, keys.length - pos - 1);
+                System.arraycopy(values, pos + 1, newValues, pos, keys.length - pos - 1);
+                return new DetailList(newKeys, newValues);
+            } else if(details == null) {
+                return list;
+            }
+            pos = -pos - 1;
+            long[] newKeys = new long[keys.length + 1];
+            DataEntry.Details[] newValues = new DataEntry.Details[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, pos);
+            System.arraycopy(values, 0, newValues, 0, pos);
+            newKeys[pos] = key;
+            newValues[pos] = details;
+            System.arraycopy(keys, pos, newKeys, pos + 1, keys.length - pos);
+            System.arraycopy(values, pos, newValues, pos + 1, keys.length - pos);
+            return new DetailList(newKeys, newValues);
+        }
+
+        // returns a list with the details of the keys in a range, null if there are none
+        static DetailList range(DetailList list, long first, long last) {
+            if(list == null) {
+                return null;
+            }
+            int from = Arrays.binarySearch(list.keys, first);
+            from = from >= 0 ? from : -from - 1;
+            int to = Arrays.binarySearch(list.keys, last);
+            to = to >= 0 ? to + 1 : -to - 1;
+            if(from >= to) {
+                return null;
+            } else if(from == 0 && to == list.keys.length) {
+                return list;
+            }
+            return new DetailList(Arrays.copyOfRange(list.keys, from, to), Arrays.copyOfRange(list.values, from, to));
+        }
+    }
+
+    private static class Page {
+        // volatile because the first key is read without checking the version
+        volatile Slots slots;
+        DetailList details;
+        final AtomicInteger version = new AtomicInteger();
+        // the generation of the map when the page was created
+        final int generation;
+        int size;
+
+        Page(int generation, Slots slots) {
+            this.generation = generation;
+            this.slots = slots;
+        }
+
+        // the first key of a published page never changes so that readers can find the page without locking
+        long firstKey() {
+            return slots.keys[0];
+        }
+
+        void beginChange() {
+            version.incrementAndGet();
+        }
+
+        void endChange() {
+            version.incrementAndGet();
+        }
+    }
+
+    // the array is replaced when a page is added or removed
+    private volatile AtomicReferenceArray<Page> pages;
+    private volatile int size;
+    // increased for each snapshot, pages of older generations are shared with a snapshot
+    private int generation;
+    // the references of the entries
+    private final XrefIndex xrefs;
+    private volatile InstructionCache instructionCache;
+    // only for snapshots: the copies that replace the functions in the details of the entries
+    private final Map<Function, Function> frozenFunctions;
+
+    /**
+     * Creates an empty map
+     * @param xrefs the index that stores the references of the entries
+     */
+    public AddressMap(XrefIndex xrefs) {
+        this.xrefs = xrefs;
+        this.frozenFunctions = null;
+        this.pages = new AtomicReferenceArray<>(0);
+    }
+
+    private AddressMap(XrefIndex xrefs, InstructionCache instructionCache, Map<Function, Function> frozenFunctions,
+            AtomicReferenceArray<Page> pages, int size) {
+        this.xrefs = xrefs;
+        this.instructionCache = instructionCache;
+        this.frozenFunctions = frozenFunctions;
+        this.pages = pages;
+        this.size = size;
+    }
+
+    /**
+     * Returns the index that stores the references of the entries
+     * @return the cross-reference index of the map
+     */
+    public XrefIndex getXrefs() {
+        return xrefs;
+    }
+
+    /**
+     * Sets the cache that decodes the compact instructions of the returned entries
+     * @param instructionCache the cache, must be set before compact instructions are stored
+     */
+    public void setInstructionCache(InstructionCache instructionCache) {
+        this.instructionCache = instructionCache;
+    }
+
+    /**
+     * Creates a map that contains the current entries and won't change anymore.
+     * It shares the pages with this map, so only the page array is copied.
+     * Must be synchronized with the changes.
+     * @param xrefSnapshot the snapshot of the references, returned by the entries of the snapshot
+     * @param cacheSnapshot the cache that decodes the compact instructions of the snapshot or null
+     * @param functions the copies of the functions that the entries of the snapshot return instead of the functions
+     * @return the snapshot of the map
+     */
+    public AddressMap snapshot(XrefIndex xrefSnapshot, InstructionCache cacheSnapshot, Map<Function, Function> functions) {
+        AtomicReferenceArray<Page> ps = pages;
+        AtomicReferenceArray<Page> copy = new AtomicReferenceArray<>(ps.length());
+        for(int i = 0; i < ps.length(); i++) {
+            copy.lazySet(i, ps.get(i));
+        }
+        generation++;
+        return new AddressMap(xrefSnapshot, cacheSnapshot, functions, copy, size);
+    }
+
+    // returns the index of the last page whose first key is <= key, or 0
+    private static int findPage(AtomicReferenceArray<Page> pages, long key) {
+        int low = 0, high = pages.length() - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(pages.get(mid).firstKey() <= key) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the entry for an address
+     * @param memAddr the address to look up
+     * @return the entry stored for this address or null
+     */
+    public DataEntry get(long memAddr) {
+        return find(memAddr, false);
+    }
+
+    /**
+     * Returns the entry with the greatest address that is lower than or equal to an address
+     * @param memAddr the address to look up
+     * @return the entry or null if there is no entry at or below the address
+     */
+    public DataEntry floor(long memAddr) {
+        return find(memAddr, true);
+    }
+
+    private DataEntry find(long memAddr, boolean floor) {
+        while(true) {
+            AtomicReferenceArray<Page> ps = pages;
+            if(ps.length() == 0) {
+                return null;
+            }
+            Page page = ps.get(findPage(ps, memAddr));
+            int stamp = page.version.get();
+            if((stamp & 1) == 0) {
+                Slots slots = page.slots;
+                // the size can be ahead of the slots while the page grows
+                int pos = Arrays.binarySearch(slots.keys, 0, Math.min(page.size, slots.keys.length), memAddr);
+                if(floor && pos < -1) {
+                    // the key is lower than the first key only for the first page
+                    pos = -pos - 2;
+                }
+                if(pos < 0) {
+                    if(page.version.compareAndSet(stamp, stamp)) {
+                        return null;
+                    }
+                } else {
+                    long key = slots.keys[pos];
+                    DecodedEntity entity = slots.entities != null ? slots.entities[pos] : null;
+                    short compactSize = slots.sizes != null ? slots.sizes[pos] : 0;
+                    byte compactFlow = slots.flows != null ? slots.flows[pos] : 0;
+                    DetailList details = page.details;
+                    DataEntry.Details detail = details != null ? details.get(key) : null;
+                    // the compare and set orders the reads before a following change
+                    if(page.version.compareAndSet(stamp, stamp)) {
+                        return createEntry(key, entity, detail, compactSize, compactFlow);
+                    }
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    private DataEntry createEntry(long key, DecodedEntity entity, DataEntry.Details details, short compactSize, byte compactFlow) {
+        if(frozenFunctions != null && details != null && (details.startFunction != null || details.endFunction != null)) {
+            // the stored details are shared with the map, so they are copied
+            details = details.copy();
+            details.startFunction = freeze(details.startFunction);
+            details.endFunction = freeze(details.endFunction);
+        }
+        return new DataEntry(this, compactSize != 0 ? instructionCache : null, key, entity, details, compactSize, compactFlow);
+    }
+
+    private Function freeze(Function function) {
+        Function res = function != null ? frozenFunctions.get(function) : null;
+        return res != null ? res : function;
+    }
+
+    /**
+     * Stores an entry under its address, replacing an entry that is stored under that address.
+     * Only the contents of the entry are stored, the entry itself isn't kept.
+     * @param entry the entry to store
+     */
+    public void put(DataEntry entry) {
+        long key = entry.getAddress();
+        AtomicReferenceArray<Page> ps = pages;
+        if(ps.length() == 0) {
+            Page page = new Page(generation, new Slots(GROW_SIZE, false, false));
+            insertAt(page, 0, entry);
+            pages = insert(ps, 0, page);
+            size++;
+            return;
+        }
+
+        int pageIndex = findPage(ps, key);
+        Page page = ps.get(pageIndex);
+        int pos = Arrays.binarySearch(page.slots.keys, 0, page.size, key);
+        if(pos >= 0) {
+            page = changePage(ps, pageIndex);
+            page.beginChange();
+            setSlot(page, pos, entry);
+            page.endChange();
+            return;
+        }
+        pos = -pos - 1;
+
+        if(page.size < PAGE_SIZE) {
+            if(pos == 0) {
+                // the first key changes, so the page is replaced by a copy
+                Page copy = copy(page, 0, page.size);
+                insertAt(copy, 0, entry);
+                ps.set(pageIndex, copy);
+            } else {
+                page = changePage(ps, pageIndex);
+                page.beginChange();
+                insertAt(page, pos, entry);
+                page.endChange();
+            }
+        } else if(pos == PAGE_SIZE) {
+            // appending, which is the usual case when analyzing in address order: start a new page
+            Page next = new Page(generation, new Slots(GROW_SIZE, false, false));
+            insertAt(next, 0, entry);
+            pages = insert(ps, pageIndex + 1, next);
+        } else {
+            // split the page in half, the old page isn't changed so readers can still use it
+            int half = PAGE_SIZE / 2;
+            Page first = copy(page, 0, half);
+            Page second = copy(page, half, PAGE_SIZE);
+            if(pos > half) {
+                insertAt(second, pos - half, entry);
+            } else {
+                insertAt(first, pos, entry);
+            }
+            AtomicReferenceArray<Page> newPages = insert(ps, pageIndex + 1, second);
+            newPages.set(pageIndex, first);
+            pages = newPages;
+        }
+        size++;
+    }
+
+    // returns a page that can be changed in place, replacing a page of a snapshot with a copy
+    private Page changePage(AtomicReferenceArray<Page> ps, int index) {
+        Page page = ps.get(index);
+        if(page.generation != generation) {
+            page = copy(page, 0, page.size);
+            ps.set(index, page);
+        }
+        return page;
+    }
+
+    // the capacity for a number of slots, leaving room for at least one more if possible
+    private static int capacity(int count) {
+        return Math.min(PAGE_SIZE, (count / GROW_SIZE + 1) * GROW_SIZE);
+    }
+
+    // creates an unpublished page with the given entries of a page
+    private Page copy(Page page, int from, int to) {
+        Slots slots = page.slots;
+        Page res = new Page(generation, slots.copy(from, to, capacity(to - from), false, false));
+        res.details = DetailList.range(page.details, slots.keys[from], slots.keys[to - 1]);
+        res.size = to - from;
+        return res;
+    }
+
+    // stores the contents of an entry in a slot, replacing the slots if they lack an array that is needed
+    private static void setSlot(Page page, int pos, DataEntry entry) {
+        DecodedEntity entity = entry.getStoredEntity();
+        short compactSize = entry.getCompactSize();
+        Slots slots = page.slots;
+        boolean needEntities = slots.entities == null && entity != null;
+        boolean needCompact = slots.sizes == null && compactSize != 0;
+        if(needEntities || needCompact) {
+            slots = slots.copy(0, page.size, slots.keys.length, needEntities, needCompact);
+            page.slots = slots;
+        }
+
+        slots.keys[pos] = entry.getAddress();
+        if(slots.entities != null) {
+            slots.entities[pos] = entity;
+        }
+        if(slots.sizes != null) {
+            slots.sizes[pos] = compactSize;
+            slots.flows[pos] = entry.getCompactFlow();
+        }
+
+        DataEntry.Details details = entry.getDetails();
+        if(details != null || page.details != null) {
+            page.details = DetailList.with(page.details, entry.getAddress(), details);
+        }
+    }
+
+    private static void insertAt(Page page, int pos, DataEntry entry) {
+        Slots slots = page.slots;
+        if(page.size == slots.keys.length) {
+            slots = slots.copy(0, page.size, capacity(page.size), false, false);
+            page.slots = slots;
+        }
+        slots.move(pos, page.size, 1);
+        page.size++;
+        setSlot(page, pos, entry);
+    }
+
+    // copies the pages, leaving out the page at the index
+    private static AtomicReferenceArray<Page> remove(AtomicReferenceArray<Page> pages, int index) {
+        AtomicReferenceArray<Page> res = new AtomicReferenceArray<>(pages.length() - 1);
+        for(int i = 0; i < res.length(); i++) {
+            res.lazySet(i, pages.get(i < index ? i : i + 1));
+        }
+        return res;
+    }
+
+    // copies the pages, inserting a page at the index
+    private static AtomicReferenceArray<Page> insert(AtomicReferenceArray<Page> pages, int index, Page page) {
+        AtomicReferenceArray<Page> res = new AtomicReferenceArray<>(pages.length() + 1);
+        for(int i = 0; i < res.length(); i++) {
+            if(i == index) {
+                res.lazySet(i, page);
+            } else {
+                res.lazySet(i, pages.get(i < index ? i : i - 1));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Removes the entry of an address
+     * @param memAddr the address to remove
+     * @return the removed entry or null if there was no entry for the address
+     */
+    public DataEntry remove(long memAddr) {
+        AtomicReferenceArray<Page> ps = pages;
+        if(ps.length() == 0) {
+            return null;
+        }
+        int pageIndex = findPage(ps, memAddr);
+        Page page = ps.get(pageIndex);
+        int pos = Arrays.binarySearch(page.slots.keys, 0, page.size, memAddr);
+        if(pos < 0) {
+            return null;
+        }
+        DataEntry res = entryAt(page, pos);
+
+        if(page.size == 1) {
+            pages = remove(ps, pageIndex);
+        } else if(pos == 0) {
+            // the first key changes, so the page is replaced by a copy
+            ps.set(pageIndex, copy(page, 1, page.size));
+        } else {
+            page = changePage(ps, pageIndex);
+            page.beginChange();
+            Slots slots = page.slots;
+            slots.move(pos + 1, page.size, -1);
+            page.size--;
+            if(slots.entities != null) {
+                // don't keep the removed entity alive
+                slots.entities[page.size] = null;
+            }
+            page.details = DetailList.with(page.details, memAddr, null);
+            page.endChange();
+        }
+        size--;
+        return res;
+    }
+
+    // only for the writer, which doesn't race with changes
+    private DataEntry entryAt(Page page, int pos) {
+        Slots slots = page.slots;
+        long key = slots.keys[pos];
+        return createEntry(key,
+                slots.entities != null ? slots.entities[pos] : null,
+                page.details != null ? page.details.get(key) : null,
+                slots.sizes != null ? slots.sizes[pos] : 0,
+                slots.flows != null ? slots.flows[pos] : 0);
+    }
+
+    /**
+     * Returns the number of entries in the map
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Iterates the entries in the order of their addresses
+     */
+    @Override
+    public Iterator<DataEntry> iterator() {
+        return iterator(Long.MIN_VALUE);
+    }
+
+    /**
+     * Iterates the entries in the order of their addresses, starting at an address
+     * @param from the lowest address to return
+     * @return an iterator over the entries at or above the address
+     */
+    public Iterator<DataEntry> iterator(final long from) {
+        final AtomicReferenceArray<Page> ps = pages;
+        return new Iterator<DataEntry>() {
+            // a copy of the slots of the current page
+            private final long[] keys = new long[PAGE_SIZE];
+            private final DecodedEntity[] entities = new DecodedEntity[PAGE_SIZE];
+            private final short[] sizes = new short[PAGE_SIZE];
+            private final byte[] flows = new byte[PAGE_SIZE];
+            private DetailList details;
+            private int pageIndex = findPage(ps, from) - 1, pos, count;
+
+            @Override
+            public boolean hasNext() {
+                while(pos == count && pageIndex + 1 < ps.length()) {
+                    pageIndex++;
+                    pos = 0;
+                    count = copyPage(ps.get(pageIndex));
+                    while(pos < count && keys[pos] < from) {
+                        pos++;
+                    }
+                }
+                return pos < count;
+            }
+
+            private int copyPage(Page page) {
+                while(true) {
+                    int stamp = page.version.get();
+                    if((stamp & 1) == 0) {
+                        Slots slots = page.slots;
+                        int res = Math.min(page.size, slots.keys.length);
+                        System.arraycopy(slots.keys, 0, keys, 0, res);
+                        if(slots.entities != null) {
+                            System.arraycopy(slots.entities, 0, entities, 0, res);
+                        } else {
+                            Arrays.fill(entities, 0, res, null);
+                        }
+                        if(slots.sizes != null) {
+                            System.arraycopy(slots.sizes, 0, sizes, 0, res);
+                            System.arraycopy(slots.flows, 0, flows, 0, res);
+                        } else {
+                            Arrays.fill(sizes, 0, res, (short) 0);
+                            Arrays.fill(flows, 0, res, (byte) 0);
+                        }
+                        details = page.details;
+                        if(page.version.compareAndSet(stamp, stamp)) {
+                            return res;
+                        }
+                    }
+                    Thread.yield();
+                }
+            }
+
+            @Override
+            public DataEntry next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long key = keys[pos];
+                DataEntry res = createEntry(key, entities[pos], details != null ? details.get(key) : null, sizes[pos], flows[pos]);
+                pos++;
+                return res;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,96 @@
+package kianxali.disassembler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import kianxali.loader.Section;
+
+/**
+ * The address ranges of the sections of an image file, sorted and merged so that
+ * each address belongs to at most one range. Sections can overlap, e.g. the end
+ * address of an ELF section is the start address of the next one.
+ * @author fwi
+ *
+ */
+class AddressRanges {
+    private final long[] starts, ends;
+
+    /**
+     * Creates the ranges for a list of sections
+     * @param sections the sections, overlapping sections are merged into one range
+     */
+    public AddressRanges(List<Section> sections) {
+        List<Section> sorted = new ArrayList<>(sections);
+        Collections.sort(sorted, new Comparator<Section>() {
+            @Override
+            public int compare(Section o1, Section o2) {
+                return Long.compare(o1.getStartAddress(), o2.getStartAddress());
+            }
+        });
+
+        List<long[]> ranges = new ArrayList<>(sorted.size());
+        for(Section section : sorted) {
+            long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if(last != null && section.getStartAddress() <= last[1]) {
+                last[1] = Math.max(last[1], section.getEndAddress());
+            } else {
+                ranges.add(new long[] {section.getStartAddress(), section.getEndAddress()});
+            }
+        }
+
+        this.starts = new long[ranges.size()];
+        this.ends = new long[ranges.size()];
+        for(int i = 0; i < ranges.size(); i++) {
+            starts[i] = ranges.get(i)[0];
+            ends[i] = ranges.get(i)[1];
+        }
+    }
+
+    /**
+     * Returns the number of ranges
+     * @return the number of ranges
+     */
+    public int size() {
+        return starts.length;
+    }
+
+    /**
+     * Returns the range containing an address
+     * @param memAddr the address to look up
+     * @return the index of the range containing the address or -1
+     */
+    public int find(long memAddr) {
+        int low = 0, high = starts.length - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(memAddr < starts[mid]) {
+                high = mid - 1;
+            } else if(memAddr > ends[mid]) {
+                low = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the first address of a range
+     * @param index the index of the range
+     * @return the first address of the range
+     */
+    public long getStart(int index) {
+        return starts[index];
+    }
+
+    /**
+     * Returns the number of addresses in a range
+     * @param index the index of the range
+     * @return the size of the range in bytes
+     */
+    public long getSize(int index) {
+        return ends[index] - starts[index] + 1;
+    }
+}
@@ -0,0 +1,76 @@
+package kianxali.disassembler;
+
+import kianxali.loader.ImageFile;
+
+/**
+ * A set of memory addresses that uses one bit per byte of each section
+ * of an image file. Addresses outside of the sections are never contained
+ * and can't be added.
+ * @author fwi
+ *
+ */
+class AddressSet {
+    private final AddressRanges ranges;
+    private final LongBitSet[] bits;
+
+    /**
+     * Creates an empty set for the sections of an image file
+     * @param imageFile the image file whose sections determine the valid addresses
+     */
+    public AddressSet(ImageFile imageFile) {
+        this.ranges = new AddressRanges(imageFile.getSections());
+        this.bits = new LongBitSet[ranges.size()];
+        for(int i = 0; i < bits.length; i++) {
+            bits[i] = new LongBitSet();
+        }
+    }
+
+    /**
+     * Adds an address to the set
+     * @param memAddr the address to add
+     * @return true if the address was added, false if it was already contained or is outside of the sections
+     */
+    public boolean add(long memAddr) {
+        int index = ranges.find(memAddr);
+        if(index == -1) {
+            return false;
+        }
+        long bit = memAddr - ranges.getStart(index);
+        if(bits[index].get(bit)) {
+            return false;
+        }
+        bits[index].set(bit);
+        return true;
+    }
+
+    /**
+     * Checks whether an address is contained in the set
+     * @param memAddr the address to check
+     * @return true iff the address is contained
+     */
+    public boolean contains(long memAddr) {
+        int index = ranges.find(memAddr);
+        if(index == -1) {
+            return false;
+        }
+        return bits[index].get(memAddr - ranges.getStart(index));
+    }
+
+    /**
+     * Removes an address from the set
+     * @param memAddr the address to remove
+     * @return true if the address was contained
+     */
+    public boolean remove(long memAddr) {
+        int index = ranges.find(memAddr);
+        if(index == -1) {
+            return false;
+        }
+        long bit = memAddr - ranges.getStart(index);
+        if(!bits[index].get(bit)) {
+            return false;
+        }
+        bits[index].clear(bit);
+        return true;
+    }
+}
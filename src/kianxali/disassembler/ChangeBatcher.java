@@ -0,0 +1,177 @@
+package kianxali.disassembler;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the changed address ranges of a {@link DisassemblyData} and passes them to the
+ * {@link DataRangeListener} instances in batches. Overlapping and adjacent ranges are combined.
+ * The batches are delivered by a notifier thread after a given delay, or earlier if a batch
+ * contains a given number of changes. The thread ends when no more changes arrive during
+ * a delay, it is started again by the next change.
+ * @author fwi
+ *
+ */
+class ChangeBatcher {
+    private static final Logger LOG = Logger.getLogger("kianxali.disassembler.notifier");
+
+    private final DisassemblyData data;
+    private final CopyOnWriteArraySet<DataRangeListener> listeners;
+    // start address -> end address of the changed ranges
+    private final TreeMap<Long, Long> ranges;
+    // the range that was changed last, it is only added to the map when another range is changed
+    private long currentStart, currentEnd;
+    private boolean hasCurrent;
+    private int changeCount;
+    private int maxDelay, maxChanges;
+    private Thread notifier;
+
+    /**
+     * Creates a batcher that delivers the changes at most every 100 milliseconds or
+     * after 4096 changes
+     * @param data the data whose entries are passed to the listeners
+     */
+    public ChangeBatcher(DisassemblyData data) {
+        this.data = data;
+        this.listeners = new CopyOnWriteArraySet<>();
+        this.ranges = new TreeMap<>();
+        this.maxDelay = 100;
+        this.maxChanges = 4096;
+    }
+
+    public void addListener(DataRangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(DataRangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Sets how often the listeners are called
+     * @param maxDelay the time in milliseconds after which a change is delivered
+     * @param maxChanges the number of changes after which a batch is delivered earlier
+     */
+    public synchronized void setRate(int maxDelay, int maxChanges) {
+        if(maxDelay < 0 || maxChanges < 1) {
+            throw new IllegalArgumentException("invalid notification rate");
+        }
+        this.maxDelay = maxDelay;
+        this.maxChanges = maxChanges;
+        notifyAll();
+    }
+
+    /**
+     * Marks an address range as changed
+     * @param start the first changed address
+     * @param end the first address after the change
+     */
+    public synchronized void add(long start, long end) {
+        if(hasCurrent && start <= currentEnd && end >= currentStart) {
+            // the usual case when decoding in address order: extend the current range
+            currentStart = Math.min(currentStart, start);
+            currentEnd = Math.max(currentEnd, end);
+        } else {
+            if(hasCurrent) {
+                merge(currentStart, currentEnd);
+            }
+            currentStart = start;
+            currentEnd = end;
+            hasCurrent = true;
+        }
+        countChange();
+    }
+
+    // adds a range to the map, combining it with overlapping and adjacent ranges
+    private void merge(long start, long end) {
+        Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+        if(floor != null && floor.getValue() >= start) {
+            if(floor.getValue() >= end) {
+                return;
+            }
+            start = floor.getKey();
+            ranges.remove(start);
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while(next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+    }
+
+    private void countChange() {
+        changeCount++;
+        if(notifier == null) {
+            notifier = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deliverBatches();
+                }
+            }, "Data notifier");
+            notifier.setDaemon(true);
+            notifier.start();
+        } else if(changeCount >= maxChanges) {
+            notifyAll();
+        }
+    }
+
+    private void deliverBatches() {
+        while(true) {
+            ChangedRanges batch = takeBatch();
+            if(batch == null) {
+                return;
+            }
+            for(DataRangeListener listener : listeners) {
+                try {
+                    listener.onRangeChange(batch);
+                } catch(RuntimeException e) {
+                    LOG.log(Level.WARNING, "Listener failed: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    // waits for the next batch, returns null and ends the notifier if there were no more changes
+    private synchronized ChangedRanges takeBatch() {
+        long deadline = System.currentTimeMillis() + maxDelay;
+        long wait = maxDelay;
+        while(changeCount < maxChanges && wait > 0) {
+            try {
+                wait(wait);
+            } catch(InterruptedException e) {
+                break;
+            }
+            wait = deadline - System.currentTimeMillis();
+        }
+
+        if(hasCurrent) {
+            merge(currentStart, currentEnd);
+            hasCurrent = false;
+        }
+        if(ranges.isEmpty()) {
+            notifier = null;
+            return null;
+        }
+
+        long[] starts = new long[ranges.size()];
+        long[] ends = new long[ranges.size()];
+        int i = 0;
+        for(Map.Entry<Long, Long> range : ranges.entrySet()) {
+            starts[i] = range.getKey();
+            ends[i] = range.getValue();
+            i++;
+        }
+        ranges.clear();
+        changeCount = 0;
+        return new ChangedRanges(data, starts, ends);
+    }
+}
@@ -0,0 +1,57 @@
+package kianxali.disassembler;
+
+import java.util.List;
+
+/**
+ * A batch of changed address ranges that is passed to a {@link DataRangeListener}.
+ * The ranges are sorted and don't overlap. An entry that starts in a range might have changed,
+ * an entry that started in a range before and is missing now was removed.
+ * @author fwi
+ *
+ */
+public final class ChangedRanges {
+    private final DisassemblyData data;
+    private final long[] starts, ends;
+
+    ChangedRanges(DisassemblyData data, long[] starts, long[] ends) {
+        this.data = data;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * Returns the number of ranges in this batch
+     * @return the number of ranges
+     */
+    public int getCount() {
+        return starts.length;
+    }
+
+    /**
+     * Returns the first address of a range
+     * @param index the index of the range
+     * @return the first changed address of the range
+     */
+    public long getStart(int index) {
+        return starts[index];
+    }
+
+    /**
+     * Returns the end of a range
+     * @param index the index of the range
+     * @return the first address after the range
+     */
+    public long getEnd(int index) {
+        return ends[index];
+    }
+
+    /**
+     * Returns the entries that currently start in a range. As the analysis continues,
+     * they can be newer than the batch.
+     * @param index the index of the range
+     * @return the entries starting in the range, sorted by their address
+     */
+    public List<DataEntry> getEntries(int index) {
+        return data.getEntriesInRange(starts[index], ends[index]);
+    }
+}
@@ -0,0 +1,109 @@
+package kianxali.disassembler;
+
+import java.util.Arrays;
+
+/**
+ * A priority queue of code addresses that have to be analyzed, lowest address first.
+ * It is implemented as a binary heap on primitive arrays so that queuing an address
+ * doesn't allocate an object.
+ * @author fwi
+ *
+ */
+class CodeWorkQueue {
+    private long[] addresses;
+    // whether the trace should only be added if it runs without decoder errors
+    private boolean[] careful;
+    private int size;
+
+    /**
+     * Creates an empty queue
+     */
+    public CodeWorkQueue() {
+        this.addresses = new long[64];
+        this.careful = new boolean[64];
+    }
+
+    /**
+     * Adds an address to the queue
+     * @param address the start address of the trace
+     * @param isCareful whether the trace was only guessed
+     */
+    public void add(long address, boolean isCareful) {
+        if(size == addresses.length) {
+            addresses = Arrays.copyOf(addresses, size * 2);
+            careful = Arrays.copyOf(careful, size * 2);
+        }
+        int pos = size++;
+        while(pos > 0) {
+            int parent = (pos - 1) / 2;
+            if(addresses[parent] <= address) {
+                break;
+            }
+            addresses[pos] = addresses[parent];
+            careful[pos] = careful[parent];
+            pos = parent;
+        }
+        addresses[pos] = address;
+        careful[pos] = isCareful;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns an address in the queue, the order is unspecified
+     * @param index the index of the address, must be lower than {@link CodeWorkQueue#size()}
+     * @return the address at the given index
+     */
+    public long get(int index) {
+        return addresses[index];
+    }
+
+    /**
+     * Returns the lowest address in the queue
+     * @return the lowest address, the queue must not be empty
+     */
+    public long peekAddress() {
+        return addresses[0];
+    }
+
+    /**
+     * Returns whether the trace at the lowest address was only guessed
+     * @return the careful flag of the lowest address, the queue must not be empty
+     */
+    public boolean peekCareful() {
+        return careful[0];
+    }
+
+    /**
+     * Removes the lowest address from the queue
+     */
+    public void remove() {
+        size--;
+        long address = addresses[size];
+        boolean isCareful = careful[size];
+        int pos = 0;
+        while(true) {
+            int child = 2 * pos + 1;
+            if(child >= size) {
+                break;
+            }
+            if(child + 1 < size && addresses[child + 1] < addresses[child]) {
+                child++;
+            }
+            if(address <= addresses[child]) {
+                break;
+            }
+            addresses[pos] = addresses[child];
+            careful[pos] = careful[child];
+            pos = child;
+        }
+        addresses[pos] = address;
+        careful[pos] = isCareful;
+    }
+}
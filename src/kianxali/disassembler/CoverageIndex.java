@@ -0,0 +1,161 @@
+package kianxali.disassembler;
+
+import java.util.List;
+
+import kianxali.loader.Section;
+
+/**
+ * Maps each byte of the sections of an image file to the start of the instruction
+ * or data that covers it, so that covering entities can be found in constant time.
+ * Each byte stores the distance to the start of its entity and whether the entity
+ * is an instruction. The memory is allocated in pages when the first entity of
+ * a page is added.
+ * The index can be read without synchronization, but changes must be synchronized
+ * by the caller.
+ * @author fwi
+ *
+ */
+class CoverageIndex {
+    /** returned by {@link CoverageIndex#findStart(long)} if the address is not covered */
+    public static final long NOT_COVERED = -1;
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    // 0: not covered, 1..0x7F: instruction starting (value - 1) bytes before,
+    // 0x80..0xFE: data starting (value - 0x80) bytes before, 0xFF: data starting further away
+    private static final int UNCOVERED = 0;
+    private static final int DATA = 0x80;
+    private static final int MAX_DISTANCE = 0x7E;
+    private static final int FAR_DATA = 0xFF;
+
+    private final AddressRanges ranges;
+    private final byte[][][] pages;
+
+    /**
+     * Creates an empty index for the given sections
+     * @param sections the sections whose bytes can be covered
+     */
+    public CoverageIndex(List<Section> sections) {
+        this.ranges = new AddressRanges(sections);
+        this.pages = new byte[ranges.size()][][];
+        for(int i = 0; i < pages.length; i++) {
+            pages[i] = new byte[(int) ((ranges.getSize(i) + PAGE_SIZE - 1) >>> PAGE_BITS)][];
+        }
+    }
+
+    /**
+     * Checks whether the index is responsible for an address, i.e. whether it lies in a section
+     * @param memAddr the address to check
+     * @return true if the address is contained in one of the sections
+     */
+    public boolean isIndexed(long memAddr) {
+        return ranges.find(memAddr) != -1;
+    }
+
+    private int get(long memAddr) {
+        int index = ranges.find(memAddr);
+        if(index == -1) {
+            return UNCOVERED;
+        }
+        long offset = memAddr - ranges.getStart(index);
+        byte[] page = pages[index][(int) (offset >>> PAGE_BITS)];
+        if(page == null) {
+            return UNCOVERED;
+        }
+        return page[(int) (offset & (PAGE_SIZE - 1))] & 0xFF;
+    }
+
+    private void set(long memAddr, int value) {
+        int index = ranges.find(memAddr);
+        if(index == -1) {
+            return;
+        }
+        long offset = memAddr - ranges.getStart(index);
+        byte[][] sectionPages = pages[index];
+        int pageIndex = (int) (offset >>> PAGE_BITS);
+        byte[] page = sectionPages[pageIndex];
+        if(page == null) {
+            if(value == UNCOVERED) {
+                return;
+            }
+            page = new byte[PAGE_SIZE];
+            sectionPages[pageIndex] = page;
+        }
+        page[(int) (offset & (PAGE_SIZE - 1))] = (byte) value;
+    }
+
+    /**
+     * Marks the bytes of an entity as covered by it
+     * @param start the start address of the entity
+     * @param size the size of the entity in bytes
+     * @param instruction true if the entity is an instruction, false for data
+     */
+    public void cover(long start, int size, boolean instruction) {
+        for(int i = 0; i < size; i++) {
+            int value;
+            if(instruction) {
+                // instructions are never longer than 15 bytes
+                value = 1 + i;
+            } else if(i <= MAX_DISTANCE) {
+                value = DATA + i;
+            } else {
+                value = FAR_DATA;
+            }
+            set(start + i, value);
+        }
+    }
+
+    /**
+     * Removes the coverage of an entity. Bytes that are covered by a different entity
+     * by now are not changed.
+     * @param start the start address of the entity
+     * @param size the size of the entity in bytes
+     */
+    public void uncover(long start, int size) {
+        for(int i = 0; i < size; i++) {
+            if(findStart(start + i) == start) {
+                set(start + i, UNCOVERED);
+            }
+        }
+    }
+
+    /**
+     * Returns the start address of the entity that covers an address
+     * @param memAddr the address to look up
+     * @return the start address of the covering entity or {@link CoverageIndex#NOT_COVERED}
+     */
+    public long findStart(long memAddr) {
+        int value = get(memAddr);
+        while(value == FAR_DATA) {
+            // long data, every byte closer to the start has a smaller distance
+            memAddr -= MAX_DISTANCE;
+            value = get(memAddr);
+        }
+        if(value == UNCOVERED) {
+            return NOT_COVERED;
+        } else if(value < DATA) {
+            return memAddr - (value - 1);
+        } else {
+            return memAddr - (value - DATA);
+        }
+    }
+
+    /**
+     * Checks whether an address is covered by an instruction or data
+     * @param memAddr the address to check
+     * @return true if an entity covers the address
+     */
+    public boolean isCovered(long memAddr) {
+        return get(memAddr) != UNCOVERED;
+    }
+
+    /**
+     * Checks whether an instruction starts at an address
+     * @param memAddr the address to check
+     * @return true if the address is the first byte of an instruction
+     */
+    public boolean isInstructionStart(long memAddr) {
+        return get(memAddr) == 1;
+    }
+}
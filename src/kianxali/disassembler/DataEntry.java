@@ -1,11 +1,10 @@
 package kianxali.disassembler;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import kianxali.decoder.Data;
 import kianxali.decoder.DecodedEntity;
 import kianxali.decoder.Instruction;
+import kianxali.decoder.InstructionBuffer;
 import kianxali.loader.ImageFile;
 import kianxali.loader.Section;
 
@@ -13,24 +12,108 @@ import kianxali.loader.Section;
  * This class represents all information that can be associated with a memory address,
  * such as the start of a function, actual instructions, data, comments made by the user
  * etc.
- * The setter methods are package private because the entries should be made through the
+ * An entry is an immutable view of the memory map at the time it was returned, the
+ * map doesn't store the entries themselves. Changes must be made through the
  * {@link DisassemblyData} class so the listeners get informed.
+ * In the compact storage mode, instructions are not kept but only their size and
+ * control flow. They will be decoded again when {@link DataEntry#getEntity()} is called.
+ * The entries of a {@link DisassemblySnapshot} return the references, functions and
+ * instructions of the time the snapshot was created, even if the bytes were patched since.
  * @author fwi
  *
  */
 public class DataEntry {
     private final long address;
-    private ImageFile startImageFile;
-    private Section startSection, endSection;
-    private Function startFunction, endFunction;
-    private DecodedEntity entity;
-    private Data attachedData;
-    private String comment;
-    private final Map<DataEntry, Boolean> references;
-
-    DataEntry(long address) {
+    private final DecodedEntity entity;
+    // null for most entries since they are plain instructions
+    private final Details details;
+    // the map that returned the entry, its cross-reference index stores the references
+    private final AddressMap map;
+    // only used for compact instructions, i.e. if compactSize is not 0
+    private final InstructionCache instructionCache;
+    private final short compactSize;
+    private final byte compactFlow;
+
+    // the information that only few entries have, never changed once it is stored in the memory map
+    static class Details {
+        Data attachedData;
+        ImageFile startImageFile;
+        Section startSection, endSection;
+        Function startFunction, endFunction;
+        String comment;
+
+        Details copy() {
+            Details res = new Details();
+            res.attachedData = attachedData;
+            res.startImageFile = startImageFile;
+            res.startSection = startSection;
+            res.endSection = endSection;
+            res.startFunction = startFunction;
+            res.endFunction = endFunction;
+            res.comment = comment;
+            return res;
+        }
+
+        boolean isEmpty() {
+            return attachedData == null && startImageFile == null && startSection == null && endSection == null
+                    && startFunction == null && endFunction == null && comment == null;
+        }
+    }
+
+    DataEntry(AddressMap map, InstructionCache instructionCache, long address, DecodedEntity entity,
+            Details details, short compactSize, byte compactFlow) {
+        this.map = map;
+        this.instructionCache = instructionCache;
         this.address = address;
-        references = new HashMap<>();
+        this.entity = entity;
+        this.details = details;
+        this.compactSize = compactSize;
+        this.compactFlow = compactFlow;
+    }
+
+    // creates an entry without any information
+    DataEntry(AddressMap map, long address) {
+        this(map, null, address, null, null, (short) 0, (byte) 0);
+    }
+
+    DecodedEntity getStoredEntity() {
+        return entity;
+    }
+
+    Details getDetails() {
+        return details;
+    }
+
+    short getCompactSize() {
+        return compactSize;
+    }
+
+    byte getCompactFlow() {
+        return compactFlow;
+    }
+
+    boolean isCompact() {
+        return compactSize != 0;
+    }
+
+    // returns an entry with a different entity, replacing a compact instruction
+    DataEntry withEntity(DecodedEntity newEntity) {
+        return new DataEntry(map, null, address, newEntity, details, (short) 0, (byte) 0);
+    }
+
+    // only stores the size and flow of the instruction, it will be decoded again on demand
+    DataEntry withCompactInstruction(Instruction inst, InstructionCache cache) {
+        return new DataEntry(map, cache, address, null, details, (short) inst.getSize(), getFlow(inst));
+    }
+
+    // returns a copy of the details that can be changed and passed to withDetails
+    Details copyDetails() {
+        return details != null ? details.copy() : new Details();
+    }
+
+    DataEntry withDetails(Details newDetails) {
+        Details res = newDetails.isEmpty() ? null : newDetails;
+        return new DataEntry(map, instructionCache, address, entity, res, compactSize, compactFlow);
     }
 
     /**
@@ -41,10 +124,6 @@ public class DataEntry {
         return address;
     }
 
-    void attachData(Data data) {
-        this.attachedData = data;
-    }
-
     /**
      * Get the data object that is associated with this entry,
      * e.g. for lea eax, offset "some string" it will return the
@@ -52,33 +131,17 @@ public class DataEntry {
      * @return the data object associated with this entry or null
      */
     public Data getAttachedData() {
-        return attachedData;
-    }
-
-    void clearAttachedData() {
-        attachedData = null;
-    }
-
-    void clearReferences() {
-        references.clear();
-    }
-
-    void addReferenceFrom(DataEntry src, boolean isWrite) {
-        references.put(src, isWrite);
-    }
-
-    boolean removeReference(DataEntry src) {
-        Boolean res = references.remove(src);
-        return (res != null);
+        return details != null ? details.attachedData : null;
     }
 
     /**
      * Get all from-references to this entry, i.e. all locations that
      * refer to this address. The boolean is true iff it is a write-access.
+     * The references of an entry of a snapshot are those of the snapshot.
      * @return a set of entries that refer to this address
      */
     public Map<DataEntry, Boolean> getReferences() {
-        return Collections.unmodifiableMap(references);
+        return DisassemblyData.getReferences(map, map.getXrefs(), address, false);
     }
 
     /**
@@ -94,35 +157,54 @@ public class DataEntry {
      * @return true if {@link DataEntry#getEntity()} is of type {@link Instruction}
      */
     public boolean hasInstruction() {
-        return entity instanceof Instruction;
-    }
-
-    void setStartImageFile(ImageFile startImageFile) {
-        this.startImageFile = startImageFile;
-    }
-
-    void setStartSection(Section startSection) {
-        this.startSection = startSection;
-    }
-
-    void setStartFunction(Function startFunction) {
-        this.startFunction = startFunction;
+        return entity instanceof Instruction || compactSize != 0;
     }
 
-    void setEntity(DecodedEntity entity) {
-        this.entity = entity;
+    /**
+     * Checks if this entry contains an instruction or data
+     * @return true if {@link DataEntry#getEntity()} is not null
+     */
+    public boolean hasEntity() {
+        return entity != null || compactSize != 0;
     }
 
-    void setEndFunction(Function endFunction) {
-        this.endFunction = endFunction;
+    /**
+     * Returns the size of the entity without decoding compact instructions
+     * @return the size of the contained entity in bytes or 0 if there is no entity
+     */
+    public int getEntitySize() {
+        if(entity != null) {
+            return entity.getSize();
+        } else if(compactSize != 0) {
+            return compactSize;
+        }
+        return 0;
     }
 
-    void setEndSection(Section endSection) {
-        this.endSection = endSection;
+    /**
+     * Returns the control flow of the contained instruction without decoding compact instructions
+     * @return one of the FLOW constants of {@link InstructionBuffer}, FLOW_INVALID if there is no instruction
+     */
+    public byte getInstructionFlow() {
+        if(compactSize != 0) {
+            return compactFlow;
+        } else if(entity instanceof Instruction) {
+            return getFlow((Instruction) entity);
+        }
+        return InstructionBuffer.FLOW_INVALID;
     }
 
-    void setComment(String comment) {
-        this.comment = comment;
+    private static byte getFlow(Instruction inst) {
+        if(inst.isFunctionCall()) {
+            return InstructionBuffer.FLOW_CALL;
+        } else if(inst.isUnconditionalJump()) {
+            return InstructionBuffer.FLOW_JUMP;
+        } else if(inst.stopsTrace()) {
+            return InstructionBuffer.FLOW_STOP;
+        } else if(!inst.getBranchAddresses().isEmpty()) {
+            return InstructionBuffer.FLOW_BRANCH;
+        }
+        return InstructionBuffer.FLOW_NORMAL;
     }
 
     /**
@@ -130,7 +212,7 @@ public class DataEntry {
      * @return the image file associated with this address if it starts the image, or null
      */
     public ImageFile getStartImageFile() {
-        return startImageFile;
+        return details != null ? details.startImageFile : null;
     }
 
     /**
@@ -138,15 +220,16 @@ public class DataEntry {
      * @return the section started by this address or null
      */
     public Section getStartSection() {
-        return startSection;
+        return details != null ? details.startSection : null;
     }
 
     /**
-     * Returns the function if this address is the start of a function
+     * Returns the function if this address is the start of a function.
+     * Entries of a snapshot return a copy that can't be renamed.
      * @return the function started by this address or null
      */
     public Function getStartFunction() {
-        return startFunction;
+        return details != null ? details.startFunction : null;
     }
 
     /**
@@ -154,6 +237,9 @@ public class DataEntry {
      * @return the entity contained in this entry or null
      */
     public DecodedEntity getEntity() {
+        if(compactSize != 0) {
+            return instructionCache.get(address);
+        }
         return entity;
     }
 
@@ -162,15 +248,16 @@ public class DataEntry {
      * @return the user comment stored at this entry or null
      */
     public String getComment() {
-        return comment;
+        return details != null ? details.comment : null;
     }
 
     /**
-     * Returns the function that ends on this address
+     * Returns the function that ends on this address.
+     * Entries of a snapshot return a copy that can't be renamed.
      * @return the function that ends on this address or null
      */
     public Function getEndFunction() {
-        return endFunction;
+        return details != null ? details.endFunction : null;
     }
 
     /**
@@ -178,7 +265,7 @@ public class DataEntry {
      * @return the section ended by this address or null
      */
     public Section getEndSection() {
-        return endSection;
+        return details != null ? details.endSection : null;
     }
 
     @Override
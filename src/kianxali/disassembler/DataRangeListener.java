@@ -0,0 +1,21 @@
+package kianxali.disassembler;
+
+/**
+ * A listener that is informed about the changes of the {@link DisassemblyData} in batches.
+ * The changes are collected for a while and the changed addresses are combined into ranges,
+ * so an address that changes several times is only reported once. This is much cheaper
+ * than a {@link DataListener} when the listener has to pass the changes to another thread,
+ * e.g. the event dispatch thread of the user interface.
+ * See {@link DisassemblyData#setNotificationRate(int, int)} for how often the listeners are called.
+ * @author fwi
+ *
+ */
+public interface DataRangeListener {
+    /**
+     * Will be called with the address ranges that changed since the last call.
+     * It is called from a separate thread, so the entries should be looked up through
+     * {@link ChangedRanges#getEntries(int)} when they are actually needed.
+     * @param changes the changed address ranges
+     */
+    void onRangeChange(ChangedRanges changes);
+}
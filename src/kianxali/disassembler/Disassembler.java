@@ -1,6 +1,10 @@
 package kianxali.disassembler;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
@@ -12,9 +16,9 @@ import java.util.logging.Logger;
 import kianxali.decoder.Context;
 import kianxali.decoder.Data;
 import kianxali.decoder.Data.DataType;
-import kianxali.decoder.DecodedEntity;
 import kianxali.decoder.Decoder;
 import kianxali.decoder.Instruction;
+import kianxali.decoder.InstructionBuffer;
 import kianxali.decoder.JumpTable;
 import kianxali.loader.ByteSequence;
 import kianxali.loader.ImageFile;
@@ -31,34 +35,68 @@ import kianxali.util.AddressNameResolver;
 public class Disassembler implements AddressNameResolver, AddressNameListener {
     private static final Logger LOG = Logger.getLogger("kianxali.disassembler");
 
-    // TODO: start at first address of the code segment, walking linear to the end
-    //       while building the queue. Then iterate again until queue is empty
-
-    private final Queue<WorkItem> workQueue;
+    private final CodeWorkQueue codeQueue;
+    private final Queue<WorkItem> dataQueue;
+    // code addresses that are waiting in the queue or were decoded, used to reject work that wouldn't do anything
+    private final AddressSet queuedCode, decodedCode;
+    // code addresses that were added again while waiting in the queue
+    private final AddressSet requeuedCode;
     private final Set<DisassemblyListener> listeners;
-    private final Map<Long, Function> functionInfo; // stores which trace start belongs to which function
+    private final NavigableMap<Long, Function> functionInfo; // stores which trace start belongs to which function
+    // functions that were created for a call target and can be removed if the call disappears
+    private final AddressSet calledFunctions;
+    // functions that were created or decoded during an incremental analysis
+    private final Map<Long, Function> touchedFunctions;
+    // changed address ranges that are waiting to be invalidated by the analysis thread
+    private final List<Change> pendingChanges;
+    // addresses that lost a reference during an invalidation, released if the analysis didn't refer to them again
+    private final List<Long> releasedTargets;
+    // instruction and data addresses of data that was attached to an invalidated instruction
+    private final List<long[]> detachedData;
     private final DisassemblyData disassemblyData;
     private final ImageFile imageFile;
     private final Context ctx;
     private final Decoder decoder;
+    private final int workerThreads;
+    private volatile TraceSpeculator speculator;
     private Thread analyzeThread;
     private boolean unknownDiscoveryRan;
+    private boolean linearSweep;
+    private long dataSequence;
+
+    private static class Change {
+        public long start;
+        public int size;
+        // true if code should be analyzed at the start even if nothing was decoded there
+        public boolean visit;
+
+        public Change(long start, int size, boolean visit) {
+            this.start = start;
+            this.size = size;
+            this.visit = visit;
+        }
+    }
 
     private class WorkItem implements Comparable<WorkItem> {
-        // determines whether the work should analyze code (data == null) or data (data has type set)
+        // the data to analyze, code work is stored in codeQueue
         public Data data;
         public Long address;
-        // only add trace if it runs without decoder errors; used for unknown function detection etc.
-        public boolean careful;
+        // the most recently added item for an address is analyzed first
+        public long sequence;
 
-        public WorkItem(Long address, Data data) {
+        public WorkItem(Long address, Data data, long sequence) {
             this.address = address;
             this.data = data;
+            this.sequence = sequence;
         }
 
         @Override
         public int compareTo(WorkItem o) {
-            return address.compareTo(o.address);
+            int res = address.compareTo(o.address);
+            if(res == 0) {
+                res = Long.compare(o.sequence, sequence);
+            }
+            return res;
         }
     }
 
@@ -70,11 +108,34 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
      * @param data the data object to fill during the analysis
      */
     public Disassembler(ImageFile imageFile, DisassemblyData data) {
+        this(imageFile, data, 0);
+    }
+
+    /**
+     * Create a new disassembler that decodes traces in parallel. The worker threads
+     * decode the instructions ahead of the analysis, which still inserts them in the
+     * same order as a single threaded analysis so that the result doesn't depend on
+     * the number of threads.
+     * @param imageFile the image file to disassemble
+     * @param data the data object to fill during the analysis
+     * @param workerThreads the number of threads that decode in parallel, 0 to decode in the analysis thread only
+     */
+    public Disassembler(ImageFile imageFile, DisassemblyData data, int workerThreads) {
         this.imageFile = imageFile;
+        this.workerThreads = workerThreads;
         this.disassemblyData = data;
         this.functionInfo = new TreeMap<Long, Function>();
         this.listeners = new CopyOnWriteArraySet<>();
-        this.workQueue = new PriorityQueue<>();
+        this.codeQueue = new CodeWorkQueue();
+        this.dataQueue = new PriorityQueue<>();
+        this.queuedCode = new AddressSet(imageFile);
+        this.decodedCode = new AddressSet(imageFile);
+        this.requeuedCode = new AddressSet(imageFile);
+        this.calledFunctions = new AddressSet(imageFile);
+        this.touchedFunctions = new TreeMap<>();
+        this.pendingChanges = new ArrayList<>();
+        this.releasedTargets = new ArrayList<>();
+        this.detachedData = new ArrayList<>();
         this.ctx = imageFile.createContext();
         this.decoder = ctx.createInstructionDecoder();
         this.unknownDiscoveryRan = false;
@@ -91,6 +152,17 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
         addCodeWork(entry, false);
     }
 
+    /**
+     * Enables a linear sweep over the executable sections that runs in parallel to the first
+     * pass of the analysis. Addresses that are found by the sweep but not by the recursive
+     * traversal are analyzed afterwards, replacing the search for uncalled functions.
+     * Must be called before the analysis is started.
+     * @param linearSweep true to enable the linear sweep
+     */
+    public void setLinearSweep(boolean linearSweep) {
+        this.linearSweep = linearSweep;
+    }
+
     /**
      * Adds a listener that will be informed about the start, end and errors
      * of the analysis.
@@ -134,41 +206,84 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
     /**
      * Stops the analysis thread. It can be started again with {@link Disassembler#startAnalyzer()}.
      */
-    public synchronized void stopAnalyzer() {
-        if(analyzeThread != null) {
+    public void stopAnalyzer() {
+        synchronized(this) {
+            if(analyzeThread == null) {
+                return;
+            }
             analyzeThread.interrupt();
             analyzeThread = null;
-            for(DisassemblyListener listener : listeners) {
-                listener.onAnalyzeStop();
-            }
-            LOG.fine("Stopped analyzer");
         }
+        // the listeners are informed without holding the lock so they can access the disassembly data
+        // while a script thread that holds the data lock calls reanalyze
+        for(DisassemblyListener listener : listeners) {
+            listener.onAnalyzeStop();
+        }
+        LOG.fine("Stopped analyzer");
     }
 
     /**
      * Informs the disassembler that the given address should be analyzed again.
-     * Subsequent addresses will also be analyzed.
+     * The instructions covering it are decoded again, see {@link Disassembler#reanalyze(long, int)}.
+     * If nothing was decoded at the address yet, a new trace is started there.
      * @param addr the address to visit again
      */
     public synchronized void reanalyze(long addr) {
-        disassemblyData.clearDecodedEntity(addr);
+        addChange(new Change(addr, 1, true));
+    }
 
-        addCodeWork(addr, false);
+    /**
+     * Informs the disassembler that bytes were changed, e.g. by a patch. Only the instructions
+     * that overlap the changed bytes and the rest of their basic blocks are decoded again.
+     * Data that overlaps the bytes is analyzed again, data and functions that were only
+     * referenced by the invalidated instructions are removed if the new instructions don't
+     * refer to them anymore. The analyzer is started if it isn't running.
+     * @param addr the first changed address
+     * @param size the number of changed bytes
+     */
+    public synchronized void reanalyze(long addr, int size) {
+        addChange(new Change(addr, size, false));
+    }
+
+    private void addChange(Change change) {
+        pendingChanges.add(change);
         if(analyzeThread == null) {
             startAnalyzer();
         }
     }
 
+    // stops the analyzer if there are no more changes, called by the analysis thread
+    private synchronized boolean finishAnalysis() {
+        if(analyzeThread != Thread.currentThread()) {
+            // stopped from the outside, pending changes are applied when it is started again
+            return true;
+        }
+        if(!pendingChanges.isEmpty()) {
+            return false;
+        }
+        stopAnalyzer();
+        return true;
+    }
+
     private void workOnQueue() {
         while(!Thread.interrupted()) {
-            WorkItem item = workQueue.poll();
-            if(item == null) {
+            // lowest address first, regardless of code or data
+            WorkItem item = dataQueue.peek();
+            if(!codeQueue.isEmpty() && (item == null || codeQueue.peekAddress() <= item.address)) {
+                long address = codeQueue.peekAddress();
+                boolean careful = codeQueue.peekCareful();
+                codeQueue.remove();
+                queuedCode.remove(address);
+                disassembleTrace(address, careful);
+                if(requeuedCode.remove(address)) {
+                    // the trace might have left the function, visiting the address again would extend it
+                    extendFunction(address);
+                }
+            } else if(item == null) {
                 // no more work
                 break;
-            }
-            if(item.data == null) {
-                disassembleTrace(item);
             } else {
+                dataQueue.remove();
                 try {
                     analyzeData(item.data);
                 } catch(Exception e) {
@@ -179,19 +294,205 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
     }
 
     private void analyze() {
+        do {
+            applyChanges();
+
+            // a new speculator for each pass so that instructions decoded before a change aren't used
+            if(workerThreads > 0) {
+                speculator = new TraceSpeculator(imageFile, workerThreads);
+                for(int i = 0; i < codeQueue.size(); i++) {
+                    speculator.speculate(codeQueue.get(i));
+                }
+            }
+            LinearSweep sweep = null;
+            if(linearSweep && !unknownDiscoveryRan) {
+                sweep = new LinearSweep(imageFile, Math.max(1, workerThreads));
+            }
+            try {
+                analyzeQueue(sweep);
+            } finally {
+                if(sweep != null) {
+                    sweep.cancel();
+                }
+                if(speculator != null) {
+                    speculator.shutdown();
+                    speculator = null;
+                }
+            }
+            releaseTargets();
+        } while(!finishAnalysis());
+    }
+
+    private void applyChanges() {
+        List<Change> changes;
+        synchronized(this) {
+            changes = new ArrayList<>(pendingChanges);
+            pendingChanges.clear();
+        }
+        for(Change change : changes) {
+            invalidate(change);
+        }
+    }
+
+    // removes the instructions and data that cover the changed bytes and queues them again
+    private void invalidate(Change change) {
+        long end = change.start + change.size;
+        if(change.visit && disassemblyData.getEntityEntryCoveringAddress(change.start) == null) {
+            Function function = findFunction(change.start);
+            if(function != null && !functionInfo.containsKey(change.start)) {
+                functionInfo.put(change.start, function);
+            }
+            addCodeWork(change.start, false);
+        }
+
+        long addr = change.start;
+        while(addr < end) {
+            DataEntry entry = disassemblyData.getEntityEntryCoveringAddress(addr);
+            if(entry == null) {
+                addr++;
+                continue;
+            }
+            long entityStart = entry.getAddress();
+            long entityEnd = entityStart + entry.getEntitySize();
+            if(entry.hasInstruction()) {
+                invalidateBlock(entityStart);
+            } else {
+                Data old = (Data) entry.getEntity();
+                Data data;
+                if(old instanceof JumpTable) {
+                    data = new JumpTable(entityStart);
+                } else {
+                    data = new Data(entityStart, old.getType());
+                }
+                data.setTableScaling(old.getTableScaling());
+                disassemblyData.clearDecodedEntity(entityStart);
+                addDataWork(data);
+            }
+            addr = Math.max(addr + 1, entityEnd);
+        }
+    }
+
+    // removes the instructions from an address to the end of its basic block and queues the address again
+    private void invalidateBlock(long blockStart) {
+        Function function = findFunction(blockStart);
+        long addr = blockStart;
+        while(true) {
+            DataEntry entry = disassemblyData.getInfoOnExactAddress(addr);
+            if(entry == null || !entry.hasInstruction()) {
+                break;
+            }
+            if(addr != blockStart && (functionInfo.containsKey(addr) || disassemblyData.isReferenced(addr))) {
+                // another trace starts here
+                break;
+            }
+            byte flow = entry.getInstructionFlow();
+            int size = entry.getEntitySize();
+            for(DataEntry target : disassemblyData.getReferencesFrom(addr).keySet()) {
+                releasedTargets.add(target.getAddress());
+            }
+            Data attached = entry.getAttachedData();
+            if(attached != null) {
+                detachedData.add(new long[] {addr, attached.getMemAddress()});
+            }
+            disassemblyData.clearDecodedEntity(addr);
+            decodedCode.remove(addr);
+            if(flow != InstructionBuffer.FLOW_NORMAL && flow != InstructionBuffer.FLOW_CALL) {
+                break;
+            }
+            addr += size;
+        }
+
+        if(function != null && !functionInfo.containsKey(blockStart)) {
+            functionInfo.put(blockStart, function);
+        }
+        addCodeWork(blockStart, false);
+    }
+
+    // returns the function that contains an address
+    private Function findFunction(long memAddr) {
+        Map.Entry<Long, Function> entry = functionInfo.floorEntry(memAddr);
+        if(entry == null) {
+            return null;
+        }
+        Function function = entry.getValue();
+        if(function.getStartAddress() <= memAddr && memAddr <= function.getEndAddress()) {
+            return function;
+        }
+        return null;
+    }
+
+    // removes data and functions that lost all references during the invalidation
+    private void releaseTargets() {
+        // existing data isn't analyzed again, so it must be attached to the new instructions here
+        for(long[] detached : detachedData) {
+            DataEntry src = disassemblyData.getInfoOnExactAddress(detached[0]);
+            DataEntry dst = disassemblyData.getInfoOnExactAddress(detached[1]);
+            if(src == null || dst == null || !src.hasInstruction() || !dst.hasData() || src.getAttachedData() != null) {
+                continue;
+            }
+            if(disassemblyData.getReferencesFrom(detached[0]).containsKey(dst)) {
+                disassemblyData.attachData(detached[0], (Data) dst.getEntity());
+            }
+        }
+        detachedData.clear();
+
+        for(long target : releasedTargets) {
+            if(disassemblyData.isReferenced(target)) {
+                continue;
+            }
+            DataEntry entry = disassemblyData.getInfoOnExactAddress(target);
+            if(entry != null && entry.hasData()) {
+                disassemblyData.clearDecodedEntity(target);
+            }
+
+            Function function = functionInfo.get(target);
+            if(function == null) {
+                continue;
+            } else if(function.getStartAddress() != target) {
+                // a branch target inside of a function
+                functionInfo.remove(target);
+            } else if(calledFunctions.remove(target)) {
+                // the code of the function stays, but it isn't a function anymore
+                Iterator<Function> it = functionInfo.values().iterator();
+                while(it.hasNext()) {
+                    if(it.next() == function) {
+                        it.remove();
+                    }
+                }
+                touchedFunctions.remove(target);
+                disassemblyData.removeFunction(function);
+            }
+        }
+        releasedTargets.clear();
+    }
+
+    private void analyzeQueue(LinearSweep sweep) {
         // Analyze code and data
         workOnQueue();
 
-        // Propagate function information
-        for(Function fun : functionInfo.values()) {
+        // Fill the holes with the results of the linear sweep
+        if(sweep != null) {
+            try {
+                addSweepCandidates(sweep.getCandidates(disassemblyData));
+            } catch(InterruptedException e) {
+                LOG.fine("Interrupted while waiting for linear sweep");
+                return;
+            }
+            workOnQueue();
+        }
+
+        // Propagate function information, only for the functions that changed after the first run
+        Iterable<Function> functions = unknownDiscoveryRan ? touchedFunctions.values() : functionInfo.values();
+        for(Function fun : functions) {
             disassemblyData.insertFunction(fun);
 
             // identify trampoline functions
             long start = fun.getStartAddress();
             DataEntry entry = disassemblyData.getInfoOnExactAddress(start);
-            if(entry != null && entry.getEntity() instanceof Instruction) {
+            // check the flow first so that compact instructions are only decoded for jumps
+            if(entry != null && entry.getInstructionFlow() == InstructionBuffer.FLOW_JUMP) {
                 Instruction inst = (Instruction) entry.getEntity();
-                if(inst.isUnconditionalJump() && inst.getAssociatedData().size() == 1) {
+                if(inst != null && inst.getAssociatedData().size() == 1) {
                     // the function immediately jumps somewhere else, take name from there
                     Data data = inst.getAssociatedData().keySet().iterator().next();
                     long branch = data.getMemAddress();
@@ -203,40 +504,76 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
                 }
             }
         }
+        touchedFunctions.clear();
 
         // Now try to fill black holes by discovering functions that were not directly called
         if(!unknownDiscoveryRan) {
-            discoverUncalledFunctions();
-            workOnQueue();
+            if(sweep == null) {
+                discoverUncalledFunctions();
+                workOnQueue();
+            }
             unknownDiscoveryRan = true;
         }
+    }
 
-        stopAnalyzer();
+    private void addSweepCandidates(Map<Long, LinearSweep.Candidate> candidates) {
+        for(Map.Entry<Long, LinearSweep.Candidate> candidate : candidates.entrySet()) {
+            long addr = candidate.getKey();
+            switch(candidate.getValue()) {
+            case CALL_TARGET:
+                detectFunction(addr, null);
+                break;
+            case PROLOGUE:
+                Function fun = detectFunction(addr, null);
+                if(fun != null) {
+                    fun.setName(fun.getName() + "_i"); // mark as indirectly called
+                }
+                break;
+            default:
+                break;
+            }
+            addCodeWork(addr, true);
+        }
     }
 
     private void addCodeWork(long address, boolean careful) {
-        WorkItem itm = new WorkItem(address, null);
-        itm.careful = careful;
-        workQueue.add(itm);
+        if(decodedCode.contains(address)) {
+            // the trace would stop immediately, it could only extend the function to this address
+            Function function = functionInfo.get(address);
+            if(function == null || function.getEndAddress() >= address) {
+                return;
+            }
+        }
+        if(!queuedCode.add(address)) {
+            // already waiting in the queue or outside of the sections
+            requeuedCode.add(address);
+            return;
+        }
+        codeQueue.add(address, careful);
+
+        TraceSpeculator spec = speculator;
+        if(spec != null) {
+            spec.speculate(address);
+        }
     }
 
     private void addDataWork(Data data) {
-        workQueue.add(new WorkItem(data.getMemAddress(), data));
+        dataQueue.add(new WorkItem(data.getMemAddress(), data, dataSequence++));
     }
 
-    private void disassembleTrace(WorkItem item) {
-        long memAddr = item.address;
+    // careful: only add trace if it runs without decoder errors; used for unknown function detection etc.
+    private void disassembleTrace(long startAddr, boolean careful) {
+        long memAddr = startAddr;
         Function function = functionInfo.get(memAddr);
+        // one cursor for the whole trace, created for the first instruction that isn't speculated
+        ByteSequence seq = null;
         while(true) {
-            DecodedEntity old = disassemblyData.getEntityOnExactAddress(memAddr);
-            if(old instanceof Instruction) {
+            if(decodedCode.contains(memAddr)) {
                 // Already visited this trace
-                // If it is data, now we'll overwrite it to code
                 break;
             }
 
-            DecodedEntity covering = disassemblyData.findEntityOnAddress(memAddr);
-            if(covering != null) {
+            if(disassemblyData.isCoveredByEntity(memAddr)) {
                 LOG.warning(String.format("%08X already covered", memAddr));
                 // TODO: covers other instruction or data
                 break;
@@ -247,21 +584,27 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
                 break;
             }
 
-            ctx.setInstructionPointer(memAddr);
             Instruction inst = null;
-            ByteSequence seq = null;
-            try {
-                seq = imageFile.getByteSequence(memAddr, true);
-                inst = decoder.decodeOpcode(ctx, seq);
-            } catch(Exception e) {
-                LOG.log(Level.WARNING, String.format("Disassemble error (%s) at %08X: %s", e, memAddr, inst), e);
-                if(item.careful) {
-                    // TODO: undo everything or something
-                }
-                break;
-            } finally {
-                if(seq != null) {
-                    seq.unlock();
+            TraceSpeculator spec = speculator;
+            if(spec != null) {
+                // use the instruction if a worker already decoded it
+                inst = spec.take(memAddr);
+            }
+            if(inst == null) {
+                ctx.setInstructionPointer(memAddr);
+                try {
+                    if(seq == null) {
+                        seq = imageFile.createByteSequence(memAddr);
+                    } else {
+                        seq.seek(imageFile.toFileAddress(memAddr));
+                    }
+                    inst = decoder.decodeOpcode(ctx, seq);
+                } catch(Exception e) {
+                    LOG.log(Level.WARNING, String.format("Disassemble error (%s) at %08X: %s", e, memAddr, inst), e);
+                    if(careful) {
+                        // TODO: undo everything or something
+                    }
+                    break;
                 }
             }
 
@@ -275,6 +618,10 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
             }
 
             disassemblyData.insertEntity(inst);
+            decodedCode.add(memAddr);
+            if(function != null && function.getStartAddress() == memAddr) {
+                touchedFunctions.put(memAddr, function);
+            }
 
             examineInstruction(inst, function);
 
@@ -296,6 +643,13 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
         }
     }
 
+    private void extendFunction(long memAddr) {
+        Function function = functionInfo.get(memAddr);
+        if(function != null && function.getEndAddress() < memAddr) {
+            disassemblyData.updateFunctionEnd(function, memAddr);
+        }
+    }
+
     private void analyzeData(Data data) {
         long memAddr = data.getMemAddress();
         DataEntry cover = disassemblyData.getInfoCoveringAddress(memAddr);
@@ -309,7 +663,7 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
             }
         }
 
-        ByteSequence seq = imageFile.getByteSequence(memAddr, true);
+        ByteSequence seq = imageFile.createByteSequence(memAddr);
 
         try {
             // jump tables are a special case: need to guess the number of entries
@@ -322,8 +676,7 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
 
             // attach data information to entries that point to this data
             for(DataEntry ref : entry.getReferences().keySet()) {
-                ref.attachData(data);
-                disassemblyData.tellListeners(ref.getAddress());
+                disassemblyData.attachData(ref.getAddress(), data);
             }
         } catch(Exception e) {
             LOG.log(Level.WARNING, String.format("Data decode error (%s) at %08X", e, data.getMemAddress()));
@@ -332,8 +685,6 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
                 listener.onAnalyzeError(data.getMemAddress(), "Couldn't decode data");
             }
             throw e;
-        } finally {
-            seq.unlock();
         }
     }
 
@@ -356,15 +707,9 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
             if(!imageFile.isCodeAddress(entryAddr)) {
                 // invalid address -> can't be a valid entry, i.e. table ended
                 badEntry = true;
-            } else {
-                DataEntry entry = disassemblyData.getInfoCoveringAddress(entryAddr);
-                if(entry != null) {
-                    DecodedEntity entity = entry.getEntity();
-                    if((entity instanceof Instruction && entry.getAddress() != entryAddr) || entity instanceof Data) {
-                        // the entry points to a code location but not to a start of an instruction -> bad entry
-                        badEntry = true;
-                    }
-                }
+            } else if(disassemblyData.isCoveredByEntity(entryAddr) && !disassemblyData.isInstructionStart(entryAddr)) {
+                // the entry points to a code location but not to a start of an instruction -> bad entry
+                badEntry = true;
             }
             if(!badEntry) {
                 table.addEntry(entryAddr);
@@ -379,6 +724,7 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
         if(!functionInfo.containsKey(addr)) {
             Function fun = new Function(addr, this);
             functionInfo.put(addr, fun);
+            touchedFunctions.put(addr, fun);
             disassemblyData.insertFunction(fun);
             if(name != null) {
                 fun.setName(name);
@@ -398,7 +744,9 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
             if(imageFile.isValidAddress(addr)) {
                 disassemblyData.insertReference(srcEntry, addr, false);
                 if(inst.isFunctionCall()) {
-                    detectFunction(addr, null);
+                    if(detectFunction(addr, null) != null) {
+                        calledFunctions.add(addr);
+                    }
                 } else if(function != null) {
                     // if the branch is not a function call, it should belong to the current function
                     functionInfo.put(addr, function);
@@ -442,7 +790,8 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
         Map<Long, Boolean> pointers = inst.getProbableDataPointers();
         for(long addr : pointers.keySet()) {
             if(imageFile.isValidAddress(addr)) {
-                if(disassemblyData.getEntityOnExactAddress(addr) != null) {
+                DataEntry existing = disassemblyData.getInfoOnExactAddress(addr);
+                if(existing != null && existing.hasEntity()) {
                     continue;
                 }
                 disassemblyData.insertReference(srcEntry, addr, pointers.get(addr));
@@ -459,51 +808,48 @@ public class Disassembler implements AddressNameResolver, AddressNameListener {
 
     private void discoverUncalledFunctions() {
         LOG.fine("Discovering uncalled functions...");
+        byte[] buf = new byte[4096];
         for(Section section : imageFile.getSections()) {
             if(!section.isExecutable()) {
                 continue;
             }
 
             // searching for signature 55 8B EC or 55 89 E5 (both are push ebp; mov ebp, esp)
-            boolean got55 = false, got558B = false, got5589 = false;
+            // at every offset that isn't covered, the bytes are read in blocks
             long startAddr = section.getStartAddress();
-            ByteSequence seq = imageFile.getByteSequence(startAddr, false);
-            long size = section.getEndAddress() - startAddr;
-            for(long i = 0; i < size; i++) {
-                short s = seq.readUByte();
-                if(disassemblyData.findEntityOnAddress(startAddr + i) != null) {
+            long endAddr = section.getEndAddress();
+            ByteSequence seq = imageFile.createByteSequence(startAddr);
+            long bufAddr = startAddr;
+            int bufLength = 0;
+            for(long addr = startAddr; addr + 2 < endAddr;) {
+                if(disassemblyData.isCoveredByEntity(addr)) {
+                    // skip the whole entity
+                    DataEntry cover = disassemblyData.getEntityEntryCoveringAddress(addr);
+                    addr = cover != null ? Math.max(addr + 1, cover.getAddress() + cover.getEntitySize()) : addr + 1;
                     continue;
                 }
 
-                if(s == 0x55) {
-                    got55 = true;
-                    got558B = false;
-                    got5589 = false;
-                } else if(s == 0x8B && got55) {
-                    got55 = false;
-                    got558B = true;
-                    got5589 = false;
-                } else if(s == 0x89 && got55) {
-                    got55 = false;
-                    got558B = false;
-                    got5589 = true;
-                } else if((s == 0xEC && got558B) || (s == 0xE5 && got5589)) {
+                if(addr + 2 >= bufAddr + bufLength) {
+                    bufAddr = addr;
+                    seq.seek(imageFile.toFileAddress(addr));
+                    bufLength = seq.peek(buf, 0, (int) Math.min(buf.length, endAddr - addr));
+                    if(bufLength < 3) {
+                        break;
+                    }
+                }
+                int pos = (int) (addr - bufAddr);
+                int b1 = buf[pos + 1] & 0xFF, b2 = buf[pos + 2] & 0xFF;
+                if((buf[pos] & 0xFF) == 0x55 && (b1 == 0x8B && b2 == 0xEC || b1 == 0x89 && b2 == 0xE5)
+                        && !disassemblyData.isCoveredByEntity(addr + 1) && !disassemblyData.isCoveredByEntity(addr + 2)) {
                     // found signature
-                    got55 = false;
-                    got558B = false;
-                    got5589 = false;
-                    long funAddr = startAddr + i - 2;
-                    LOG.finer(String.format("Discovered indirect function %08X", funAddr));
-                    Function fun = detectFunction(funAddr, null);
+                    LOG.finer(String.format("Discovered indirect function %08X", addr));
+                    Function fun = detectFunction(addr, null);
                     if(fun != null) {
                         fun.setName(fun.getName() + "_i"); // mark as indirectly called
                     }
-                    addCodeWork(funAddr, true);
-                } else {
-                    got55 = false;
-                    got558B = false;
-                    got5589 = false;
+                    addCodeWork(addr, true);
                 }
+                addr++;
             }
         }
     }
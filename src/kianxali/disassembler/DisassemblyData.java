@@ -1,10 +1,17 @@
 package kianxali.disassembler;
 
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
+import kianxali.decoder.Data;
 import kianxali.decoder.DecodedEntity;
 import kianxali.decoder.Instruction;
 import kianxali.loader.ImageFile;
@@ -14,19 +21,51 @@ import kianxali.loader.Section;
  * This data structure stores the result of the disassembly. It creates a memory map
  * for the image file to reconstruct the actual runtime layout. It is passed to the
  * disassembler that will fill it.
+ * For large image files, a compact storage mode can be used that doesn't keep
+ * the decoded instructions but decodes them again when they are accessed.
+ * The addresses covered by instructions and data are kept in an index so that
+ * they can be looked up without locking the memory map.
+ * Changes are synchronized, but the public query methods don't lock so that the
+ * user interface and scripts never wait for the analysis. They see each change
+ * once it is complete. For a consistent view over several queries, a snapshot
+ * can be created with {@link DisassemblyData#createSnapshot()}.
+ * Changes are reported to {@link DataListener} instances immediately and to
+ * {@link DataRangeListener} instances in batches.
  * @author fwi
  *
  */
 public class DisassemblyData {
     private final CopyOnWriteArraySet<DataListener> listeners;
-    private final NavigableMap<Long, DataEntry> memoryMap;
+    private final ChangeBatcher batcher;
+    private final AddressMap memoryMap;
+    private final XrefIndex xrefs;
+    // the functions stored in the memory map, copied for each snapshot
+    private final Set<Function> functions;
+    private final int instructionCacheSize;
+    private InstructionCache instructionCache;
+    // only covers the sections of the image file, the memory map is used for other addresses
+    private volatile CoverageIndex coverage;
 
     /**
-     * Construct a new disassembly data object.
+     * Construct a new disassembly data object that keeps all decoded instructions.
      */
     public DisassemblyData() {
+        this(0);
+    }
+
+    /**
+     * Construct a new disassembly data object. If a cache size is given, the compact
+     * storage mode is used: Only the size and control flow of the instructions is stored
+     * and they are decoded again when accessed through {@link DataEntry#getEntity()}.
+     * @param instructionCacheSize the number of decoded instructions to keep in compact mode, 0 to keep all
+     */
+    public DisassemblyData(int instructionCacheSize) {
         this.listeners = new CopyOnWriteArraySet<>();
-        this.memoryMap = new TreeMap<>();
+        this.batcher = new ChangeBatcher(this);
+        this.xrefs = new XrefIndex();
+        this.memoryMap = new AddressMap(xrefs);
+        this.functions = new HashSet<>();
+        this.instructionCacheSize = instructionCacheSize;
     }
 
     /**
@@ -47,20 +86,85 @@ public class DisassemblyData {
         listeners.remove(listener);
     }
 
+    /**
+     * Adds a listener that will be informed about changes of the memory map
+     * in batches of address ranges
+     * @param listener the listener to add
+     */
+    public void addRangeListener(DataRangeListener listener) {
+        batcher.addListener(listener);
+    }
+
+    /**
+     * Removes a range listener
+     * @param listener the listener to remove
+     */
+    public void removeRangeListener(DataRangeListener listener) {
+        batcher.removeListener(listener);
+    }
+
+    /**
+     * Sets how often the {@link DataRangeListener} instances are informed. A batch is delivered
+     * after the delay or earlier if it contains the given number of changes.
+     * The default is 100 milliseconds or 4096 changes.
+     * @param maxDelay the maximum delay in milliseconds
+     * @param maxChanges the maximum number of changes in a batch
+     */
+    public void setNotificationRate(int maxDelay, int maxChanges) {
+        batcher.setRate(maxDelay, maxChanges);
+    }
+
     void tellListeners(long memAddr) {
+        if(listeners.isEmpty() && !batcher.hasListeners()) {
+            return;
+        }
         DataEntry entry = getInfoOnExactAddress(memAddr);
         for(DataListener listener : listeners) {
             listener.onAnalyzeChange(memAddr, entry);
         }
+        if(batcher.hasListeners()) {
+            int size = entry != null ? entry.getEntitySize() : 0;
+            batcher.add(memAddr, memAddr + Math.max(size, 1));
+        }
     }
 
     private void put(long memAddr, DataEntry entry) {
-        memoryMap.put(memAddr, entry);
+        memoryMap.put(entry);
         tellListeners(memAddr);
     }
 
+    // returns the entry of an address or a new empty entry if there is none
+    private DataEntry getOrCreate(long memAddr) {
+        DataEntry entry = memoryMap.get(memAddr);
+        if(entry == null) {
+            entry = new DataEntry(memoryMap, memAddr);
+        }
+        return entry;
+    }
+
+    /**
+     * Creates a read-only snapshot of the current memory map and references.
+     * It shares the unchanged parts with this object, so it is cheap to create
+     * and can be read without locking while the analysis continues.
+     * The functions are copied and compact instructions are decoded from a snapshot
+     * of the bytes, so renaming functions and patching don't change the snapshot either.
+     * @return a snapshot of the current state
+     */
+    public synchronized DisassemblySnapshot createSnapshot() {
+        Map<Function, Function> frozen = new IdentityHashMap<>();
+        for(Function function : functions) {
+            frozen.put(function, function.freeze());
+        }
+        InstructionCache cache = instructionCache != null ? instructionCache.snapshot() : null;
+        XrefIndex xrefSnapshot = xrefs.snapshot();
+        return new DisassemblySnapshot(memoryMap.snapshot(xrefSnapshot, cache, frozen), xrefSnapshot);
+    }
+
     synchronized void clear(long addr) {
-        memoryMap.remove(addr);
+        DataEntry entry = memoryMap.remove(addr);
+        if(entry != null) {
+            uncover(entry);
+        }
         tellListeners(addr);
     }
 
@@ -71,80 +175,101 @@ public class DisassemblyData {
             // nothing to do as there is no code or data
             return;
         }
-        entry.setEntity(null);
-        entry.clearAttachedData();
+        uncover(entry);
+        invalidate(entry);
+        DataEntry.Details details = entry.getDetails();
+        if(details != null && details.attachedData != null) {
+            details = details.copy();
+            details.attachedData = null;
+            entry = entry.withDetails(details);
+        }
+        memoryMap.put(entry.withEntity(null));
         // entry.clearReferences();
         tellListeners(memAddr);
 
-        // clear to-references (stored as from-references at destination)
-        for(Long refAddr : memoryMap.keySet()) {
-            DataEntry refEntry = memoryMap.get(refAddr);
-            if(refEntry.removeReference(entry)) {
-                tellListeners(refAddr);
+        // clear to-references
+        xrefs.removeFrom(entry.getAddress(), new XrefIndex.Visitor() {
+            @Override
+            public void onReference(long from, long to, boolean isWrite) {
+                tellListeners(to);
             }
-        }
+        });
     }
 
     synchronized void insertImageFileWithSections(ImageFile file) {
+        if(instructionCacheSize > 0) {
+            instructionCache = new InstructionCache(file, instructionCacheSize);
+            memoryMap.setInstructionCache(instructionCache);
+        }
+        coverage = new CoverageIndex(file.getSections());
+
         long imageAddress = 0L;
         if(file.getSections().size() > 0) {
             imageAddress = file.getSections().get(0).getStartAddress();
         }
-        DataEntry old = getInfoOnExactAddress(imageAddress);
-        if(old != null) {
-            old.setStartImageFile(file);
-            tellListeners(imageAddress);
-        } else {
-            DataEntry entry = new DataEntry(imageAddress);
-            entry.setStartImageFile(file);
-            put(imageAddress, entry);
-        }
+        DataEntry entry = getOrCreate(imageAddress);
+        DataEntry.Details details = entry.copyDetails();
+        details.startImageFile = file;
+        put(imageAddress, entry.withDetails(details));
 
         for(Section section : file.getSections()) {
             long memAddrStart = section.getStartAddress();
             long memAddrEnd = section.getEndAddress();
-            old = getInfoOnExactAddress(memAddrStart);
-            if(old != null) {
-                old.setStartSection(section);
-                tellListeners(memAddrStart);
-            } else {
-                DataEntry entry = new DataEntry(memAddrStart);
-                entry.setStartSection(section);
-                put(memAddrStart, entry);
-            }
-
-            old = getInfoOnExactAddress(memAddrEnd);
-            if(old != null) {
-                old.setEndSection(section);
-                tellListeners(memAddrEnd);
-            } else {
-                DataEntry entry = new DataEntry(memAddrEnd);
-                entry.setEndSection(section);
-                put(memAddrEnd, entry);
-            }
+            entry = getOrCreate(memAddrStart);
+            details = entry.copyDetails();
+            details.startSection = section;
+            put(memAddrStart, entry.withDetails(details));
+
+            entry = getOrCreate(memAddrEnd);
+            details = entry.copyDetails();
+            details.endSection = section;
+            put(memAddrEnd, entry.withDetails(details));
         }
     }
 
     synchronized DataEntry insertEntity(DecodedEntity entity) {
         long memAddr = entity.getMemAddress();
         DataEntry old = getInfoOnExactAddress(memAddr);
-        if(old != null) {
-            // already got info for this address, add entity
-            old.setEntity(entity);
-            tellListeners(memAddr);
-            return old;
-        } else {
+        if(old == null) {
             // check if another entry covers this address, i.e. there is data or an opcode that starts before
-            DecodedEntity covering = findEntityOnAddress(memAddr);
-            if(covering != null) {
+            if(isCoveredByEntity(memAddr)) {
                 throw new IllegalArgumentException("address covered by other entity");
-            } else {
-                // new entity entry as nothing covered the address
-                DataEntry entry = new DataEntry(memAddr);
-                entry.setEntity(entity);
-                put(memAddr, entry);
-                return entry;
             }
+            // new entity entry as nothing covered the address
+            old = new DataEntry(memoryMap, memAddr);
+        }
+        DataEntry entry = storeEntity(old, entity);
+        put(memAddr, entry);
+        return entry;
+    }
+
+    private DataEntry storeEntity(DataEntry old, DecodedEntity entity) {
+        uncover(old);
+        invalidate(old);
+        DataEntry res;
+        if(instructionCache != null && entity instanceof Instruction) {
+            res = old.withCompactInstruction((Instruction) entity, instructionCache);
+        } else {
+            res = old.withEntity(entity);
+        }
+        CoverageIndex index = coverage;
+        if(index != null) {
+            index.cover(old.getAddress(), entity.getSize(), entity instanceof Instruction);
+        }
+        return res;
+    }
+
+    // removes a compact instruction that is replaced from the cache
+    private void invalidate(DataEntry entry) {
+        if(entry.isCompact()) {
+            instructionCache.invalidate(entry.getAddress());
+        }
+    }
+
+    private void uncover(DataEntry entry) {
+        CoverageIndex index = coverage;
+        if(index != null && entry.hasEntity()) {
+            index.uncover(entry.getAddress(), entry.getEntitySize());
         }
     }
 
@@ -160,36 +285,62 @@ public class DisassemblyData {
         }
 
         if(startEntry == null) {
-            startEntry = new DataEntry(start);
-            put(start, startEntry);
+            startEntry = new DataEntry(memoryMap, start);
         }
-        startEntry.setStartFunction(function);
+        functions.add(function);
+        setStartFunction(startEntry, function);
         tellListeners(start);
 
         if(endEntry != null) {
-            endEntry.setEndFunction(function);
+            // looked up again in case it is the start entry and was changed
+            setEndFunction(getInfoOnExactAddress(end), function);
         }
         // TODO: add an else case
         tellListeners(end);
     }
 
+    synchronized void removeFunction(Function function) {
+        functions.remove(function);
+        long start = function.getStartAddress();
+        DataEntry startEntry = getInfoOnExactAddress(start);
+        if(startEntry != null && startEntry.getStartFunction() == function) {
+            setStartFunction(startEntry, null);
+            tellListeners(start);
+        }
+
+        long end = function.getEndAddress();
+        DataEntry endEntry = getInfoOnExactAddress(end);
+        if(endEntry != null && endEntry.getEndFunction() == function) {
+            setEndFunction(endEntry, null);
+            tellListeners(end);
+        }
+    }
+
+    private void setStartFunction(DataEntry entry, Function function) {
+        DataEntry.Details details = entry.copyDetails();
+        details.startFunction = function;
+        memoryMap.put(entry.withDetails(details));
+    }
+
+    private void setEndFunction(DataEntry entry, Function function) {
+        DataEntry.Details details = entry.copyDetails();
+        details.endFunction = function;
+        memoryMap.put(entry.withDetails(details));
+    }
+
     synchronized void updateFunctionEnd(Function function, long newEnd) {
         long oldEnd = function.getEndAddress();
 
         function.setEndAddress(newEnd);
+        functions.add(function);
 
         DataEntry oldEntry = getInfoOnExactAddress(oldEnd);
         if(oldEntry != null) {
-            oldEntry.setEndFunction(null);
+            setEndFunction(oldEntry, null);
             tellListeners(oldEnd);
         }
 
-        DataEntry newEntry = getInfoOnExactAddress(newEnd);
-        if(newEntry == null) {
-            newEntry = new DataEntry(newEnd);
-            put(newEnd, newEntry);
-        }
-        newEntry.setEndFunction(function);
+        setEndFunction(getOrCreate(newEnd), function);
         tellListeners(newEnd);
     }
 
@@ -197,26 +348,80 @@ public class DisassemblyData {
     synchronized void insertReference(DataEntry srcEntry, long dstAddress, boolean isWrite) {
         DataEntry entry = getInfoOnExactAddress(dstAddress);
         if(entry == null) {
-            entry = new DataEntry(dstAddress);
+            entry = new DataEntry(memoryMap, dstAddress);
             put(dstAddress, entry);
         }
-        entry.addReferenceFrom(srcEntry, isWrite);
+        xrefs.add(srcEntry.getAddress(), dstAddress, isWrite);
         tellListeners(dstAddress);
     }
 
+    synchronized void attachData(long memAddr, Data data) {
+        DataEntry entry = getInfoOnExactAddress(memAddr);
+        if(entry != null) {
+            DataEntry.Details details = entry.copyDetails();
+            details.attachedData = data;
+            put(memAddr, entry.withDetails(details));
+        }
+    }
+
+    boolean isReferenced(long memAddr) {
+        return xrefs.hasReferencesTo(memAddr);
+    }
+
+    /**
+     * Returns all references to a memory address, i.e. the entries of all locations
+     * that refer to this address. The boolean is true iff it is a write-access.
+     * @param memAddr the referenced address
+     * @return a map from the referring entries to the access type, a copy that won't change
+     */
+    public Map<DataEntry, Boolean> getReferencesTo(long memAddr) {
+        return getReferences(memoryMap, xrefs, memAddr, false);
+    }
+
+    // resolves the references of an address to the entries of a memory map
+    static Map<DataEntry, Boolean> getReferences(final AddressMap map, XrefIndex index, long memAddr, final boolean outgoing) {
+        final Map<DataEntry, Boolean> res = new LinkedHashMap<>();
+        XrefIndex.Visitor visitor = new XrefIndex.Visitor() {
+            @Override
+            public void onReference(long from, long to, boolean isWrite) {
+                DataEntry entry = map.get(outgoing ? to : from);
+                if(entry != null) {
+                    res.put(entry, isWrite);
+                }
+            }
+        };
+        if(outgoing) {
+            index.visitFrom(memAddr, visitor);
+        } else {
+            index.visitTo(memAddr, visitor);
+        }
+        if(res.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return res;
+    }
+
+    /**
+     * Returns all references from a memory address, i.e. the entries of all locations
+     * that the instruction or data at this address refers to. The boolean is true iff
+     * it is a write-access.
+     * @param memAddr the referring address
+     * @return a map from the referenced entries to the access type, a copy that won't change
+     */
+    public Map<DataEntry, Boolean> getReferencesFrom(long memAddr) {
+        return getReferences(memoryMap, xrefs, memAddr, true);
+    }
+
     /**
      * Attaches a user comment to a given memory address
      * @param memAddr the memory address to attach the comment to
      * @param comment the user comment
      */
     public synchronized void insertComment(long memAddr, String comment) {
-        DataEntry entry = getInfoOnExactAddress(memAddr);
-        if(entry == null) {
-            entry = new DataEntry(memAddr);
-            put(memAddr, entry);
-        }
-        entry.setComment(comment);
-        tellListeners(memAddr);
+        DataEntry entry = getOrCreate(memAddr);
+        DataEntry.Details details = entry.copyDetails();
+        details.comment = comment;
+        put(memAddr, entry.withDetails(details));
     }
 
     /**
@@ -228,7 +433,7 @@ public class DisassemblyData {
      * @param memAddr the address to retrieve
      * @return the data entry started at the given address or null
      */
-    public synchronized DataEntry getInfoOnExactAddress(long memAddr) {
+    public DataEntry getInfoOnExactAddress(long memAddr) {
         DataEntry entry = memoryMap.get(memAddr);
         return entry;
     }
@@ -237,23 +442,56 @@ public class DisassemblyData {
      * Retrieves the data entry for a given memory address.
      * The address needn't be the exact starting address of the entry,
      * i.e. if an address is passed that covers the middle of an entry,
-     * it will still be returned.
+     * it will still be returned. An entry on the exact address is returned even if it
+     * doesn't contain an instruction or data.
      * @param memAddr the address to retrieve
      * @return the data entry that covers the given address or null
      */
-    public synchronized DataEntry getInfoCoveringAddress(long memAddr) {
+    public DataEntry getInfoCoveringAddress(long memAddr) {
+        CoverageIndex index = coverage;
+        if(index == null || !index.isIndexed(memAddr)) {
+            return findFloorEntry(memAddr);
+        }
+        DataEntry entry = getInfoOnExactAddress(memAddr);
+        if(entry != null) {
+            // an entry on the exact address is preferred, even if it has no instruction or data yet
+            if(entry.hasEntity() && entry.getEntitySize() == 0) {
+                return null;
+            }
+            return entry;
+        }
+        long start = index.findStart(memAddr);
+        if(start == CoverageIndex.NOT_COVERED) {
+            return null;
+        }
+        return getInfoOnExactAddress(start);
+    }
+
+    // like getInfoCoveringAddress, but only returns entries that contain an instruction or data
+    DataEntry getEntityEntryCoveringAddress(long memAddr) {
+        CoverageIndex index = coverage;
+        if(index == null || !index.isIndexed(memAddr)) {
+            DataEntry entry = findFloorEntry(memAddr);
+            return entry != null && entry.hasEntity() ? entry : null;
+        }
+        long start = index.findStart(memAddr);
+        if(start == CoverageIndex.NOT_COVERED) {
+            return null;
+        }
+        return getInfoOnExactAddress(start);
+    }
+
+    private DataEntry findFloorEntry(long memAddr) {
         // check if the last instruction at lower addresses overlaps
-        Entry<Long, DataEntry> floorEntry = memoryMap.floorEntry(memAddr);
-        if(floorEntry == null) {
+        DataEntry res = memoryMap.floor(memAddr);
+        if(res == null) {
             return null;
         }
-        long lastAddress = floorEntry.getKey();
-        DataEntry res = floorEntry.getValue();
-        DecodedEntity entity = res.getEntity();
-        if(entity == null) {
+        long lastAddress = res.getAddress();
+        if(!res.hasEntity()) {
             return res;
         }
-        if(memAddr < lastAddress || memAddr >= lastAddress + entity.getSize()) {
+        if(memAddr < lastAddress || memAddr >= lastAddress + res.getEntitySize()) {
             return null;
         }
         return res;
@@ -265,7 +503,7 @@ public class DisassemblyData {
      * @param memAddr the address to retrieve
      * @return the entity starting at the exact given address or null
      */
-    public synchronized DecodedEntity getEntityOnExactAddress(long memAddr) {
+    public DecodedEntity getEntityOnExactAddress(long memAddr) {
         DataEntry entry = getInfoOnExactAddress(memAddr);
         if(entry == null) {
             return null;
@@ -273,7 +511,7 @@ public class DisassemblyData {
         return entry.getEntity();
     }
 
-    synchronized DecodedEntity findEntityOnAddress(long memAddr) {
+    DecodedEntity findEntityOnAddress(long memAddr) {
         DataEntry entry = getInfoCoveringAddress(memAddr);
         if(entry == null) {
             return null;
@@ -281,24 +519,68 @@ public class DisassemblyData {
         return entry.getEntity();
     }
 
+    // checks whether an instruction or data covers the address, doesn't decode compact instructions
+    boolean isCoveredByEntity(long memAddr) {
+        CoverageIndex index = coverage;
+        if(index != null && index.isIndexed(memAddr)) {
+            return index.isCovered(memAddr);
+        }
+        DataEntry entry = getInfoCoveringAddress(memAddr);
+        return entry != null && entry.hasEntity();
+    }
+
+    boolean isInstructionStart(long memAddr) {
+        CoverageIndex index = coverage;
+        if(index != null && index.isIndexed(memAddr)) {
+            return index.isInstructionStart(memAddr);
+        }
+        DataEntry entry = getInfoOnExactAddress(memAddr);
+        return entry != null && entry.hasInstruction();
+    }
+
     /**
      * Returns the total number of entries in the memory map
      * @return the number of entries contained in the memory map
      */
-    public synchronized int getEntryCount() {
+    public int getEntryCount() {
         return memoryMap.size();
     }
 
     /**
      * Allows a visitor to visit all entries in the memory map.
+     * Entries that are added during the visit might not be visited.
      * @param visitor a visitor that will be called with each entry
      */
-    public synchronized void visitInstructions(InstructionVisitor visitor) {
-        for(long addr : memoryMap.keySet()) {
-            DataEntry entry = memoryMap.get(addr);
-            DecodedEntity entity = entry.getEntity();
-            if(entity instanceof Instruction) {
-                visitor.onVisit((Instruction) entity);
+    public void visitInstructions(InstructionVisitor visitor) {
+        visitInstructions(memoryMap, visitor);
+    }
+
+    /**
+     * Returns the entries that start in an address range
+     * @param start the first address of the range
+     * @param end the first address after the range
+     * @return the entries starting in the range, sorted by their address
+     */
+    public List<DataEntry> getEntriesInRange(long start, long end) {
+        List<DataEntry> res = new ArrayList<>();
+        Iterator<DataEntry> it = memoryMap.iterator(start);
+        while(it.hasNext()) {
+            DataEntry entry = it.next();
+            if(entry.getAddress() >= end) {
+                break;
+            }
+            res.add(entry);
+        }
+        return res;
+    }
+
+    static void visitInstructions(AddressMap map, InstructionVisitor visitor) {
+        for(DataEntry entry : map) {
+            if(entry.hasInstruction()) {
+                Instruction inst = (Instruction) entry.getEntity();
+                if(inst != null) {
+                    visitor.onVisit(inst);
+                }
             }
         }
     }
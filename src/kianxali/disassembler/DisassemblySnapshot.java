@@ -0,0 +1,93 @@
+package kianxali.disassembler;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import kianxali.decoder.DecodedEntity;
+
+/**
+ * A read-only view of the {@link DisassemblyData} at the time the snapshot was created,
+ * see {@link DisassemblyData#createSnapshot()}. It doesn't change while the analysis continues,
+ * so it can be iterated by several threads without locking.
+ * The pages of the memory map are shared with the disassembly data until the data changes them.
+ * The entries return the references of the snapshot, copies of the functions with the names
+ * and end addresses of the time the snapshot was created and, in the compact storage mode,
+ * instructions that are decoded from the bytes of that time.
+ * @author fwi
+ *
+ */
+public class DisassemblySnapshot implements Iterable<DataEntry> {
+    private final AddressMap memoryMap;
+    private final XrefIndex xrefs;
+
+    DisassemblySnapshot(AddressMap memoryMap, XrefIndex xrefs) {
+        this.memoryMap = memoryMap;
+        this.xrefs = xrefs;
+    }
+
+    /**
+     * Retrieves the data entry for a given memory address.
+     * The address must be the exact starting address of the entry.
+     * @param memAddr the address to retrieve
+     * @return the data entry started at the given address or null
+     */
+    public DataEntry getInfoOnExactAddress(long memAddr) {
+        return memoryMap.get(memAddr);
+    }
+
+    /**
+     * Returns the entity (instruction or data) associated with a given address.
+     * It will only be returned if the exact starting address is passed.
+     * @param memAddr the address to retrieve
+     * @return the entity starting at the exact given address or null
+     */
+    public DecodedEntity getEntityOnExactAddress(long memAddr) {
+        DataEntry entry = memoryMap.get(memAddr);
+        if(entry == null) {
+            return null;
+        }
+        return entry.getEntity();
+    }
+
+    /**
+     * Returns all references to a memory address. The boolean is true iff it is a write-access.
+     * @param memAddr the referenced address
+     * @return a map from the referring entries to the access type
+     */
+    public Map<DataEntry, Boolean> getReferencesTo(long memAddr) {
+        return DisassemblyData.getReferences(memoryMap, xrefs, memAddr, false);
+    }
+
+    /**
+     * Returns all references from a memory address. The boolean is true iff it is a write-access.
+     * @param memAddr the referring address
+     * @return a map from the referenced entries to the access type
+     */
+    public Map<DataEntry, Boolean> getReferencesFrom(long memAddr) {
+        return DisassemblyData.getReferences(memoryMap, xrefs, memAddr, true);
+    }
+
+    /**
+     * Returns the total number of entries in the snapshot
+     * @return the number of entries contained in the memory map
+     */
+    public int getEntryCount() {
+        return memoryMap.size();
+    }
+
+    /**
+     * Allows a visitor to visit all instructions of the snapshot in the order of their addresses.
+     * @param visitor a visitor that will be called with each instruction
+     */
+    public void visitInstructions(InstructionVisitor visitor) {
+        DisassemblyData.visitInstructions(memoryMap, visitor);
+    }
+
+    /**
+     * Iterates all entries of the snapshot in the order of their addresses
+     */
+    @Override
+    public Iterator<DataEntry> iterator() {
+        return memoryMap.iterator();
+    }
+}
@@ -8,7 +8,9 @@ package kianxali.disassembler;
 public class Function {
     private final long startAddress;
     private long endAddress;
-    private String name;
+    // volatile because it is changed by the user while snapshots copy it
+    private volatile String name;
+    // null for the copies of a snapshot, which can't be renamed
     private final AddressNameListener nameListener;
 
     Function(long startAddr, AddressNameListener nameListener) {
@@ -18,11 +20,23 @@ public class Function {
         this.name = String.format("sub_%X", startAddr);
     }
 
+    // returns a copy with the current name and end address that won't change
+    Function freeze() {
+        Function res = new Function(startAddress, null);
+        res.endAddress = endAddress;
+        res.name = name;
+        return res;
+    }
+
     /**
      * Changes the name of the function
      * @param name the new name
+     * @throws UnsupportedOperationException if the function belongs to a snapshot
      */
     public void setName(String name) {
+        if(nameListener == null) {
+            throw new UnsupportedOperationException("functions of a snapshot can't be renamed");
+        }
         this.name = name;
         nameListener.onFunctionNameChange(this);
     }
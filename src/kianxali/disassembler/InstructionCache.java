@@ -0,0 +1,94 @@
+package kianxali.disassembler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import kianxali.decoder.Context;
+import kianxali.decoder.Decoder;
+import kianxali.decoder.Instruction;
+import kianxali.loader.ByteSequence;
+import kianxali.loader.ImageFile;
+
+/**
+ * Decodes instructions again when they are requested from compact data entries.
+ * Only the most recently used instructions are kept, so the memory usage
+ * doesn't grow with the size of the image file.
+ * @author fwi
+ *
+ */
+class InstructionCache {
+    private final ImageFile imageFile;
+    private final Context ctx;
+    private final Decoder decoder;
+    private final int maxSize;
+    private final Map<Long, Instruction> cache;
+    // a cursor of its own so that decoding doesn't interfere with other readers of the image
+    private ByteSequence seq;
+
+    /**
+     * Creates a cache for the instructions of an image file
+     * @param imageFile the image file to decode the instructions from
+     * @param maxSize the maximum number of instructions to keep
+     */
+    public InstructionCache(ImageFile imageFile, final int maxSize) {
+        this(imageFile, null, maxSize);
+    }
+
+    private InstructionCache(ImageFile imageFile, ByteSequence seq, final int maxSize) {
+        this.imageFile = imageFile;
+        this.seq = seq;
+        this.maxSize = maxSize;
+        this.ctx = imageFile.createContext();
+        this.decoder = ctx.createInstructionDecoder();
+        this.cache = new LinkedHashMap<Long, Instruction>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Instruction> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Creates an empty cache that decodes the current bytes of the image file,
+     * i.e. later patches don't change the instructions that it returns
+     * @return a cache for a snapshot of the image file
+     */
+    public InstructionCache snapshot() {
+        return new InstructionCache(imageFile, imageFile.createByteSequenceSnapshot(), maxSize);
+    }
+
+    /**
+     * Returns the instruction at the given address, decoding it if it is not cached
+     * @param memAddr the memory address of the instruction
+     * @return the decoded instruction or null if it couldn't be decoded
+     */
+    public synchronized Instruction get(long memAddr) {
+        Instruction inst = cache.get(memAddr);
+        if(inst != null) {
+            return inst;
+        }
+
+        ctx.setInstructionPointer(memAddr);
+        if(seq == null) {
+            seq = imageFile.createByteSequence(memAddr);
+        } else {
+            seq.seek(imageFile.toFileAddress(memAddr));
+        }
+        inst = decoder.decodeOpcode(ctx, seq);
+
+        if(inst != null) {
+            cache.put(memAddr, inst);
+        }
+        return inst;
+    }
+
+    /**
+     * Removes an instruction from the cache, e.g. because the address was analyzed again
+     * @param memAddr the memory address of the instruction
+     */
+    public synchronized void invalidate(long memAddr) {
+        cache.remove(memAddr);
+    }
+}
@@ -0,0 +1,219 @@
+package kianxali.disassembler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import kianxali.decoder.Context;
+import kianxali.decoder.Decoder;
+import kianxali.decoder.InstructionBuffer;
+import kianxali.loader.ByteSequence;
+import kianxali.loader.ImageFile;
+import kianxali.loader.Section;
+
+/**
+ * Decodes the executable sections linearly to find addresses that the recursive
+ * traversal might not reach, e.g. functions that are only called indirectly.
+ * The sections are split into chunks that are decoded in parallel. A chunk can
+ * start inside an instruction, but linear decoding synchronizes again after a
+ * few instructions. Because data in code sections also decodes to something,
+ * targets are only kept if they are the start of an instruction in the sweep.
+ * @author fwi
+ *
+ */
+class LinearSweep {
+    private static final Logger LOG = Logger.getLogger("kianxali.disassembler");
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_INSTRUCTION_LENGTH = 15;
+    private final ImageFile imageFile;
+    private final ExecutorService executor;
+    private final List<Future<Chunk>> chunks;
+
+    /**
+     * Describes why an address was found by the sweep. If an address is found
+     * for several reasons, the last one in this order is used.
+     */
+    enum Candidate {
+        BRANCH_TARGET,
+        PROLOGUE,
+        CALL_TARGET
+    }
+
+    private static class Chunk {
+        Section section;
+        long start, end;
+        InstructionBuffer instructions;
+        List<Long> prologues;
+    }
+
+    /**
+     * Starts decoding the executable sections in the background
+     * @param imageFile the image file to decode
+     * @param threads the number of threads to use
+     */
+    public LinearSweep(ImageFile imageFile, int threads) {
+        this.imageFile = imageFile;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.chunks = new ArrayList<>();
+
+        for(Section section : imageFile.getSections()) {
+            if(!section.isExecutable()) {
+                continue;
+            }
+            for(long start = section.getStartAddress(); start <= section.getEndAddress(); start += CHUNK_SIZE) {
+                final Chunk chunk = new Chunk();
+                chunk.section = section;
+                chunk.start = start;
+                chunk.end = Math.min(start + CHUNK_SIZE, section.getEndAddress() + 1);
+                chunks.add(executor.submit(new Callable<Chunk>() {
+                    @Override
+                    public Chunk call() {
+                        decodeChunk(chunk);
+                        return chunk;
+                    }
+                }));
+            }
+        }
+        executor.shutdown();
+    }
+
+    private void decodeChunk(Chunk chunk) {
+        Context ctx = imageFile.createContext();
+        Decoder decoder = ctx.createInstructionDecoder();
+        ByteSequence seq = imageFile.createByteSequence(chunk.start);
+        // the last instruction may run into the next chunk
+        long end = Math.min(chunk.end + MAX_INSTRUCTION_LENGTH, chunk.section.getEndAddress() + 1);
+        chunk.instructions = decoder.decodeRange(ctx, seq, chunk.start, end);
+
+        // search for push ebp; mov ebp, esp with the same encodings as the unknown function discovery
+        chunk.prologues = new ArrayList<>();
+        InstructionBuffer buf = chunk.instructions;
+        for(int i = 0; i + 1 < buf.size() && buf.getAddress(i) < chunk.end; i++) {
+            if(buf.getLength(i) != 1 || buf.getFlow(i) == InstructionBuffer.FLOW_INVALID) {
+                continue;
+            }
+            long addr = buf.getAddress(i);
+            seq.seek(imageFile.toFileAddress(addr));
+            if(seq.readUByte() != 0x55) {
+                continue;
+            }
+            int length = buf.getLength(i + 1);
+            if(length == 3) {
+                // REX.W in long mode
+                if(seq.readUByte() != 0x48) {
+                    continue;
+                }
+            } else if(length != 2) {
+                continue;
+            }
+            short opcode = seq.readUByte();
+            short modRM = seq.readUByte();
+            if((opcode == 0x8B && modRM == 0xEC) || (opcode == 0x89 && modRM == 0xE5)) {
+                chunk.prologues.add(addr);
+            }
+        }
+    }
+
+    /**
+     * Waits for the sweep to finish and returns the candidate addresses. Only targets
+     * that start an instruction in the sweep and that are not yet covered by the
+     * disassembly data are returned.
+     * @param data the data that was already analyzed
+     * @return a map from candidate addresses to the reason they were found
+     * @throws InterruptedException if interrupted while waiting for the sweep
+     */
+    public Map<Long, Candidate> getCandidates(DisassemblyData data) throws InterruptedException {
+        List<Chunk> done = new ArrayList<>(chunks.size());
+        for(Future<Chunk> future : chunks) {
+            try {
+                done.add(future.get());
+            } catch(ExecutionException e) {
+                LOG.log(Level.WARNING, "Linear sweep failed for a chunk", e.getCause());
+            }
+        }
+
+        // mark the instruction starts of each section
+        Map<Section, LongBitSet> starts = new HashMap<>();
+        for(Chunk chunk : done) {
+            LongBitSet bits = starts.get(chunk.section);
+            if(bits == null) {
+                bits = new LongBitSet();
+                starts.put(chunk.section, bits);
+            }
+            InstructionBuffer buf = chunk.instructions;
+            for(int i = 0; i < buf.size() && buf.getAddress(i) < chunk.end; i++) {
+                if(buf.getFlow(i) != InstructionBuffer.FLOW_INVALID) {
+                    bits.set(buf.getAddress(i) - chunk.section.getStartAddress());
+                }
+            }
+        }
+
+        Map<Long, Candidate> res = new TreeMap<>();
+        for(Chunk chunk : done) {
+            InstructionBuffer buf = chunk.instructions;
+            for(int i = 0; i < buf.size() && buf.getAddress(i) < chunk.end; i++) {
+                long target = buf.getBranchTarget(i);
+                if(target == InstructionBuffer.NO_TARGET || !isInstructionStart(starts, target)) {
+                    continue;
+                }
+                switch(buf.getFlow(i)) {
+                case InstructionBuffer.FLOW_CALL:
+                    addCandidate(res, target, Candidate.CALL_TARGET);
+                    break;
+                case InstructionBuffer.FLOW_BRANCH:
+                case InstructionBuffer.FLOW_JUMP:
+                    addCandidate(res, target, Candidate.BRANCH_TARGET);
+                    break;
+                default:
+                    break;
+                }
+            }
+            for(long addr : chunk.prologues) {
+                addCandidate(res, addr, Candidate.PROLOGUE);
+            }
+        }
+
+        // the recursive traversal has precedence
+        Map<Long, Candidate> uncovered = new TreeMap<>();
+        for(Map.Entry<Long, Candidate> entry : res.entrySet()) {
+            if(!data.isCoveredByEntity(entry.getKey())) {
+                uncovered.put(entry.getKey(), entry.getValue());
+            }
+        }
+        LOG.fine(String.format("Linear sweep found %d candidates, %d not covered yet", res.size(), uncovered.size()));
+        return uncovered;
+    }
+
+    private void addCandidate(Map<Long, Candidate> res, long addr, Candidate candidate) {
+        Candidate old = res.get(addr);
+        if(old == null || old.compareTo(candidate) < 0) {
+            res.put(addr, candidate);
+        }
+    }
+
+    private boolean isInstructionStart(Map<Section, LongBitSet> starts, long addr) {
+        for(Map.Entry<Section, LongBitSet> entry : starts.entrySet()) {
+            Section section = entry.getKey();
+            if(addr >= section.getStartAddress() && addr <= section.getEndAddress()) {
+                return entry.getValue().get(addr - section.getStartAddress());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops decoding chunks that haven't been started yet
+     */
+    public void cancel() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,69 @@
+package kianxali.disassembler;
+
+import java.util.Arrays;
+
+/**
+ * A bit set with long indices, so it can cover sections of more than 2 GB.
+ * The bits are stored in pages that are only allocated when a bit in them is set.
+ * @author fwi
+ *
+ */
+class LongBitSet {
+    private static final int PAGE_BITS = 16;
+    private static final int WORDS_PER_PAGE = (1 << PAGE_BITS) / 64;
+    private long[][] pages;
+
+    public LongBitSet() {
+        this.pages = new long[0][];
+    }
+
+    /**
+     * Returns the value of a bit
+     * @param index the index of the bit, must not be negative
+     * @return true iff the bit is set
+     */
+    public boolean get(long index) {
+        long pageIndex = index >>> PAGE_BITS;
+        if(pageIndex >= pages.length || pages[(int) pageIndex] == null) {
+            return false;
+        }
+        long[] page = pages[(int) pageIndex];
+        return (page[wordIndex(index)] & (1L << index)) != 0;
+    }
+
+    /**
+     * Sets a bit
+     * @param index the index of the bit, must not be negative
+     */
+    public void set(long index) {
+        long pageIndex = index >>> PAGE_BITS;
+        if(pageIndex >= Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("bit index too large: " + index);
+        }
+        if(pageIndex >= pages.length) {
+            pages = Arrays.copyOf(pages, (int) Math.max(pageIndex + 1, Math.min(pages.length * 2L, Integer.MAX_VALUE - 1)));
+        }
+        long[] page = pages[(int) pageIndex];
+        if(page == null) {
+            page = new long[WORDS_PER_PAGE];
+            pages[(int) pageIndex] = page;
+        }
+        page[wordIndex(index)] |= 1L << index;
+    }
+
+    /**
+     * Clears a bit
+     * @param index the index of the bit, must not be negative
+     */
+    public void clear(long index) {
+        long pageIndex = index >>> PAGE_BITS;
+        if(pageIndex >= pages.length || pages[(int) pageIndex] == null) {
+            return;
+        }
+        pages[(int) pageIndex][wordIndex(index)] &= ~(1L << index);
+    }
+
+    private static int wordIndex(long index) {
+        return (int) (index >>> 6) & (WORDS_PER_PAGE - 1);
+    }
+}
@@ -0,0 +1,221 @@
+package kianxali.disassembler;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import kianxali.decoder.Context;
+import kianxali.decoder.Decoder;
+import kianxali.decoder.Instruction;
+import kianxali.loader.ByteSequence;
+import kianxali.loader.ImageFile;
+import kianxali.loader.Section;
+
+/**
+ * Decodes traces ahead of the disassembler in a work-stealing pool. Each worker
+ * thread has its own decoder and context and reads the image through its own
+ * byte sequence. Workers claim instruction addresses atomically so that every
+ * address is decoded only once and follow branches by forking new traces.
+ * The decoded instructions are only stored here, the disassembler takes them
+ * while it processes its work queue in the usual order. Taken addresses are
+ * marked as consumed, so a worker that finishes an address after the disassembler
+ * decoded it itself drops its result. This way, the decoding
+ * runs in parallel but the resulting disassembly is the same as with a single thread.
+ * @author fwi
+ *
+ */
+class TraceSpeculator {
+    private static final Logger LOG = Logger.getLogger("kianxali.disassembler");
+    // limits the memory used by instructions that were decoded but not taken yet
+    private static final int MAX_PENDING = 1024 * 1024;
+    private final ImageFile imageFile;
+    private final ForkJoinPool pool;
+    private final ConcurrentMap<Long, Instruction> decoded;
+    private final Section[] sections;
+    // one bit per address: claimed by a worker and taken by the disassembler
+    private final AtomicLongArray[] claims, consumed;
+    private final AtomicBoolean limitReached;
+
+    private class Worker extends ForkJoinWorkerThread {
+        private final Context ctx;
+        private final Decoder decoder;
+
+        public Worker(ForkJoinPool pool) {
+            super(pool);
+            this.ctx = imageFile.createContext();
+            this.decoder = ctx.createInstructionDecoder();
+        }
+    }
+
+    private class TraceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long start;
+
+        public TraceTask(long start) {
+            this.start = start;
+        }
+
+        @Override
+        protected void compute() {
+            Worker worker = (Worker) Thread.currentThread();
+            try {
+                decodeTrace(worker);
+            } catch(RuntimeException e) {
+                // the disassembler will run into the same error and report it
+                LOG.finest(String.format("Speculative decode error at trace %08X: %s", start, e));
+            }
+        }
+
+        private void decodeTrace(Worker worker) {
+            ByteSequence seq = imageFile.createByteSequence(start);
+            long memAddr = start;
+            while(!pool.isShutdown()) {
+                if(decoded.size() >= MAX_PENDING) {
+                    if(limitReached.compareAndSet(false, true)) {
+                        LOG.fine("Trace speculator reached the limit of pending instructions");
+                    }
+                    break;
+                }
+                worker.ctx.setInstructionPointer(memAddr);
+                Instruction inst = worker.decoder.decodeOpcode(worker.ctx, seq);
+                if(inst == null) {
+                    break;
+                }
+                decoded.put(memAddr, inst);
+                if(isSet(consumed, memAddr)) {
+                    // the disassembler didn't wait for this instruction and decoded it itself
+                    decoded.remove(memAddr, inst);
+                }
+
+                for(long addr : inst.getBranchAddresses()) {
+                    if(setBit(claims, addr)) {
+                        new TraceTask(addr).fork();
+                    }
+                }
+
+                if(inst.stopsTrace()) {
+                    break;
+                }
+                memAddr += inst.getSize();
+                if(!setBit(claims, memAddr)) {
+                    // another trace already runs here
+                    break;
+                }
+                seq.seek(imageFile.toFileAddress(memAddr));
+            }
+        }
+    }
+
+    /**
+     * Creates a pool of workers that decode traces of the given image file
+     * @param imageFile the image file to decode
+     * @param threads the number of worker threads
+     */
+    public TraceSpeculator(ImageFile imageFile, int threads) {
+        this.imageFile = imageFile;
+        this.decoded = new ConcurrentHashMap<>();
+        this.limitReached = new AtomicBoolean();
+
+        List<Section> sectionList = imageFile.getSections();
+        this.sections = sectionList.toArray(new Section[sectionList.size()]);
+        this.claims = new AtomicLongArray[sections.length];
+        this.consumed = new AtomicLongArray[sections.length];
+        for(int i = 0; i < sections.length; i++) {
+            long size = sections[i].getEndAddress() - sections[i].getStartAddress() + 1;
+            claims[i] = new AtomicLongArray((int) ((size + 63) / 64));
+            consumed[i] = new AtomicLongArray((int) ((size + 63) / 64));
+        }
+
+        this.pool = new ForkJoinPool(threads, new ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool forkPool) {
+                return new Worker(forkPool);
+            }
+        }, null, false);
+        LOG.fine("Started trace speculator with " + threads + " threads");
+    }
+
+    // atomically sets the bit of an address, returns false if it was already set or the address is invalid
+    private boolean setBit(AtomicLongArray[] bitSets, long memAddr) {
+        for(int i = 0; i < sections.length; i++) {
+            Section section = sections[i];
+            if(memAddr < section.getStartAddress() || memAddr > section.getEndAddress()) {
+                continue;
+            }
+            long offset = memAddr - section.getStartAddress();
+            AtomicLongArray bits = bitSets[i];
+            int index = (int) (offset >>> 6);
+            long mask = 1L << (offset & 63);
+            while(true) {
+                long old = bits.get(index);
+                if((old & mask) != 0) {
+                    return false;
+                }
+                if(bits.compareAndSet(index, old, old | mask)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isSet(AtomicLongArray[] bitSets, long memAddr) {
+        for(int i = 0; i < sections.length; i++) {
+            Section section = sections[i];
+            if(memAddr >= section.getStartAddress() && memAddr <= section.getEndAddress()) {
+                long offset = memAddr - section.getStartAddress();
+                return (bitSets[i].get((int) (offset >>> 6)) & (1L << (offset & 63))) != 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts decoding a trace in the background unless the address was already claimed
+     * @param memAddr the start address of the trace
+     */
+    public void speculate(long memAddr) {
+        if(!pool.isShutdown() && setBit(claims, memAddr)) {
+            try {
+                pool.execute(new TraceTask(memAddr));
+            } catch(RejectedExecutionException e) {
+                // shut down in the meantime, the disassembler decodes the trace itself
+                LOG.finest("Trace speculator already stopped");
+            }
+        }
+    }
+
+    /**
+     * Removes and returns an instruction that was decoded in the background.
+     * The address is marked as consumed, so a worker that is still decoding it
+     * drops its result. If it wasn't claimed yet, it is claimed so that the
+     * workers won't decode it anymore.
+     * @param memAddr the address of the instruction
+     * @return the decoded instruction or null if the caller has to decode it
+     */
+    public Instruction take(long memAddr) {
+        // marked before removing so that a worker that stores its result later sees the mark
+        setBit(consumed, memAddr);
+        Instruction res = decoded.remove(memAddr);
+        if(res == null) {
+            setBit(claims, memAddr);
+        }
+        return res;
+    }
+
+    /**
+     * Stops all workers and discards the instructions that were not taken
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+        decoded.clear();
+    }
+}
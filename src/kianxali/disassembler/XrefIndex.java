@@ -0,0 +1,487 @@
+package kianxali.disassembler;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores the references between memory addresses, e.g. from a call instruction
+ * to the called function or from an instruction to the data it reads.
+ * Each reference is a record in primitive arrays that is linked into a list of
+ * the references from its source and a list of the references to its destination,
+ * so both directions can be queried and a reference can be removed in time
+ * proportional to the number of references involved.
+ * Changes must be synchronized by the caller. Queries don't lock: they read optimistically
+ * and repeat the read if the version of the index changed in the meantime.
+ * The records and the tables that map addresses to their lists are split into chunks of
+ * fixed size. A snapshot shares the chunks with the index, a chunk is only copied when the
+ * index changes it the first time after the snapshot.
+ * @author fwi
+ *
+ */
+class XrefIndex {
+    /** Receives the references returned by a query */
+    interface Visitor {
+        /**
+         * Called for each reference
+         * @param from the address of the referring entry
+         * @param to the referenced address
+         * @param isWrite true if the reference writes to the destination
+         */
+        void onReference(long from, long to, boolean isWrite);
+    }
+
+    private static final int NONE = -1;
+    // the records and the head tables are split into chunks that are copied separately
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // a chunk of records, free records are linked through nextFrom
+    private static class RecordChunk {
+        final long[] from = new long[CHUNK_SIZE], to = new long[CHUNK_SIZE];
+        final boolean[] write = new boolean[CHUNK_SIZE];
+        final int[] nextFrom = new int[CHUNK_SIZE], prevFrom = new int[CHUNK_SIZE];
+        final int[] nextTo = new int[CHUNK_SIZE], prevTo = new int[CHUNK_SIZE];
+        // the generation of the index when the chunk was created
+        final int generation;
+
+        RecordChunk(int generation) {
+            this.generation = generation;
+        }
+
+        RecordChunk copy(int newGeneration) {
+            RecordChunk res = new RecordChunk(newGeneration);
+            System.arraycopy(from, 0, res.from, 0, CHUNK_SIZE);
+            System.arraycopy(to, 0, res.to, 0, CHUNK_SIZE);
+            System.arraycopy(write, 0, res.write, 0, CHUNK_SIZE);
+            System.arraycopy(nextFrom, 0, res.nextFrom, 0, CHUNK_SIZE);
+            System.arraycopy(prevFrom, 0, res.prevFrom, 0, CHUNK_SIZE);
+            System.arraycopy(nextTo, 0, res.nextTo, 0, CHUNK_SIZE);
+            System.arraycopy(prevTo, 0, res.prevTo, 0, CHUNK_SIZE);
+            return res;
+        }
+    }
+
+    // one record per reference, the array is replaced when a chunk is added
+    private RecordChunk[] records;
+    private int used, freeList;
+    private final HeadMap fromHeads, toHeads;
+    // increased for each snapshot, chunks of older generations are shared with a snapshot
+    private int generation;
+    // odd while a change is in progress
+    private final AtomicInteger version;
+
+    /**
+     * Creates an empty index
+     */
+    public XrefIndex() {
+        this.records = new RecordChunk[0];
+        this.freeList = NONE;
+        this.fromHeads = new HeadMap();
+        this.toHeads = new HeadMap();
+        this.version = new AtomicInteger();
+    }
+
+    private XrefIndex(XrefIndex src) {
+        this.records = src.records.clone();
+        this.used = src.used;
+        this.freeList = src.freeList;
+        this.fromHeads = src.fromHeads.snapshot();
+        this.toHeads = src.toHeads.snapshot();
+        this.version = new AtomicInteger();
+    }
+
+    /**
+     * Creates an index that contains the current references and won't change anymore.
+     * It shares the chunks with this index, so only the chunk arrays are copied.
+     * A chunk is copied when this index changes it the next time.
+     * Must be synchronized with the changes.
+     * @return the snapshot of the index
+     */
+    public XrefIndex snapshot() {
+        XrefIndex res = new XrefIndex(this);
+        generation++;
+        return res;
+    }
+
+    private RecordChunk chunk(int rec) {
+        return records[rec >>> CHUNK_BITS];
+    }
+
+    // returns the chunk of a record for a change, replacing a chunk of a snapshot with a copy
+    private RecordChunk change(int rec) {
+        int index = rec >>> CHUNK_BITS;
+        RecordChunk chunk = records[index];
+        if(chunk.generation != generation) {
+            chunk = chunk.copy(generation);
+            records[index] = chunk;
+        }
+        return chunk;
+    }
+
+    /**
+     * Adds a reference. If the reference already exists, only the write flag is updated.
+     * @param fromAddr the address of the referring entry
+     * @param toAddr the referenced address
+     * @param isWrite true if the reference writes to the destination
+     * @return true if the reference was added or changed
+     */
+    public boolean add(long fromAddr, long toAddr, boolean isWrite) {
+        version.incrementAndGet();
+        try {
+            return addReference(fromAddr, toAddr, isWrite);
+        } finally {
+            version.incrementAndGet();
+        }
+    }
+
+    private boolean addReference(long fromAddr, long toAddr, boolean isWrite) {
+        for(int rec = fromHeads.get(fromAddr); rec != NONE; rec = chunk(rec).nextFrom[rec & CHUNK_MASK]) {
+            int i = rec & CHUNK_MASK;
+            if(chunk(rec).to[i] == toAddr) {
+                if(chunk(rec).write[i] == isWrite) {
+                    return false;
+                }
+                change(rec).write[i] = isWrite;
+                return true;
+            }
+        }
+
+        int rec = allocate();
+        RecordChunk chunk = change(rec);
+        int i = rec & CHUNK_MASK;
+        chunk.from[i] = fromAddr;
+        chunk.to[i] = toAddr;
+        chunk.write[i] = isWrite;
+
+        int head = fromHeads.get(fromAddr);
+        chunk.prevFrom[i] = NONE;
+        chunk.nextFrom[i] = head;
+        if(head != NONE) {
+            change(head).prevFrom[head & CHUNK_MASK] = rec;
+        }
+        fromHeads.put(fromAddr, rec);
+
+        head = toHeads.get(toAddr);
+        chunk.prevTo[i] = NONE;
+        chunk.nextTo[i] = head;
+        if(head != NONE) {
+            change(head).prevTo[head & CHUNK_MASK] = rec;
+        }
+        toHeads.put(toAddr, rec);
+        return true;
+    }
+
+    private int allocate() {
+        if(freeList != NONE) {
+            int rec = freeList;
+            freeList = chunk(rec).nextFrom[rec & CHUNK_MASK];
+            return rec;
+        }
+        if(used == records.length << CHUNK_BITS) {
+            RecordChunk[] grown = Arrays.copyOf(records, records.length + 1);
+            grown[records.length] = new RecordChunk(generation);
+            records = grown;
+        }
+        return used++;
+    }
+
+    /**
+     * Removes all references from an address
+     * @param fromAddr the address of the referring entry
+     * @param visitor receives each removed reference, can be null
+     */
+    public void removeFrom(long fromAddr, Visitor visitor) {
+        // the visitor is called after the change so that it can query the index
+        Batch removed = new Batch();
+        version.incrementAndGet();
+        try {
+            removeReferences(fromAddr, removed);
+        } finally {
+            version.incrementAndGet();
+        }
+        if(visitor != null) {
+            removed.visit(visitor);
+        }
+    }
+
+    private void removeReferences(long fromAddr, Batch removed) {
+        int rec = fromHeads.remove(fromAddr);
+        while(rec != NONE) {
+            RecordChunk chunk = change(rec);
+            int i = rec & CHUNK_MASK;
+            int next = chunk.nextFrom[i];
+            int prevTo = chunk.prevTo[i], nextTo = chunk.nextTo[i];
+
+            // unlink from the destination's list
+            if(prevTo != NONE) {
+                change(prevTo).nextTo[prevTo & CHUNK_MASK] = nextTo;
+            } else if(nextTo != NONE) {
+                toHeads.put(chunk.to[i], nextTo);
+            } else {
+                toHeads.remove(chunk.to[i]);
+            }
+            if(nextTo != NONE) {
+                change(nextTo).prevTo[nextTo & CHUNK_MASK] = prevTo;
+            }
+
+            removed.add(chunk.from[i], chunk.to[i], chunk.write[i]);
+
+            chunk.nextFrom[i] = freeList;
+            freeList = rec;
+            rec = next;
+        }
+    }
+
+    /**
+     * Checks whether there are references to an address
+     * @param toAddr the address to check
+     * @return true if at least one reference points to the address
+     */
+    public boolean hasReferencesTo(long toAddr) {
+        while(true) {
+            int stamp = version.get();
+            if((stamp & 1) == 0) {
+                boolean res = toHeads.get(toAddr) != NONE;
+                if(version.compareAndSet(stamp, stamp)) {
+                    return res;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Visits all references to an address
+     * @param toAddr the referenced address
+     * @param visitor receives each reference
+     */
+    public void visitTo(long toAddr, Visitor visitor) {
+        collect(toAddr, false).visit(visitor);
+    }
+
+    /**
+     * Visits all references from an address
+     * @param fromAddr the address of the referring entry
+     * @param visitor receives each reference
+     */
+    public void visitFrom(long fromAddr, Visitor visitor) {
+        collect(fromAddr, true).visit(visitor);
+    }
+
+    private Batch collect(long addr, boolean outgoing) {
+        while(true) {
+            int stamp = version.get();
+            if((stamp & 1) == 0) {
+                Batch res = tryCollect(addr, outgoing);
+                // the compare and set orders the reads before a following change
+                if(res != null && version.compareAndSet(stamp, stamp)) {
+                    return res;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    // the result is only valid if the version didn't change while reading, null if the read was torn
+    private Batch tryCollect(long addr, boolean outgoing) {
+        RecordChunk[] recs = records;
+        int capacity = recs.length << CHUNK_BITS;
+        Batch res = new Batch();
+        int rec = outgoing ? fromHeads.get(addr) : toHeads.get(addr);
+        while(rec != NONE) {
+            if(rec < 0 || rec >= capacity || res.count == capacity) {
+                // a record of a newer chunk or a cycle, which can only be seen during a change
+                return null;
+            }
+            RecordChunk chunk = recs[rec >>> CHUNK_BITS];
+            int i = rec & CHUNK_MASK;
+            res.add(chunk.from[i], chunk.to[i], chunk.write[i]);
+            rec = outgoing ? chunk.nextFrom[i] : chunk.nextTo[i];
+        }
+        return res;
+    }
+
+    // references that were read from the index
+    private static class Batch {
+        private long[] from = new long[4], to = new long[4];
+        private boolean[] write = new boolean[4];
+        private int count;
+
+        void add(long fromAddr, long toAddr, boolean isWrite) {
+            if(count == from.length) {
+                from = Arrays.copyOf(from, count * 2);
+                to = Arrays.copyOf(to, count * 2);
+                write = Arrays.copyOf(write, count * 2);
+            }
+            from[count] = fromAddr;
+            to[count] = toAddr;
+            write[count] = isWrite;
+            count++;
+        }
+
+        void visit(Visitor visitor) {
+            for(int i = 0; i < count; i++) {
+                visitor.onReference(from[i], to[i], write[i]);
+            }
+        }
+    }
+
+    // maps addresses to the first record of their list, open addressing with linear probing
+    private static class HeadMap {
+        private static class Chunk {
+            final long[] keys = new long[CHUNK_SIZE];
+            final int[] values = new int[CHUNK_SIZE];
+            final boolean[] usedSlots = new boolean[CHUNK_SIZE];
+            final int generation;
+
+            Chunk(int generation) {
+                this.generation = generation;
+            }
+
+            Chunk copy(int newGeneration) {
+                Chunk res = new Chunk(newGeneration);
+                System.arraycopy(keys, 0, res.keys, 0, CHUNK_SIZE);
+                System.arraycopy(values, 0, res.values, 0, CHUNK_SIZE);
+                System.arraycopy(usedSlots, 0, res.usedSlots, 0, CHUNK_SIZE);
+                return res;
+            }
+        }
+
+        // the table, its length is a power of two, replaced when the table grows
+        private Chunk[] chunks;
+        private int size;
+        // increased for each snapshot, chunks of older generations are shared with a snapshot
+        private int generation;
+
+        HeadMap() {
+            this.chunks = new Chunk[] {new Chunk(0)};
+        }
+
+        private HeadMap(HeadMap src) {
+            this.chunks = src.chunks.clone();
+            this.size = src.size;
+        }
+
+        // returns a copy that shares the chunks, only to be read
+        HeadMap snapshot() {
+            HeadMap res = new HeadMap(this);
+            generation++;
+            return res;
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & mask;
+        }
+
+        // returns the chunk of a slot for a change, replacing a chunk of a snapshot with a copy
+        private Chunk change(int slot) {
+            int index = slot >>> CHUNK_BITS;
+            Chunk chunk = chunks[index];
+            if(chunk.generation != generation) {
+                chunk = chunk.copy(generation);
+                chunks[index] = chunk;
+            }
+            return chunk;
+        }
+
+        // can be called while the map is changed, the result is only valid if there was no change
+        int get(long key) {
+            Chunk[] table = chunks;
+            int mask = (table.length << CHUNK_BITS) - 1;
+            int i = slot(key, mask);
+            // the probe sequence is limited in case the read is torn
+            for(int n = 0; n <= mask; n++) {
+                Chunk chunk = table[i >>> CHUNK_BITS];
+                int j = i & CHUNK_MASK;
+                if(!chunk.usedSlots[j]) {
+                    break;
+                } else if(chunk.keys[j] == key) {
+                    return chunk.values[j];
+                }
+                i = (i + 1) & mask;
+            }
+            return NONE;
+        }
+
+        void put(long key, int value) {
+            int mask = (chunks.length << CHUNK_BITS) - 1;
+            int i = slot(key, mask);
+            while(chunks[i >>> CHUNK_BITS].usedSlots[i & CHUNK_MASK]) {
+                if(chunks[i >>> CHUNK_BITS].keys[i & CHUNK_MASK] == key) {
+                    change(i).values[i & CHUNK_MASK] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            Chunk chunk = change(i);
+            chunk.keys[i & CHUNK_MASK] = key;
+            chunk.values[i & CHUNK_MASK] = value;
+            chunk.usedSlots[i & CHUNK_MASK] = true;
+            if(++size > mask / 2) {
+                grow();
+            }
+        }
+
+        private void grow() {
+            Chunk[] old = chunks;
+            Chunk[] table = new Chunk[old.length * 2];
+            for(int c = 0; c < table.length; c++) {
+                table[c] = new Chunk(generation);
+            }
+            int mask = (table.length << CHUNK_BITS) - 1;
+            for(Chunk chunk : old) {
+                for(int j = 0; j < CHUNK_SIZE; j++) {
+                    if(chunk.usedSlots[j]) {
+                        int i = slot(chunk.keys[j], mask);
+                        while(table[i >>> CHUNK_BITS].usedSlots[i & CHUNK_MASK]) {
+                            i = (i + 1) & mask;
+                        }
+                        Chunk dst = table[i >>> CHUNK_BITS];
+                        dst.keys[i & CHUNK_MASK] = chunk.keys[j];
+                        dst.values[i & CHUNK_MASK] = chunk.values[j];
+                        dst.usedSlots[i & CHUNK_MASK] = true;
+                    }
+                }
+            }
+            chunks = table;
+        }
+
+        private boolean isUsed(int slot) {
+            return chunks[slot >>> CHUNK_BITS].usedSlots[slot & CHUNK_MASK];
+        }
+
+        private long keyAt(int slot) {
+            return chunks[slot >>> CHUNK_BITS].keys[slot & CHUNK_MASK];
+        }
+
+        // returns the removed value or NONE
+        int remove(long key) {
+            int mask = (chunks.length << CHUNK_BITS) - 1;
+            int i = slot(key, mask);
+            while(isUsed(i) && keyAt(i) != key) {
+                i = (i + 1) & mask;
+            }
+            if(!isUsed(i)) {
+                return NONE;
+            }
+            int res = chunks[i >>> CHUNK_BITS].values[i & CHUNK_MASK];
+
+            // move following entries of the probe sequence into the gap
+            int gap = i;
+            for(int j = (i + 1) & mask; isUsed(j); j = (j + 1) & mask) {
+                int home = slot(keyAt(j), mask);
+                if(((j - home) & mask) >= ((j - gap) & mask)) {
+                    Chunk dst = change(gap);
+                    dst.keys[gap & CHUNK_MASK] = keyAt(j);
+                    dst.values[gap & CHUNK_MASK] = chunks[j >>> CHUNK_BITS].values[j & CHUNK_MASK];
+                    gap = j;
+                }
+            }
+            change(gap).usedSlots[gap & CHUNK_MASK] = false;
+            size--;
+            return res;
+        }
+    }
+}
@@ -3,7 +3,10 @@ package kianxali.gui;
 import java.io.IOException;
 import java.io.Writer;
 import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,8 +18,9 @@ import javax.swing.text.Element;
 import kianxali.decoder.Data;
 import kianxali.decoder.DecodedEntity;
 import kianxali.decoder.Instruction;
+import kianxali.disassembler.ChangedRanges;
 import kianxali.disassembler.DataEntry;
-import kianxali.disassembler.DataListener;
+import kianxali.disassembler.DataRangeListener;
 import kianxali.disassembler.Disassembler;
 import kianxali.disassembler.DisassemblyData;
 import kianxali.disassembler.DisassemblyListener;
@@ -41,8 +45,11 @@ import kianxali.util.OutputFormatter;
  * @author fwi
  *
  */
-public class Controller implements DisassemblyListener, DataListener {
+public class Controller implements DisassemblyListener, DataRangeListener {
     private static final Logger LOG = Logger.getLogger("kianxali.gui.controller");
+    // files larger than this don't keep all decoded instructions in memory
+    private static final long COMPACT_STORAGE_SIZE = 32 * 1024 * 1024;
+    private static final int INSTRUCTION_CACHE_SIZE = 64 * 1024;
 
     private ImageDocument imageDoc;
     private Disassembler disassembler;
@@ -180,12 +187,19 @@ public class Controller implements DisassemblyListener, DataListener {
             functionList = new FunctionList();
             stringList = new StringList();
 
-            disassemblyData = new DisassemblyData();
-            disassemblyData.addListener(this);
-            disassemblyData.addListener(functionList);
-            disassemblyData.addListener(stringList);
+            if(imageFile.getFileSize() > COMPACT_STORAGE_SIZE) {
+                LOG.info("Large file, using compact instruction storage");
+                disassemblyData = new DisassemblyData(INSTRUCTION_CACHE_SIZE);
+            } else {
+                disassemblyData = new DisassemblyData();
+            }
+            disassemblyData.addRangeListener(this);
+            disassemblyData.addRangeListener(functionList);
+            disassemblyData.addRangeListener(stringList);
 
-            disassembler = new Disassembler(imageFile, disassemblyData);
+            // keep one core for the analysis thread itself
+            int workers = Runtime.getRuntime().availableProcessors() - 1;
+            disassembler = new Disassembler(imageFile, disassemblyData, workers);
             disassembler.addListener(this);
             formatter.setAddressNameResolve(disassembler);
 
@@ -211,20 +225,37 @@ public class Controller implements DisassemblyListener, DataListener {
     }
 
     @Override
-    public void onAnalyzeChange(final long memAddr, final DataEntry entry) {
+    public void onRangeChange(final ChangedRanges changes) {
         if(gui.getImageView().getDocument() == imageDoc && !SwingUtilities.isEventDispatchThread()) {
             // if the document is visible already, do it in the EDT
-            // TODO: invokeAndWait deadlocks because this causes the cross references to repaint,
-            // requiring lock to disassemblydata which is held by disassembler -> data.updateEntity
             SwingUtilities.invokeLater(new Runnable() {
                 @Override
                 public void run() {
-                    changeAnalyzeRaw(memAddr, entry);
+                    changeAnalyzeRanges(changes);
                 }
             });
         } else {
             // not visible or already in EDT: edit directly
-            changeAnalyzeRaw(memAddr, entry);
+            changeAnalyzeRanges(changes);
+        }
+    }
+
+    private void changeAnalyzeRanges(ChangedRanges changes) {
+        for(int i = 0; i < changes.getCount(); i++) {
+            // the entries are looked up now so that the latest state is shown
+            List<DataEntry> entries = changes.getEntries(i);
+            Set<Long> addresses = new HashSet<>();
+            for(DataEntry entry : entries) {
+                addresses.add(entry.getAddress());
+            }
+            for(long memAddr : imageDoc.getAddressesInRange(changes.getStart(i), changes.getEnd(i))) {
+                if(!addresses.contains(memAddr)) {
+                    changeAnalyzeRaw(memAddr, null);
+                }
+            }
+            for(DataEntry entry : entries) {
+                changeAnalyzeRaw(entry.getAddress(), entry);
+            }
         }
     }
 
@@ -245,13 +276,13 @@ public class Controller implements DisassemblyListener, DataListener {
         }
 
         // update status view
-        if(entry != null && entry.getEntity() != null) {
+        if(entry != null && entry.hasEntity()) {
             StatusView sv = gui.getImageView().getStatusView();
             long offset = imageFile.toFileAddress(memAddr);
-            if(entry.getEntity() instanceof Instruction) {
-                sv.onDiscoverCode(offset, entry.getEntity().getSize());
-            } else if(entry.getEntity() instanceof Data) {
-                sv.onDiscoverData(offset, entry.getEntity().getSize());
+            if(entry.hasInstruction()) {
+                sv.onDiscoverCode(offset, entry.getEntitySize());
+            } else if(entry.hasData()) {
+                sv.onDiscoverData(offset, entry.getEntitySize());
             }
         }
     }
@@ -342,23 +373,20 @@ public class Controller implements DisassemblyListener, DataListener {
         }
         gui.getImageView().setCaretPos(index);
         Instruction inst = (Instruction) entity;
-        ByteSequence seq = imageFile.getByteSequence(addr, true);
+        ByteSequence seq = imageFile.createByteSequence(addr);
         for(int i = 0; i < inst.getSize(); i++) {
             // TODO: 0x90 is x86 only
             seq.patchByte(imageFile.toFileAddress(addr + i), (byte) 0x90);
         }
-        seq.unlock();
-        disassembler.reanalyze(inst.getMemAddress());
+        disassembler.reanalyze(inst.getMemAddress(), inst.getSize());
     }
 
     public void onPatchedSave(Path path) {
-        ByteSequence seq = imageFile.getByteSequence(imageFile.getCodeEntryPointMem(), true);
+        ByteSequence seq = imageFile.createByteSequence(imageFile.getCodeEntryPointMem());
         try {
             seq.savePatched(path);
         } catch(IOException e) {
             gui.showError("Couldn't save file", e.getMessage());
-        } finally {
-            seq.unlock();
         }
     }
 
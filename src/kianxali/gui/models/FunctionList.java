@@ -1,16 +1,21 @@
 package kianxali.gui.models;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.NavigableSet;
+import java.util.Set;
 import java.util.TreeSet;
 
 import javax.swing.AbstractListModel;
 import javax.swing.SwingUtilities;
 
+import kianxali.disassembler.ChangedRanges;
 import kianxali.disassembler.DataEntry;
-import kianxali.disassembler.DataListener;
+import kianxali.disassembler.DataRangeListener;
 import kianxali.disassembler.Function;
 
-public class FunctionList extends AbstractListModel<Function> implements DataListener {
+public class FunctionList extends AbstractListModel<Function> implements DataRangeListener {
     private static final long serialVersionUID = 1L;
     private final NavigableSet<FunctionEntry> functions;
 
@@ -51,41 +56,62 @@ public class FunctionList extends AbstractListModel<Function> implements DataLis
             if(entry.address == memAddr) {
                 return i;
             }
+            i++;
         }
         return null;
     }
 
     @Override
-    public synchronized void onAnalyzeChange(final long memAddr, final DataEntry entry) {
+    public void onRangeChange(final ChangedRanges changes) {
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
-                Integer oldIndex = getIndex(memAddr);
-                if(oldIndex != null) {
-                    // update entry
-                    if((entry == null || entry.getStartFunction() == null)) {
-                        // remove function
-                        functions.remove(new FunctionEntry(memAddr));
-                        fireIntervalRemoved(this, oldIndex, oldIndex);
-                    } else {
-                        // changing entry
-                        int index = getIndex(memAddr);
-                        functions.remove(new FunctionEntry(memAddr));
-                        functions.add(new FunctionEntry(memAddr, entry.getStartFunction()));
-                        fireContentsChanged(this, index, index);
-                    }
-                } else {
-                    // add entry
-                    if(entry == null || entry.getStartFunction() == null) {
-                        return;
-                    }
-                    functions.add(new FunctionEntry(memAddr, entry.getStartFunction()));
-                    int index = getIndex(memAddr);
-                    fireIntervalAdded(this, index, index);
+                for(int i = 0; i < changes.getCount(); i++) {
+                    updateRange(changes.getStart(i), changes.getEnd(i), changes.getEntries(i));
                 }
             }
         });
     }
 
+    private synchronized void updateRange(long start, long end, List<DataEntry> entries) {
+        Set<Long> starts = new HashSet<>();
+        for(DataEntry entry : entries) {
+            if(entry.getStartFunction() != null) {
+                starts.add(entry.getAddress());
+                updateFunction(entry.getAddress(), entry.getStartFunction());
+            }
+        }
+
+        // remove the functions of the range that don't exist anymore
+        List<FunctionEntry> old = new ArrayList<>(functions.subSet(new FunctionEntry(start), true, new FunctionEntry(end), false));
+        for(FunctionEntry entry : old) {
+            if(!starts.contains(entry.address)) {
+                updateFunction(entry.address, null);
+            }
+        }
+    }
+
+    private void updateFunction(long memAddr, Function fun) {
+        Integer oldIndex = getIndex(memAddr);
+        if(oldIndex != null) {
+            // update entry
+            if(fun == null) {
+                // remove function
+                functions.remove(new FunctionEntry(memAddr));
+                fireIntervalRemoved(this, oldIndex, oldIndex);
+            } else {
+                // changing entry
+                functions.remove(new FunctionEntry(memAddr));
+                functions.add(new FunctionEntry(memAddr, fun));
+                fireContentsChanged(this, oldIndex, oldIndex);
+            }
+        } else if(fun != null) {
+            // add entry
+            functions.add(new FunctionEntry(memAddr, fun));
+            int index = getIndex(memAddr);
+            fireIntervalAdded(this, index, index);
+        }
+    }
+
     @Override
     public synchronized int getSize() {
         return functions.size();
@@ -1,6 +1,7 @@
 package kianxali.gui.models;
 import java.awt.Color;
 import java.awt.Font;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -128,6 +129,27 @@ public class ImageDocument extends DefaultStyledDocument {
         return addr;
     }
 
+    public synchronized List<Long> getAddressesInRange(long start, long end) {
+        List<Long> res = new ArrayList<>();
+        Element root = getDefaultRootElement();
+        Element floorElem = findFloorElement(start);
+        int idx = 0;
+        if(floorElem != root) {
+            idx = root.getElementIndex(floorElem.getStartOffset());
+        }
+        for(; idx < root.getElementCount(); idx++) {
+            Long addr = (Long) root.getElement(idx).getAttributes().getAttribute(MemAddressKey);
+            if(addr == null) {
+                continue;
+            } else if(addr >= end) {
+                break;
+            } else if(addr >= start) {
+                res.add(addr);
+            }
+        }
+        return res;
+    }
+
     public synchronized void updateDataEntry(long memAddr, DataEntry data) {
         Element floorElem = findFloorElement(memAddr);
         boolean isRoot = (floorElem == getDefaultRootElement());
@@ -1,6 +1,10 @@
 package kianxali.gui.models;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.NavigableSet;
+import java.util.Set;
 import java.util.TreeSet;
 
 import javax.swing.AbstractListModel;
@@ -8,10 +12,11 @@ import javax.swing.SwingUtilities;
 
 import kianxali.decoder.Data;
 import kianxali.decoder.Data.DataType;
+import kianxali.disassembler.ChangedRanges;
 import kianxali.disassembler.DataEntry;
-import kianxali.disassembler.DataListener;
+import kianxali.disassembler.DataRangeListener;
 
-public class StringList extends AbstractListModel<Data> implements DataListener {
+public class StringList extends AbstractListModel<Data> implements DataRangeListener {
     private static final long serialVersionUID = 1L;
     private final NavigableSet<StringEntry> strings;
 
@@ -52,45 +57,66 @@ public class StringList extends AbstractListModel<Data> implements DataListener
             if(entry.address == memAddr) {
                 return i;
             }
+            i++;
         }
         return null;
     }
 
     @Override
-    public void onAnalyzeChange(final long memAddr, final DataEntry entry) {
+    public void onRangeChange(final ChangedRanges changes) {
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
-                Integer oldIndex = getIndex(memAddr);
-                Data data = null;
-                if(entry != null && entry.getEntity() instanceof Data) {
-                    data = (Data) entry.getEntity();
-                }
-                if(oldIndex != null) {
-                    // update entry
-                    if(data == null || data.getType() != DataType.STRING) {
-                        // remove entry
-                        strings.remove(new StringEntry(memAddr));
-                        fireIntervalRemoved(this, oldIndex, oldIndex);
-                    } else {
-                        // changing entry
-                        int index = getIndex(memAddr);
-                        strings.remove(new StringEntry(memAddr));
-                        strings.add(new StringEntry(memAddr, data));
-                        fireContentsChanged(this, index, index);
-                    }
-                } else {
-                    // add entry
-                    if(data == null || data.getType() != DataType.STRING) {
-                        return;
-                    }
-                    strings.add(new StringEntry(memAddr, data));
-                    int index = getIndex(memAddr);
-                    fireIntervalAdded(this, index, index);
+                for(int i = 0; i < changes.getCount(); i++) {
+                    updateRange(changes.getStart(i), changes.getEnd(i), changes.getEntries(i));
                 }
             }
         });
     }
 
+    private void updateRange(long start, long end, List<DataEntry> entries) {
+        Set<Long> starts = new HashSet<>();
+        for(DataEntry entry : entries) {
+            // checked first so that compact instructions aren't decoded
+            if(entry.hasData()) {
+                Data data = (Data) entry.getEntity();
+                if(data.getType() == DataType.STRING) {
+                    starts.add(entry.getAddress());
+                    updateString(entry.getAddress(), data);
+                }
+            }
+        }
+
+        // remove the strings of the range that don't exist anymore
+        List<StringEntry> old = new ArrayList<>(strings.subSet(new StringEntry(start), true, new StringEntry(end), false));
+        for(StringEntry entry : old) {
+            if(!starts.contains(entry.address)) {
+                updateString(entry.address, null);
+            }
+        }
+    }
+
+    private void updateString(long memAddr, Data data) {
+        Integer oldIndex = getIndex(memAddr);
+        if(oldIndex != null) {
+            // update entry
+            if(data == null) {
+                // remove entry
+                strings.remove(new StringEntry(memAddr));
+                fireIntervalRemoved(this, oldIndex, oldIndex);
+            } else {
+                // changing entry
+                strings.remove(new StringEntry(memAddr));
+                strings.add(new StringEntry(memAddr, data));
+                fireContentsChanged(this, oldIndex, oldIndex);
+            }
+        } else if(data != null) {
+            // add entry
+            strings.add(new StringEntry(memAddr, data));
+            int index = getIndex(memAddr);
+            fireIntervalAdded(this, index, index);
+        }
+    }
+
     @Override
     public int getSize() {
         return strings.size();
@@ -1,53 +1,167 @@
 package kianxali.loader;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.locks.ReentrantLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class represents a stream of bytes and allows to read the standard x86
- * data types from the stream. The file is completely loaded into an array instead
- * of using memory mapped I/O because it should be possible to store data files
- * of the disassembler that can be loaded without having the actual image file.
+ * data types from the stream. Small files are completely loaded into an array.
+ * Large files are memory mapped in chunks, so only the pages that are actually
+ * read are loaded and files larger than 2 GB can be opened. Offsets are always longs.
+ * The loaded bytes are never changed: patches are stored in an overlay of pages that
+ * are copied from the original bytes when they are patched for the first time.
+ * The cursor reads the original bytes up to the next patched page, so reading
+ * unpatched bytes costs the same as without patches.
+ * A sequence has a single cursor, so it must only be used by one thread at a time.
+ * Other threads can use a {@link ByteSequence#duplicate()} that shares the bytes but has
+ * its own cursor. Patches are visible to all cursors: every change increases a version
+ * that the cursors check before reading, so a read that starts after a patch method
+ * returned sees the patch, even if the cursor wasn't moved. A read that runs at the same
+ * time as a patch of the same bytes can see each byte before or after the patch.
+ * A {@link ByteSequence#snapshot()} keeps the bytes of the time it was created.
  * @author fwi
  *
  */
 public final class ByteSequence {
-    private final byte[] data;
-    private final ByteBuffer bytes;
-    private final ReentrantLock lock;
-
-    private ByteSequence(byte[] input, boolean doCopy) {
-        if(doCopy) {
-            this.data = new byte[input.length];
-            System.arraycopy(input, 0, data, 0, input.length);
+    // files up to this size are loaded into an array
+    private static final long MAP_THRESHOLD = 64 * 1024 * 1024;
+    // mapped files are split into chunks of this size
+    private static final int CHUNK_BITS = 24;
+    // patches are stored in pages of this size, chunks contain whole pages
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private static class Page {
+        // a copy of the original bytes with the patches applied
+        final byte[] data;
+        // the bytes of the page that were patched
+        final BitSet patched;
+
+        Page(int size) {
+            this.data = new byte[size];
+            this.patched = new BitSet(size);
+        }
+
+        private Page(byte[] data, BitSet patched) {
+            this.data = data;
+            this.patched = patched;
+        }
+
+        Page copy() {
+            return new Page(data.clone(), (BitSet) patched.clone());
+        }
+    }
+
+    // the original bytes and the patches are shared by all duplicates of a sequence
+    private final ByteBuffer[] chunks;
+    private final ConcurrentSkipListMap<Long, Page> patches;
+    // the original bytes of the pages that were overwritten in the source file by saving in place,
+    // these pages stay in the overlay until their original bytes are saved again
+    private final ConcurrentSkipListMap<Long, byte[]> savedOriginals;
+    // increased after each change of the patches, written while holding the lock of the patches
+    private final AtomicLong patchVersion;
+    private final long size;
+    // true for snapshots, whose patches are a copy that never changes
+    private final boolean readOnly;
+    // the file the bytes were loaded from or null
+    private final Path sourceFile;
+    private ByteOrder order;
+    // the cursor: a duplicate of the current segment, i.e. a patched page or the original bytes
+    // of a chunk up to the next patched page, and the offset of the segment
+    private ByteBuffer current;
+    private Object source;
+    private long segmentBase;
+    // the patch version when the segment was selected
+    private long selectedVersion;
+
+    private ByteSequence(ByteSequence shared, ConcurrentSkipListMap<Long, Page> frozenPatches, ByteBuffer[] chunks,
+            long size, Path sourceFile, ByteOrder order, long position) {
+        this.chunks = chunks;
+        if(frozenPatches != null) {
+            this.patches = frozenPatches;
         } else {
-            this.data = input;
+            this.patches = shared != null ? shared.patches : new ConcurrentSkipListMap<Long, Page>();
         }
-        this.bytes = ByteBuffer.wrap(data);
-        this.bytes.order(ByteOrder.LITTLE_ENDIAN);
-        this.lock = new ReentrantLock();
+        this.readOnly = frozenPatches != null || (shared != null && shared.readOnly);
+        this.savedOriginals = shared != null ? shared.savedOriginals : new ConcurrentSkipListMap<Long, byte[]>();
+        this.patchVersion = shared != null ? shared.patchVersion : new AtomicLong();
+        this.size = size;
+        this.sourceFile = sourceFile;
+        this.order = order;
+        select(position);
+    }
+
+    private static ByteSequence fromBuffer(ByteBuffer buffer, Path sourceFile) {
+        return new ByteSequence(null, null, new ByteBuffer[] {buffer}, buffer.capacity(), sourceFile, ByteOrder.LITTLE_ENDIAN, 0);
     }
 
     /**
-     * Construct a new byte sequence from a given path.
+     * Construct a new byte sequence from a given path. Small files are loaded into memory,
+     * larger files are memory mapped, see {@link ByteSequence#mapFile(Path)}.
      * @param path the path describing the file to be opened
      * @return the byte sequence for the file
      * @throws IOException if the file couldn't be read
      */
     public static ByteSequence fromFile(Path path) throws IOException {
-        File file = path.toFile();
-        FileInputStream fileStream = new FileInputStream(file);
-        byte[] input = new byte[(int) file.length()];
-        fileStream.read(input);
-        fileStream.close();
-        return new ByteSequence(input, false);
+        long fileSize = Files.size(path);
+        if(fileSize > MAP_THRESHOLD) {
+            return mapFile(path);
+        }
+
+        byte[] input = new byte[(int) fileSize];
+        try(InputStream fileStream = Files.newInputStream(path)) {
+            int pos = 0;
+            while(pos < input.length) {
+                int count = fileStream.read(input, pos, input.length - pos);
+                if(count < 0) {
+                    throw new IOException("file was truncated while reading");
+                }
+                pos += count;
+            }
+        }
+        return fromBuffer(ByteBuffer.wrap(input), path);
+    }
+
+    /**
+     * Construct a new byte sequence that maps a file into memory. The file is mapped
+     * read-only, so patches never change it.
+     * @param path the path describing the file to be mapped
+     * @return the byte sequence for the file
+     * @throws IOException if the file couldn't be mapped
+     */
+    public static ByteSequence mapFile(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            int count = (int) ((fileSize + (1L << CHUNK_BITS) - 1) >>> CHUNK_BITS);
+            ByteBuffer[] chunks = new ByteBuffer[Math.max(count, 1)];
+            if(count == 0) {
+                chunks[0] = ByteBuffer.allocate(0);
+            }
+            for(int i = 0; i < count; i++) {
+                long start = (long) i << CHUNK_BITS;
+                // the mapping stays valid after the channel is closed
+                chunks[i] = channel.map(MapMode.READ_ONLY, start, Math.min(1L << CHUNK_BITS, fileSize - start));
+            }
+            return new ByteSequence(null, null, chunks, fileSize, path, ByteOrder.LITTLE_ENDIAN, 0);
+        }
     }
 
     /**
@@ -57,16 +171,172 @@ public final class ByteSequence {
      * @return the byte sequence containing the array
      */
     public static ByteSequence fromBytes(byte[] bytes) {
-        return new ByteSequence(bytes, true);
+        return fromBuffer(ByteBuffer.wrap(bytes.clone()), null);
+    }
+
+    /**
+     * Creates a byte sequence that shares the bytes with this sequence but
+     * has its own cursor and byte order. Patches are visible in both sequences.
+     * Creating it is cheap since the bytes are not copied.
+     * @return a new sequence positioned at the cursor of this sequence
+     */
+    public ByteSequence duplicate() {
+        return new ByteSequence(this, null, chunks, size, sourceFile, order, getPosition());
     }
 
     /**
-     * Applies a patch to the byte sequence. This only happens in memory.
+     * Creates a read-only sequence that keeps the current bytes while this sequence
+     * is patched or saved. The patched pages are copied, the other bytes are shared.
+     * The snapshot has its own cursor and its duplicates are snapshots as well.
+     * @return a snapshot positioned at the cursor of this sequence
+     */
+    public ByteSequence snapshot() {
+        if(readOnly) {
+            return duplicate();
+        }
+        ConcurrentSkipListMap<Long, Page> copy = new ConcurrentSkipListMap<>();
+        synchronized(patches) {
+            for(Map.Entry<Long, Page> entry : patches.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue().copy());
+            }
+        }
+        return new ByteSequence(this, copy, chunks, size, sourceFile, order, getPosition());
+    }
+
+    // moves the cursor to an offset, switching to the segment that contains it
+    private void select(long offset) {
+        if(offset < 0 || offset > size) {
+            throw new IllegalArgumentException("invalid offset: " + offset);
+        }
+        // read before the patches so that a change during the selection is detected by the next read
+        selectedVersion = patchVersion.get();
+        int index = (int) Math.min(offset >>> CHUNK_BITS, chunks.length - 1);
+        long chunkBase = (long) index << CHUNK_BITS;
+        long pageIndex = offset >>> PAGE_BITS;
+        // the bytes of the page if they aren't read from the chunk
+        byte[] data = null;
+        Object src = chunks[index];
+        long start = chunkBase;
+        long end = chunkBase + chunks[index].limit();
+        if(!patches.isEmpty()) {
+            Map.Entry<Long, Page> next = patches.ceilingEntry(pageIndex);
+            if(next != null && next.getKey() == pageIndex) {
+                src = next.getValue();
+                data = next.getValue().data;
+                start = pageIndex << PAGE_BITS;
+                end = start + data.length;
+            } else {
+                // the original bytes can be read between the surrounding patched pages
+                if(next != null) {
+                    end = Math.min(end, next.getKey() << PAGE_BITS);
+                }
+                Long prev = patches.lowerKey(pageIndex);
+                if(prev != null) {
+                    start = Math.max(start, (prev + 1) << PAGE_BITS);
+                }
+            }
+        }
+        if(data == null && readOnly && !savedOriginals.isEmpty()) {
+            // the file was overwritten by saving in place after the snapshot was created, the other
+            // sequences keep these pages in their patches
+            Map.Entry<Long, byte[]> next = savedOriginals.ceilingEntry(pageIndex);
+            if(next != null && next.getKey() == pageIndex) {
+                src = next.getValue();
+                data = next.getValue();
+                start = pageIndex << PAGE_BITS;
+                end = start + data.length;
+            } else {
+                if(next != null) {
+                    end = Math.min(end, next.getKey() << PAGE_BITS);
+                }
+                Long prev = savedOriginals.lowerKey(pageIndex);
+                if(prev != null) {
+                    start = Math.max(start, (prev + 1) << PAGE_BITS);
+                }
+            }
+        }
+        if(current == null || src != source || start != segmentBase || end - start != current.limit()) {
+            if(data != null) {
+                current = ByteBuffer.wrap(data);
+            } else {
+                ByteBuffer chunk = chunks[index].duplicate();
+                chunk.limit((int) (end - chunkBase));
+                chunk.position((int) (start - chunkBase));
+                current = chunk.slice();
+            }
+            current.order(order);
+            source = src;
+            segmentBase = start;
+        }
+        current.position((int) (offset - start));
+    }
+
+    private void checkWritable() {
+        if(readOnly) {
+            throw new UnsupportedOperationException("snapshots can't be changed");
+        }
+    }
+
+    // selects the segment again if the patches were changed since it was selected
+    private void checkPatches() {
+        if(selectedVersion != patchVersion.get()) {
+            select(getPosition());
+        }
+    }
+
+    // called when the current segment is exhausted
+    private void nextSegment() {
+        long end = segmentBase + current.limit();
+        if(end >= size) {
+            throw new BufferUnderflowException();
+        }
+        select(end);
+    }
+
+    // reads an original byte, ignoring the patches
+    private byte readOriginal(long offset) {
+        if(!savedOriginals.isEmpty()) {
+            synchronized(patches) {
+                byte[] saved = savedOriginals.get(offset >>> PAGE_BITS);
+                if(saved != null) {
+                    return saved[(int) (offset & (PAGE_SIZE - 1))];
+                }
+            }
+        }
+        int index = (int) Math.min(offset >>> CHUNK_BITS, chunks.length - 1);
+        // absolute reads don't change the state of the shared buffer
+        return chunks[index].get((int) (offset - ((long) index << CHUNK_BITS)));
+    }
+
+    // returns the page of an offset, copying the original bytes if the page wasn't patched yet
+    private Page getPage(long offset) {
+        long pageIndex = offset >>> PAGE_BITS;
+        Page page = patches.get(pageIndex);
+        if(page != null) {
+            return page;
+        }
+        synchronized(patches) {
+            page = patches.get(pageIndex);
+            if(page == null) {
+                long pageBase = pageIndex << PAGE_BITS;
+                page = new Page((int) Math.min(PAGE_SIZE, size - pageBase));
+                for(int i = 0; i < page.data.length; i++) {
+                    page.data[i] = readOriginal(pageBase + i);
+                }
+                patches.put(pageIndex, page);
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Applies a patch to the byte sequence. This only happens in memory,
+     * the original bytes are kept so that the patch can be reverted.
      * @param offset the file offset to patch
      * @param b the byte to write at the given offset
      */
     public void patchByte(long offset, byte b) {
-        bytes.position((int) offset);
+        select(offset);
         patchByte(b);
     }
 
@@ -75,7 +345,20 @@ public final class ByteSequence {
      * @param b the byte to write at the current location
      */
     public void patchByte(byte b) {
-        bytes.put(b);
+        checkWritable();
+        long pos = getPosition();
+        if(pos >= size) {
+            throw new BufferOverflowException();
+        }
+        Page page = getPage(pos);
+        int index = (int) (pos & (PAGE_SIZE - 1));
+        synchronized(patches) {
+            page.data[index] = b;
+            page.patched.set(index);
+            patchVersion.incrementAndGet();
+        }
+        // continues in the patched page
+        select(pos + 1);
     }
 
     /**
@@ -83,7 +366,7 @@ public final class ByteSequence {
      * @param w the word to write at the current location
      */
     public void patchWord(short w) {
-        bytes.putShort(w);
+        patchBytes(w, 2);
     }
 
     /**
@@ -91,30 +374,26 @@ public final class ByteSequence {
      * @param d the dword to write at the current location
      */
     public void patchDWord(int d) {
-        bytes.putInt(d);
+        patchBytes(d, 4);
     }
+
     /**
      * Applies a patch to the current location.
      * @param q the qword to write at the current location
      */
     public void patchQWord(long q) {
-        bytes.putLong(q);
+        patchBytes(q, 8);
     }
 
-    /**
-     * Attempts to lock the byte sequence. Note that the lock only
-     * applies to other threads that also use lock, i.e. it's still possible
-     * to access the byte sequence without a lock.
-     */
-    public void lock() {
-        lock.lock();
-    }
-
-    /**
-     * Unlocks the byte sequence. Must always be called after lock.
-     */
-    public void unlock() {
-        lock.unlock();
+    // writes the lowest count bytes of a value in the byte order of the sequence
+    private void patchBytes(long value, int count) {
+        if(size - getPosition() < count) {
+            throw new BufferOverflowException();
+        }
+        for(int i = 0; i < count; i++) {
+            int shift = order == ByteOrder.LITTLE_ENDIAN ? i * 8 : (count - i - 1) * 8;
+            patchByte((byte) (value >>> shift));
+        }
     }
 
     /**
@@ -122,7 +401,8 @@ public final class ByteSequence {
      * @param endian the byte order to use
      */
     public void setByteOrder(ByteOrder endian) {
-        bytes.order(endian);
+        this.order = endian;
+        current.order(endian);
     }
 
     /**
@@ -130,7 +410,7 @@ public final class ByteSequence {
      * @param offset the offset to position the cursor to
      */
     public void seek(long offset) {
-        bytes.position((int) offset);
+        select(offset);
     }
 
     /**
@@ -138,15 +418,28 @@ public final class ByteSequence {
      * @param amount the number of bytes to skip the cursor
      */
     public void skip(long amount) {
-        bytes.position((int) (bytes.position() + amount));
+        long pos = current.position() + amount;
+        if(pos >= 0 && pos <= current.limit()) {
+            current.position((int) pos);
+        } else {
+            select(segmentBase + pos);
+        }
     }
 
     /**
      * Returns the current position of the cursor
-     * @return the cursor's offset in the byte array
+     * @return the cursor's offset in the file
      */
     public long getPosition() {
-        return bytes.position();
+        return segmentBase + current.position();
+    }
+
+    /**
+     * Returns the total number of bytes in the sequence
+     * @return the size of the sequence in bytes
+     */
+    public long getSize() {
+        return size;
     }
 
     /**
@@ -154,15 +447,15 @@ public final class ByteSequence {
      * @return true iff at least one byte can be read after the cursor
      */
     public boolean hasMore() {
-        return bytes.hasRemaining();
+        return current.hasRemaining() || segmentBase + current.limit() < size;
     }
 
     /**
      * Returns the number of bytes that can be read after the cursor
-     * @return the number of bytes that can be read after the cursor
+     * @return the number of bytes that can be read after the cursor, at most Integer.MAX_VALUE
      */
     public int getRemaining() {
-        return bytes.remaining();
+        return (int) Math.min(size - getPosition(), Integer.MAX_VALUE);
     }
 
     /**
@@ -170,7 +463,11 @@ public final class ByteSequence {
      * @return the byte read
      */
     public short readUByte() {
-        return (short) (bytes.get() & 0xFF);
+        checkPatches();
+        if(!current.hasRemaining()) {
+            nextSegment();
+        }
+        return (short) (current.get() & 0xFF);
     }
 
     /**
@@ -178,7 +475,52 @@ public final class ByteSequence {
      * @return the byte read
      */
     public byte readSByte() {
-        return bytes.get();
+        checkPatches();
+        if(!current.hasRemaining()) {
+            nextSegment();
+        }
+        return current.get();
+    }
+
+    /**
+     * Copies the bytes after the cursor into an array without moving the cursor
+     * @param dst the array to copy the bytes to
+     * @param offset the index in the array to copy the first byte to
+     * @param length the maximum number of bytes to copy
+     * @return the number of bytes copied, less than length only at the end of the sequence
+     */
+    public int peek(byte[] dst, int offset, int length) {
+        checkPatches();
+        int count = (int) Math.min(length, size - getPosition());
+        if(current.remaining() >= count) {
+            int pos = current.position();
+            current.get(dst, offset, count);
+            current.position(pos);
+        } else {
+            long pos = getPosition();
+            for(int i = 0; i < count; i++) {
+                dst[offset + i] = readSByte();
+            }
+            seek(pos);
+        }
+        return count;
+    }
+
+    // reads a value that crosses the end of the current segment
+    private long readBytes(int count) {
+        if(size - getPosition() < count) {
+            throw new BufferUnderflowException();
+        }
+        long res = 0;
+        for(int i = 0; i < count; i++) {
+            long b = readUByte();
+            if(order == ByteOrder.LITTLE_ENDIAN) {
+                res |= b << (i * 8);
+            } else {
+                res = (res << 8) | b;
+            }
+        }
+        return res;
     }
 
     /**
@@ -186,7 +528,7 @@ public final class ByteSequence {
      * @return the word read
      */
     public int readUWord() {
-        return bytes.getShort() & 0xFFFF;
+        return readSWord() & 0xFFFF;
     }
 
     /**
@@ -194,7 +536,11 @@ public final class ByteSequence {
      * @return the word read
      */
     public short readSWord() {
-        return bytes.getShort();
+        checkPatches();
+        if(current.remaining() >= 2) {
+            return current.getShort();
+        }
+        return (short) readBytes(2);
     }
 
     /**
@@ -202,7 +548,7 @@ public final class ByteSequence {
      * @return the dword read
      */
     public long readUDword() {
-        return bytes.getInt() & 0xFFFFFFFFL;
+        return readSDword() & 0xFFFFFFFFL;
     }
 
     /**
@@ -210,7 +556,11 @@ public final class ByteSequence {
      * @return the dword read
      */
     public int readSDword() {
-        return bytes.getInt();
+        checkPatches();
+        if(current.remaining() >= 4) {
+            return current.getInt();
+        }
+        return (int) readBytes(4);
     }
 
     /**
@@ -218,7 +568,11 @@ public final class ByteSequence {
      * @return the qword read
      */
     public long readSQword() {
-        return bytes.getLong();
+        checkPatches();
+        if(current.remaining() >= 8) {
+            return current.getLong();
+        }
+        return readBytes(8);
     }
 
     /**
@@ -226,7 +580,7 @@ public final class ByteSequence {
      * @return the float read
      */
     public float readFloat() {
-        return bytes.getFloat();
+        return Float.intBitsToFloat(readSDword());
     }
 
     /**
@@ -234,7 +588,7 @@ public final class ByteSequence {
      * @return the double read
      */
     public double readDouble() {
-        return bytes.getDouble();
+        return Double.longBitsToDouble(readSQword());
     }
 
     /**
@@ -244,7 +598,7 @@ public final class ByteSequence {
     public String readString() {
         StringBuilder res = new StringBuilder();
         do {
-            byte b = bytes.get();
+            byte b = readSByte();
             if(b != 0) {
                 res.append((char) b);
             } else {
@@ -263,7 +617,7 @@ public final class ByteSequence {
     public String readString(int maxLen) {
         StringBuilder res = new StringBuilder();
         for(int i = 0; i < maxLen; i++) {
-            byte b = bytes.get();
+            byte b = readSByte();
             if(b != 0) {
                 res.append((char) b);
             }
@@ -272,18 +626,172 @@ public final class ByteSequence {
     }
 
     /**
-     * Saves a version of the byte array that contains all the patches
-     * @param path the path to save the array to
+     * Returns all patched ranges
+     * @return a map from the offset of each range of patched bytes to the patched bytes, sorted by offset
+     */
+    public SortedMap<Long, byte[]> getPatches() {
+        SortedMap<Long, byte[]> res = new TreeMap<>();
+        synchronized(patches) {
+            long rangeStart = -1;
+            List<Byte> range = new ArrayList<>();
+            for(Map.Entry<Long, Page> entry : patches.entrySet()) {
+                long pageBase = entry.getKey() << PAGE_BITS;
+                Page page = entry.getValue();
+                for(int i = page.patched.nextSetBit(0); i >= 0; i = page.patched.nextSetBit(i + 1)) {
+                    if(rangeStart + range.size() != pageBase + i) {
+                        addRange(res, rangeStart, range);
+                        rangeStart = pageBase + i;
+                    }
+                    range.add(page.data[i]);
+                }
+            }
+            addRange(res, rangeStart, range);
+        }
+        return res;
+    }
+
+    private static void addRange(SortedMap<Long, byte[]> ranges, long start, List<Byte> range) {
+        if(range.isEmpty()) {
+            return;
+        }
+        byte[] bytes = new byte[range.size()];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = range.get(i);
+        }
+        ranges.put(start, bytes);
+        range.clear();
+    }
+
+    /**
+     * Restores the original bytes of a range. Bytes that weren't patched are not changed.
+     * @param offset the offset of the first byte to restore
+     * @param length the number of bytes to restore
+     */
+    public void revertPatch(long offset, long length) {
+        checkWritable();
+        synchronized(patches) {
+            long end = Math.min(offset + length, size);
+            for(long pos = Math.max(offset, 0); pos < end; pos++) {
+                Long pageIndex = pos >>> PAGE_BITS;
+                Page page = patches.get(pageIndex);
+                if(page == null) {
+                    // skip to the next page
+                    pos = ((pageIndex + 1) << PAGE_BITS) - 1;
+                    continue;
+                }
+                int index = (int) (pos & (PAGE_SIZE - 1));
+                if(page.patched.get(index)) {
+                    page.data[index] = readOriginal(pos);
+                    page.patched.clear(index);
+                    if(page.patched.isEmpty() && !savedOriginals.containsKey(pageIndex)) {
+                        patches.remove(pageIndex);
+                    }
+                }
+            }
+            patchVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * Saves a version of the file that contains all the patches. If the sequence was
+     * loaded from a file, the unchanged parts are copied from that file and only the
+     * patched pages are written. If the target is the loaded file itself, only the
+     * patched pages are written, and pages whose patches were reverted since an earlier
+     * save are written with their original bytes. Reverting a patch always restores
+     * the bytes that were loaded, even after saving in place.
+     * @param path the path to save the file to
      * @throws IOException if the file couldn't be written
      */
     public void savePatched(Path path) throws IOException {
-        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rws");
-        FileChannel channel = file.getChannel();
+        checkWritable();
+        boolean inPlace = sourceFile != null && Files.exists(path) && Files.isSameFile(path, sourceFile);
+
+        // the pages are copied so that patches made while saving don't mix into a page
+        TreeMap<Long, byte[]> dirty = new TreeMap<>();
+        synchronized(patches) {
+            for(Map.Entry<Long, Page> entry : patches.entrySet()) {
+                long pageBase = entry.getKey() << PAGE_BITS;
+                byte[] data = entry.getValue().data;
+                dirty.put(pageBase, data.clone());
+                if(inPlace && !savedOriginals.containsKey(entry.getKey())) {
+                    // keep the original bytes before they are overwritten, a mapped file would show the new ones
+                    byte[] original = new byte[data.length];
+                    for(int i = 0; i < original.length; i++) {
+                        original[i] = readOriginal(pageBase + i);
+                    }
+                    savedOriginals.put(entry.getKey(), original);
+                }
+            }
+            // snapshots read the saved original bytes from now on
+            patchVersion.incrementAndGet();
+        }
+
+        if(inPlace) {
+            savePatchedInPlace(path, dirty);
+            return;
+        }
+
+        // pages that were saved in place are always in the overlay, so the other
+        // parts of the source file still contain the original bytes
+        try(FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            FileChannel in = sourceFile != null ? FileChannel.open(sourceFile, StandardOpenOption.READ) : null) {
+            long pos = 0;
+            for(Map.Entry<Long, byte[]> page : dirty.entrySet()) {
+                copyOriginal(in, out, pos, page.getKey());
+                ByteBuffer buf = ByteBuffer.wrap(page.getValue());
+                while(buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                pos = page.getKey() + page.getValue().length;
+            }
+            copyOriginal(in, out, pos, size);
+            out.force(false);
+        }
+    }
+
+    private void savePatchedInPlace(Path path, TreeMap<Long, byte[]> dirty) throws IOException {
+        try(FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            for(Map.Entry<Long, byte[]> page : dirty.entrySet()) {
+                ByteBuffer buf = ByteBuffer.wrap(page.getValue());
+                long pos = page.getKey();
+                while(buf.hasRemaining()) {
+                    pos += out.write(buf, pos);
+                }
+            }
+            out.force(false);
+        }
 
-        bytes.rewind();
-        channel.write(bytes);
+        // pages that were written with their original bytes don't need the overlay anymore
+        synchronized(patches) {
+            for(Map.Entry<Long, byte[]> entry : dirty.entrySet()) {
+                long pageIndex = entry.getKey() >>> PAGE_BITS;
+                Page page = patches.get(pageIndex);
+                if(page != null && page.patched.isEmpty() && Arrays.equals(entry.getValue(), savedOriginals.get(pageIndex))) {
+                    savedOriginals.remove(pageIndex);
+                    patches.remove(pageIndex);
+                }
+            }
+            patchVersion.incrementAndGet();
+        }
+    }
 
-        channel.close();
-        file.close();
+    // appends the original bytes of a range to the output, copying them from the source file if possible
+    private void copyOriginal(FileChannel in, FileChannel out, long start, long end) throws IOException {
+        while(start < end) {
+            if(in != null) {
+                long count = in.transferTo(start, end - start, out);
+                if(count <= 0) {
+                    throw new IOException("source file was changed");
+                }
+                start += count;
+            } else {
+                int index = (int) Math.min(start >>> CHUNK_BITS, chunks.length - 1);
+                long chunkBase = (long) index << CHUNK_BITS;
+                ByteBuffer buf = chunks[index].duplicate();
+                buf.position((int) (start - chunkBase));
+                buf.limit((int) Math.min(buf.limit(), end - chunkBase));
+                start += out.write(buf);
+            }
+        }
     }
 }
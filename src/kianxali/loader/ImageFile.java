@@ -6,6 +6,8 @@ import java.util.List;
 import java.util.Map;
 
 import kianxali.decoder.Context;
+import kianxali.decoder.Decoder;
+import kianxali.decoder.InstructionBuffer;
 
 /**
  * An image file represents the main data structure that describes the
@@ -17,10 +19,11 @@ public abstract class ImageFile {
     protected final ByteSequence imageFile;
     protected final long fileSize;
     protected final String fileName;
+    private IntervalIndex<Section> sectionIndex;
 
     protected ImageFile(Path path) throws IOException {
         this.imageFile = ByteSequence.fromFile(path);
-        this.fileSize = imageFile.getRemaining();
+        this.fileSize = imageFile.getSize();
         this.fileName = path.getFileName().toString();
     }
 
@@ -79,22 +82,54 @@ public abstract class ImageFile {
     }
 
     /**
-     * Returns a byte sequence for a given virtual memory location
+     * Returns a new byte sequence for a given virtual memory location. The sequence
+     * shares the bytes with the image file but has its own cursor, so it can be used
+     * by a single thread without locking. Patches are visible in all sequences.
      * @param memAddress the memory address where the byte sequence should point at
-     * @param locked whether the sequence should be locked for exclusive access
      * @return a byte sequence pointing at the given memory address
      */
-    public ByteSequence getByteSequence(long memAddress, boolean locked) {
-        if(locked) {
-            imageFile.lock();
-        }
-        try {
-            imageFile.seek(toFileAddress(memAddress));
-        } catch(Exception e) {
-            imageFile.unlock();
-            throw e;
+    public ByteSequence createByteSequence(long memAddress) {
+        ByteSequence res = imageFile.duplicate();
+        res.seek(toFileAddress(memAddress));
+        return res;
+    }
+
+    /**
+     * Returns a read-only byte sequence that keeps the current bytes of the image file,
+     * see {@link ByteSequence#snapshot()}. Later patches are not visible in it.
+     * @return a snapshot of the bytes pointing at the start of the file
+     */
+    public ByteSequence createByteSequenceSnapshot() {
+        ByteSequence res = imageFile.snapshot();
+        res.seek(0);
+        return res;
+    }
+
+    /**
+     * Decodes all instructions of a section linearly into a primitive buffer,
+     * see {@link kianxali.decoder.Decoder#decodeRange(Context, ByteSequence, long, long)}
+     * @param section the section to decode
+     * @param ctx the context to use for decoding
+     * @return a buffer containing all instructions of the section
+     */
+    public InstructionBuffer decodeSection(Section section, Context ctx) {
+        ByteSequence seq = createByteSequence(section.getStartAddress());
+        Decoder decoder = ctx.createInstructionDecoder();
+        return decoder.decodeRange(ctx, seq, section.getStartAddress(), section.getEndAddress() + 1);
+    }
+
+    /**
+     * Builds the index that maps memory addresses to sections. Loaders should call this
+     * once after loading their sections, otherwise it is built from {@link #getSections()}
+     * on first use. If sections overlap, the first one in the list wins.
+     * @param sections the memory sections of the image file
+     */
+    protected void indexSections(List<? extends Section> sections) {
+        IntervalIndex.Builder<Section> builder = new IntervalIndex.Builder<>();
+        for(Section sec : sections) {
+            builder.add(sec.getStartAddress(), sec.getEndAddress(), sec);
         }
-        return imageFile;
+        sectionIndex = builder.build();
     }
 
     /**
@@ -103,12 +138,10 @@ public abstract class ImageFile {
      * @return the section that covers the memory address or null
      */
     public Section getSectionForMemAddress(long memAddress) {
-        for(Section sec : getSections()) {
-            if(memAddress >= sec.getStartAddress() && memAddress <= sec.getEndAddress()) {
-                return sec;
-            }
+        if(sectionIndex == null) {
+            indexSections(getSections());
         }
-        return null;
+        return sectionIndex.find(memAddress);
     }
 
     /**
@@ -0,0 +1,188 @@
+package kianxali.loader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * An immutable index that maps addresses or file offsets to the interval containing them,
+ * e.g. to find the section of a memory address. The intervals are sorted into disjoint
+ * ranges when the index is built, so a lookup is a binary search. Where intervals overlap,
+ * the one that was added first wins, just like a linear search over the added intervals
+ * would return it. The range of the last successful lookup is remembered because most
+ * lookups hit the same section as the previous one.
+ * @author fwi
+ *
+ * @param <T> the type of the values associated with the intervals
+ */
+public final class IntervalIndex<T> {
+    private final long[] starts, ends;
+    private final T[] values;
+    // index of the range that was found last, a stale value only costs a binary search
+    private int lastHit;
+
+    /**
+     * Collects the intervals for an {@link IntervalIndex}
+     * @author fwi
+     *
+     * @param <T> the type of the values associated with the intervals
+     */
+    public static class Builder<T> {
+        private final List<Interval<T>> intervals = new ArrayList<>();
+
+        /**
+         * Adds an interval to the index. Empty intervals, i.e. where last is less
+         * than first, are ignored.
+         * @param first the first address of the interval
+         * @param last the last address of the interval (inclusive)
+         * @param value the value that is returned for addresses in this interval
+         * @return this builder
+         */
+        public Builder<T> add(long first, long last, T value) {
+            if(last >= first) {
+                intervals.add(new Interval<>(intervals.size(), first, last, value));
+            }
+            return this;
+        }
+
+        /**
+         * Creates the index from the added intervals
+         * @return the immutable index
+         */
+        public IntervalIndex<T> build() {
+            return new IntervalIndex<>(intervals);
+        }
+    }
+
+    private static class Interval<T> {
+        final int order;
+        final long first, last;
+        final T value;
+
+        Interval(int order, long first, long last, T value) {
+            this.order = order;
+            this.first = first;
+            this.last = last;
+            this.value = value;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private IntervalIndex(List<Interval<T>> intervals) {
+        // all addresses where the owning interval can change
+        long[] bounds = new long[intervals.size() * 2];
+        int numBounds = 0;
+        for(Interval<T> iv : intervals) {
+            bounds[numBounds++] = iv.first;
+            if(iv.last != Long.MAX_VALUE) {
+                bounds[numBounds++] = iv.last + 1;
+            }
+        }
+        Arrays.sort(bounds, 0, numBounds);
+
+        List<Interval<T>> byFirst = new ArrayList<>(intervals);
+        Collections.sort(byFirst, new Comparator<Interval<T>>() {
+            @Override
+            public int compare(Interval<T> o1, Interval<T> o2) {
+                return Long.compare(o1.first, o2.first);
+            }
+        });
+        List<Interval<T>> byLast = new ArrayList<>(intervals);
+        Collections.sort(byLast, new Comparator<Interval<T>>() {
+            @Override
+            public int compare(Interval<T> o1, Interval<T> o2) {
+                return Long.compare(o1.last, o2.last);
+            }
+        });
+
+        // sweep over the bounds, the active interval that was added first owns the range
+        Comparator<Interval<T>> byOrder = new Comparator<Interval<T>>() {
+            @Override
+            public int compare(Interval<T> o1, Interval<T> o2) {
+                return Integer.compare(o1.order, o2.order);
+            }
+        };
+        TreeSet<Interval<T>> active = new TreeSet<>(byOrder);
+        List<Interval<T>> owners = new ArrayList<>();
+        List<long[]> ranges = new ArrayList<>();
+        int nextFirst = 0, nextLast = 0;
+        for(int i = 0; i < numBounds; i++) {
+            long bound = bounds[i];
+            if(i > 0 && bound == bounds[i - 1]) {
+                continue;
+            }
+            while(nextLast < byLast.size() && byLast.get(nextLast).last < bound) {
+                active.remove(byLast.get(nextLast++));
+            }
+            while(nextFirst < byFirst.size() && byFirst.get(nextFirst).first <= bound) {
+                active.add(byFirst.get(nextFirst++));
+            }
+            if(active.isEmpty()) {
+                continue;
+            }
+
+            Interval<T> owner = active.first();
+            long end = owner.last;
+            if(nextFirst < byFirst.size()) {
+                end = Math.min(end, byFirst.get(nextFirst).first - 1);
+            }
+            if(nextLast < byLast.size()) {
+                end = Math.min(end, byLast.get(nextLast).last);
+            }
+
+            int last = owners.size() - 1;
+            if(last >= 0 && owners.get(last) == owner && ranges.get(last)[1] == bound - 1) {
+                ranges.get(last)[1] = end;
+            } else {
+                owners.add(owner);
+                ranges.add(new long[] {bound, end});
+            }
+        }
+
+        this.starts = new long[ranges.size()];
+        this.ends = new long[ranges.size()];
+        this.values = (T[]) new Object[ranges.size()];
+        for(int i = 0; i < ranges.size(); i++) {
+            starts[i] = ranges.get(i)[0];
+            ends[i] = ranges.get(i)[1];
+            values[i] = owners.get(i).value;
+        }
+    }
+
+    /**
+     * Returns the value of the interval containing an address
+     * @param addr the address to look up
+     * @return the value of the interval containing the address or null if there is none
+     */
+    public T find(long addr) {
+        int hit = lastHit;
+        if(hit < starts.length && addr >= starts[hit] && addr <= ends[hit]) {
+            return values[hit];
+        }
+
+        int low = 0, high = starts.length - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(addr < starts[mid]) {
+                high = mid - 1;
+            } else if(addr > ends[mid]) {
+                low = mid + 1;
+            } else {
+                lastHit = mid;
+                return values[mid];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of disjoint ranges in the index
+     * @return the number of ranges
+     */
+    public int size() {
+        return starts.length;
+    }
+}
@@ -15,7 +15,9 @@ import kianxali.decoder.Context;
 import kianxali.decoder.arch.x86.X86Context;
 import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
 import kianxali.decoder.arch.x86.X86CPU.Model;
+import kianxali.loader.ByteSequence;
 import kianxali.loader.ImageFile;
+import kianxali.loader.IntervalIndex;
 import kianxali.loader.Section;
 
 /**
@@ -26,19 +28,20 @@ import kianxali.loader.Section;
 public class ELFFile extends ImageFile {
     private static final Logger LOG = Logger.getLogger("kianxali.loader.elf");
     private final ELFHeader header;
-    private final Map<Long, String> imports;
-    private final Map<Long, String> stringTable;
+    private final ELFStringTable sectionNames;
+    // section index -> parsed symbol table, filled on first use
+    private final Map<Integer, ELFSymbolTable> symbolTables;
+    private volatile Map<Long, String> imports;
     private List<Section> loadedSections;
+    private IntervalIndex<ELFSection> fileIndex;
 
     public ELFFile(Path path) throws IOException {
         super(path);
-        this.imports = new HashMap<>();
+        this.symbolTables = new HashMap<>();
 
         header = new ELFHeader(imageFile);
-        stringTable = loadStringTable(header.getStringSection());
+        sectionNames = new ELFStringTable(imageFile, header.getStringSection());
         loadSections();
-        loadSymbols();
-        loadRelocations();
     }
 
     public static boolean isELFFile(Path path) throws IOException {
@@ -50,25 +53,9 @@ public class ELFFile extends ImageFile {
         return magic == ELFHeader.ELF_MAGIC;
     }
 
-    private Map<Long, String> loadStringTable(SectionHeader stringHeader) {
-        Map<Long, String> res = new HashMap<>();
-        if(stringHeader == null) {
-            return res;
-        }
-
-        long startPos = stringHeader.getOffset();
-        long endPos = stringHeader.getOffset() + stringHeader.getSize();
-        imageFile.seek(startPos);
-        while(imageFile.getPosition() < endPos) {
-            long entryPos = imageFile.getPosition() - startPos;
-            String entry = imageFile.readString();
-            res.put(entryPos, entry);
-        }
-        return res;
-    }
-
     private void loadSections() {
-        loadedSections = new ArrayList<>(header.getSectionHeaders().size());
+        List<Section> res = new ArrayList<>(header.getSectionHeaders().size());
+        IntervalIndex.Builder<ELFSection> fileBuilder = new IntervalIndex.Builder<>();
         for(SectionHeader section : header.getSectionHeaders()) {
             if(section.getAddress() == 0) {
                 // only analyze sections that are actually loaded
@@ -76,50 +63,62 @@ public class ELFFile extends ImageFile {
             }
 
             long nameIndex = section.getNameIndex();
-            String name = stringTable.get(nameIndex);
+            String name = sectionNames.get(nameIndex);
             long start = section.getAddress();
             long end = start + section.getSize();
             long offset = section.getOffset();
             boolean executable = section.isExecutable();
 
-            loadedSections.add(new ELFSection(name, offset, start, end, executable));
+            ELFSection elfSection = new ELFSection(name, offset, start, end, executable);
+            res.add(elfSection);
+            fileBuilder.add(offset, offset + end - start, elfSection);
         }
+        loadedSections = Collections.unmodifiableList(res);
+        fileIndex = fileBuilder.build();
+        indexSections(loadedSections);
     }
 
-    private List<ELFSymbol> readSymbols(SectionHeader symSection) {
-        List<ELFSymbol> res = new ArrayList<>();
-        Map<Long, String> symStrTab = loadStringTable(header.getSectionHeaders().get((int) symSection.getLink()));
-        imageFile.seek(symSection.getOffset());
-        for(int i = 0; i < symSection.getSize() / symSection.getEntrySize(); i++) {
-            ELFSymbol sym = new ELFSymbol(imageFile, header.has64BitHeader());
-            String name = symStrTab.get(sym.getNameIndex());
-            sym.attachName(name);
-            res.add(sym);
+    // parses the symbol table of a section when it is used for the first time
+    private synchronized ELFSymbolTable getSymbolTable(int sectionIndex) {
+        ELFSymbolTable res = symbolTables.get(sectionIndex);
+        if(res == null) {
+            SectionHeader symSection = header.getSectionHeaders().get(sectionIndex);
+            ELFStringTable symStrTab = new ELFStringTable(imageFile, header.getSectionHeaders().get((int) symSection.getLink()));
+            res = new ELFSymbolTable(imageFile, symSection, symStrTab, header.has64BitHeader());
+            symbolTables.put(sectionIndex, res);
         }
         return res;
     }
 
-    private void loadSymbols() {
-        for(SectionHeader section : header.getSectionHeaders()) {
-            if(section.getType() != SectionHeader.Type.SHT_SYMTAB) {
+    private void loadSymbols(Map<Long, String> res) {
+        List<SectionHeader> sections = header.getSectionHeaders();
+        for(int i = 0; i < sections.size(); i++) {
+            if(sections.get(i).getType() != SectionHeader.Type.SHT_SYMTAB) {
                 // we only want the symbol table here
                 continue;
             }
-            for(ELFSymbol sym : readSymbols(section)) {
-                if(sym.getValue() != 0 && sym.getAttachedName() != null && sym.getType() == ELFSymbol.Type.STT_FUNC) {
-                    imports.put(sym.getValue(), sym.getAttachedName());
+            ELFSymbolTable symbols = getSymbolTable(i);
+            for(int j = 0; j < symbols.getCount(); j++) {
+                if(symbols.getValue(j) == 0 || symbols.getType(j) != ELFSymbol.Type.STT_FUNC) {
+                    continue;
+                }
+                String name = symbols.getName(j);
+                if(name != null) {
+                    res.put(symbols.getValue(j), name);
                 }
             }
         }
     }
 
-    private void loadRelocations() {
+    private void loadRelocations(Map<Long, String> res) {
+        ByteSequence seq = imageFile.duplicate();
         for(SectionHeader section : header.getSectionHeaders()) {
             if(section.getType() != SectionHeader.Type.SHT_REL && section.getType() != SectionHeader.Type.SHT_RELA) {
                 // only analyze relocation tables
                 continue;
             }
-            SectionHeader linkedSection = header.getSectionHeaders().get(((int) section.getLink()));
+            int link = (int) section.getLink();
+            SectionHeader linkedSection = header.getSectionHeaders().get(link);
             if(linkedSection.getType() != SectionHeader.Type.SHT_DYNSYM) {
                 // not sure if that can happen, hopefully not
                 LOG.warning("ELF SHT_REL/A with link not being SHT_DYNSYM");
@@ -127,25 +126,48 @@ public class ELFFile extends ImageFile {
             }
 
             // parse linked DynSym table
-            List<ELFSymbol> symbols = readSymbols(linkedSection);
+            ELFSymbolTable symbols = getSymbolTable(link);
 
-            imageFile.seek(section.getOffset());
+            seq.seek(section.getOffset());
             for(int i = 0; i < section.getSize() / section.getEntrySize(); i++) {
                 boolean addend = false;
                 if(section.getType() == SectionHeader.Type.SHT_RELA) {
                     addend = true;
                 }
-                ELFRelocation rel = new ELFRelocation(imageFile, addend, header.has64BitHeader());
+                ELFRelocation rel = new ELFRelocation(seq, addend, header.has64BitHeader());
                 if(rel.getType() != ELFRelocation.Type.JUMP_SLOT) {
                     // only analyze jump slots for now
                     continue;
                 }
-                String name = symbols.get((int) rel.getInfoIndex()).getAttachedName();
-                imports.put(rel.getAddress(), name);
+                String name = symbols.getName((int) rel.getInfoIndex());
+                res.put(rel.getAddress(), name);
             }
         }
     }
 
+    /**
+     * Returns the name of the symbol that has a given address as its value.
+     * The symbol table is searched first, then the dynamic symbol table.
+     * @param memAddress the address to look up
+     * @return the name of the symbol or null if there is no symbol for the address
+     */
+    public String getSymbolName(long memAddress) {
+        List<SectionHeader> sections = header.getSectionHeaders();
+        for(SectionHeader.Type type : new SectionHeader.Type[] {SectionHeader.Type.SHT_SYMTAB, SectionHeader.Type.SHT_DYNSYM}) {
+            for(int i = 0; i < sections.size(); i++) {
+                if(sections.get(i).getType() != type) {
+                    continue;
+                }
+                ELFSymbolTable symbols = getSymbolTable(i);
+                int index = symbols.find(memAddress);
+                if(index != -1) {
+                    return symbols.getName(index);
+                }
+            }
+        }
+        return null;
+    }
+
     @Override
     public long getCodeEntryPointMem() {
         return header.getEntryPoint();
@@ -153,7 +175,7 @@ public class ELFFile extends ImageFile {
 
     @Override
     public List<Section> getSections() {
-        return Collections.unmodifiableList(loadedSections);
+        return loadedSections;
     }
 
     @Override
@@ -174,19 +196,30 @@ public class ELFFile extends ImageFile {
 
     @Override
     public long toMemAddress(long fileOffset) {
-        for(Section sec : loadedSections) {
-            ELFSection section = (ELFSection) sec;
-            long size = section.getEndAddress() - section.getStartAddress();
-            if(fileOffset >= section.getOffset() && fileOffset <= section.getOffset() + size) {
-                long diff = fileOffset - section.getOffset();
-                return section.getStartAddress() + diff;
-            }
+        ELFSection section = fileIndex.find(fileOffset);
+        if(section == null) {
+            throw new UnsupportedOperationException("invalid file offset: " + fileOffset);
         }
-        throw new UnsupportedOperationException("invalid file offset: " + fileOffset);
+        long diff = fileOffset - section.getOffset();
+        return section.getStartAddress() + diff;
     }
 
     @Override
     public Map<Long, String> getImports() {
-        return Collections.unmodifiableMap(imports);
+        Map<Long, String> res = imports;
+        if(res == null) {
+            synchronized(this) {
+                res = imports;
+                if(res == null) {
+                    // the symbol tables are only parsed when the imports are needed
+                    Map<Long, String> map = new HashMap<>();
+                    loadSymbols(map);
+                    loadRelocations(map);
+                    res = Collections.unmodifiableMap(map);
+                    imports = res;
+                }
+            }
+        }
+        return res;
     }
 }
@@ -0,0 +1,44 @@
+package kianxali.loader.elf;
+
+import kianxali.loader.ByteSequence;
+
+/**
+ * A string table section of an ELF file. The strings are read from the image bytes
+ * when they are requested instead of splitting the whole section up front.
+ * @author fwi
+ *
+ */
+class ELFStringTable {
+    private final ByteSequence seq;
+    private final long offset, size;
+
+    /**
+     * Creates a string table for a section
+     * @param image the image of the ELF file
+     * @param header the header of the string table section, can be null for an empty table
+     */
+    public ELFStringTable(ByteSequence image, SectionHeader header) {
+        this.seq = image.duplicate();
+        if(header != null) {
+            this.offset = header.getOffset();
+            this.size = header.getSize();
+        } else {
+            this.offset = 0;
+            this.size = 0;
+        }
+    }
+
+    /**
+     * Returns the string at a given index. The index can also point into
+     * another string, the result is the tail of that string then.
+     * @param index the byte offset of the string inside the section
+     * @return the string at the index or null if the index is outside the section
+     */
+    public synchronized String get(long index) {
+        if(index < 0 || index >= size) {
+            return null;
+        }
+        seq.seek(offset + index);
+        return seq.readString();
+    }
+}
@@ -0,0 +1,114 @@
+package kianxali.loader.elf;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import kianxali.loader.ByteSequence;
+
+/**
+ * A symbol table section of an ELF file. The symbols are parsed into primitive
+ * arrays instead of one object per symbol, their names are only read from the
+ * linked string table when they are requested.
+ * @author fwi
+ *
+ */
+class ELFSymbolTable {
+    private static final ELFSymbol.Type[] TYPES = ELFSymbol.Type.values();
+    private final ELFStringTable strings;
+    private final long[] values;
+    private final int[] nameIndices;
+    private final byte[] types;
+    // symbol indices sorted by their value
+    private final int[] byAddress;
+
+    /**
+     * Parses a symbol table section
+     * @param image the image of the ELF file
+     * @param header the header of the symbol table section
+     * @param strings the string table that is linked to the section
+     * @param elf64 whether the file uses the 64 bit format
+     */
+    public ELFSymbolTable(ByteSequence image, SectionHeader header, ELFStringTable strings, boolean elf64) {
+        this.strings = strings;
+        int count = 0;
+        if(header.getEntrySize() > 0) {
+            count = (int) (header.getSize() / header.getEntrySize());
+        }
+
+        values = new long[count];
+        nameIndices = new int[count];
+        types = new byte[count];
+        ByteSequence seq = image.duplicate();
+        seq.seek(header.getOffset());
+        for(int i = 0; i < count; i++) {
+            ELFSymbol sym = new ELFSymbol(seq, elf64);
+            values[i] = sym.getValue();
+            nameIndices[i] = (int) sym.getNameIndex();
+            types[i] = (byte) sym.getType().ordinal();
+        }
+
+        Integer[] order = new Integer[count];
+        for(int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(values[o1], values[o2]);
+            }
+        });
+        byAddress = new int[count];
+        for(int i = 0; i < count; i++) {
+            byAddress[i] = order[i];
+        }
+    }
+
+    /**
+     * Returns the number of symbols in the table
+     * @return the number of symbols
+     */
+    public int getCount() {
+        return values.length;
+    }
+
+    public long getValue(int index) {
+        return values[index];
+    }
+
+    public ELFSymbol.Type getType(int index) {
+        return TYPES[types[index]];
+    }
+
+    /**
+     * Returns the name of a symbol
+     * @param index the index of the symbol in the table
+     * @return the name of the symbol or null if it has an invalid name index
+     */
+    public String getName(int index) {
+        return strings.get(nameIndices[index] & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Finds a symbol by its value, e.g. the address of a function
+     * @param value the value to search
+     * @return the index of the first symbol in the table with that value or -1
+     */
+    public int find(long value) {
+        int low = 0, high = byAddress.length - 1;
+        int res = -1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            long midValue = values[byAddress[mid]];
+            if(value < midValue) {
+                high = mid - 1;
+            } else if(value > midValue) {
+                low = mid + 1;
+            } else {
+                // the sort is stable, so the leftmost match is the first one in the table
+                res = byAddress[mid];
+                high = mid - 1;
+            }
+        }
+        return res;
+    }
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.nio.ByteOrder;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +16,7 @@ import kianxali.decoder.arch.x86.X86Context;
 import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
 import kianxali.decoder.arch.x86.X86CPU.Model;
 import kianxali.loader.ImageFile;
+import kianxali.loader.IntervalIndex;
 import kianxali.loader.Section;
 
 /**
@@ -25,6 +27,8 @@ import kianxali.loader.Section;
  */
 public class MachOFile extends ImageFile {
     private MachHeader machHeader;
+    private List<Section> sections;
+    private IntervalIndex<MachSection> fileIndex;
 
     public MachOFile(Path path, long offset) throws IOException {
         super(path);
@@ -41,20 +45,23 @@ public class MachOFile extends ImageFile {
     }
 
     private void loadHeaders(long offset) {
-        imageFile.lock();
         imageFile.setByteOrder(ByteOrder.LITTLE_ENDIAN);
         machHeader = new MachHeader(imageFile, offset);
-        imageFile.unlock();
+
+        List<Section> res = new ArrayList<Section>(machHeader.getSections().size());
+        IntervalIndex.Builder<MachSection> fileBuilder = new IntervalIndex.Builder<>();
+        for(MachSection section : machHeader.getSections()) {
+            res.add(section);
+            fileBuilder.add(section.getFileOffset(), section.getFileOffset() + section.getVirtualSize(), section);
+        }
+        sections = Collections.unmodifiableList(res);
+        fileIndex = fileBuilder.build();
+        indexSections(sections);
     }
 
     @Override
     public List<Section> getSections() {
-        List<MachSection> sections = machHeader.getSections();
-        List<Section> res = new ArrayList<Section>(sections.size());
-        for(Section sec : sections) {
-            res.add(sec);
-        }
-        return res;
+        return sections;
     }
 
     @Override
@@ -84,13 +91,12 @@ public class MachOFile extends ImageFile {
 
     @Override
     public long toMemAddress(long fileOffset) {
-        for(MachSection section : machHeader.getSections()) {
-            if(fileOffset >= section.getFileOffset() && fileOffset <= section.getFileOffset() + section.getVirtualSize()) {
-                long diff = fileOffset - section.getFileOffset();
-                return section.getStartAddress() + diff;
-            }
+        MachSection section = fileIndex.find(fileOffset);
+        if(section == null) {
+            throw new UnsupportedOperationException("invalid file offset: " + fileOffset);
         }
-        throw new UnsupportedOperationException("invalid file offset: " + fileOffset);
+        long diff = fileOffset - section.getFileOffset();
+        return section.getStartAddress() + diff;
     }
 
     @Override
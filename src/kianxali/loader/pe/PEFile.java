@@ -15,6 +15,7 @@ import kianxali.decoder.arch.x86.X86Context;
 import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
 import kianxali.decoder.arch.x86.X86CPU.Model;
 import kianxali.loader.ImageFile;
+import kianxali.loader.IntervalIndex;
 import kianxali.loader.Section;
 
 /**
@@ -28,7 +29,8 @@ public class PEFile extends ImageFile implements AddressConverter {
     private DOSStub dosStub;
     private PEHeader peHeader;
     private OptionalHeader optionalHeader;
-    private List<PESection> sections;
+    private List<Section> sections;
+    private IntervalIndex<PESection> fileIndex;
     private Imports imports;
 
     public PEFile(Path path) throws IOException {
@@ -62,24 +64,20 @@ public class PEFile extends ImageFile implements AddressConverter {
 
     @Override
     public long rvaToFile(long rva) {
-        for(PESection header : sections) {
-            long memOffset = header.getVirtualAddressRVA();
-            if(rva >= memOffset && rva <= memOffset + header.getRawSize()) {
-                return rva - memOffset + header.getFilePosition();
-            }
+        PESection header = (PESection) getSectionForMemAddress(rvaToMemory(rva));
+        if(header == null) {
+            throw new IllegalArgumentException("invalid rva: " + rva);
         }
-        throw new IllegalArgumentException("invalid rva: " + rva);
+        return rva - header.getVirtualAddressRVA() + header.getFilePosition();
     }
 
     @Override
     public long fileToRVA(long offset) {
-        for(PESection header : sections) {
-            long fileOffset = header.getFilePosition();
-            if(offset >= fileOffset && offset < fileOffset + header.getRawSize()) {
-                return offset - header.getFilePosition() + header.getVirtualAddressRVA();
-            }
+        PESection header = fileIndex.find(offset);
+        if(header == null) {
+            throw new IllegalArgumentException("invalid offset: " + offset);
         }
-        throw new IllegalArgumentException("invalid offset: " + offset);
+        return offset - header.getFilePosition() + header.getVirtualAddressRVA();
     }
 
     @Override
@@ -98,7 +96,6 @@ public class PEFile extends ImageFile implements AddressConverter {
     }
 
     private void loadHeaders() {
-        imageFile.lock();
         imageFile.setByteOrder(ByteOrder.LITTLE_ENDIAN);
         imageFile.seek(0);
         dosStub = new DOSStub(imageFile);
@@ -108,17 +105,21 @@ public class PEFile extends ImageFile implements AddressConverter {
 
         optionalHeader = new OptionalHeader(imageFile);
 
-        sections = new ArrayList<>(peHeader.getNumSections());
+        List<Section> res = new ArrayList<>(peHeader.getNumSections());
+        IntervalIndex.Builder<PESection> fileBuilder = new IntervalIndex.Builder<>();
         for(int i = 0; i < peHeader.getNumSections(); i++) {
-            sections.add(i, new PESection(imageFile, this));
+            PESection section = new PESection(imageFile, this);
+            res.add(section);
+            fileBuilder.add(section.getFilePosition(), section.getFilePosition() + section.getRawSize() - 1, section);
         }
-        imageFile.unlock();
+        sections = Collections.unmodifiableList(res);
+        fileIndex = fileBuilder.build();
+        indexSections(sections);
     }
 
     private void loadImports() {
         long importsRVA = optionalHeader.getDataDirectoryOffsetRVA(OptionalHeader.DATA_DIRECTORY_IMPORT);
         if(importsRVA != 0) {
-            imageFile.lock();
             try {
                 imageFile.seek(rvaToFile(importsRVA));
                 imports = new Imports(imageFile, this, peHeader.is64BitCode());
@@ -127,8 +128,6 @@ public class PEFile extends ImageFile implements AddressConverter {
                 e.printStackTrace();
                 // continue without imports
                 imports = new Imports();
-            } finally {
-                imageFile.unlock();
             }
         } else {
             // no imports
@@ -138,11 +137,7 @@ public class PEFile extends ImageFile implements AddressConverter {
 
     @Override
     public List<Section> getSections() {
-        List<Section> res = new ArrayList<>(sections.size());
-        for(Section section : sections) {
-            res.add(section);
-        }
-        return Collections.unmodifiableList(res);
+        return sections;
     }
 
     @Override
@@ -11,7 +11,8 @@ import org.jruby.RubyProc;
  */
 public interface ScriptAPI {
     /**
-     * Traverses all instructions in the disassembly
+     * Traverses all instructions in the disassembly as they were when the traversal started.
+     * Changes made by the analysis or by patches during the traversal are not visited.
      * @param block a ruby block that gets passed each instruction, e.g.
      * $api.traverseCode {|instruction| ...}
      * @see kianxali.decoder.Instruction
@@ -43,7 +44,8 @@ public interface ScriptAPI {
     Long readBits(Long addr, Short size);
 
     /**
-     * Applies a patch to a virtual memory address
+     * Applies a patch to a virtual memory address. The instructions and data covering
+     * the patched bytes will be analyzed again.
      * @param addr the address to patch
      * @param data the data to write at the given address
      * @param size number of bits (8, 16, 32 or 64) at destination
@@ -71,7 +71,8 @@ public class ScriptManager implements ScriptAPI {
         if(data == null) {
             return;
         }
-        data.visitInstructions(new InstructionVisitor() {
+        // the block can run for a long time, so it gets a snapshot that doesn't change during the analysis
+        data.createSnapshot().visitInstructions(new InstructionVisitor() {
             @Override
             public void onVisit(Instruction inst) {
                 IRubyObject[] args = {toRubyObject(inst)};
@@ -109,15 +110,19 @@ public class ScriptManager implements ScriptAPI {
             throw new IllegalStateException("no image loaded");
         }
 
-        ByteSequence seq = image.getByteSequence(addr, true);
+        ByteSequence seq = image.createByteSequence(addr);
         switch(size) {
         case 8:  seq.patchByte(((byte) (data & 0xFF))); break;
         case 16: seq.patchWord(((short) (data & 0xFFFF))); break;
         case 32: seq.patchDWord(((int) (data & 0xFFFFFFFF))); break;
         case 64: seq.patchQWord(data); break;
-        default: seq.unlock(); throw new UnsupportedOperationException("Invalid size: " + size);
+        default: throw new UnsupportedOperationException("Invalid size: " + size);
+        }
+
+        Disassembler dasm = controller.getDisassembler();
+        if(dasm != null) {
+            dasm.reanalyze(addr, size / 8);
         }
-        seq.unlock();
     }
 
     @Override
@@ -148,16 +153,15 @@ public class ScriptManager implements ScriptAPI {
             throw new IllegalStateException("no image loaded");
         }
 
-        ByteSequence seq = image.getByteSequence(addr, true);
+        ByteSequence seq = image.createByteSequence(addr);
         long res;
         switch(size) {
         case 8:  res = seq.readUByte(); break;
         case 16: res = seq.readUWord(); break;
         case 32: res = seq.readUDword(); break;
         case 64: res = seq.readSQword(); break;
-        default: seq.unlock(); throw new UnsupportedOperationException("Invalid size: " + size);
+        default: throw new UnsupportedOperationException("Invalid size: " + size);
         }
-        seq.unlock();
         return res;
     }
 
@@ -0,0 +1,261 @@
+package kianxali.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import kianxali.loader.ByteSequence;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ByteSequenceTest {
+    // large enough for several chunks when mapped
+    private static final int MAPPED_SIZE = (2 << 24) + 1000;
+    private Path file, copy;
+
+    @Before
+    public void createFiles() throws IOException {
+        file = Files.createTempFile("kianxali", ".bin");
+        copy = Files.createTempFile("kianxali", ".bin");
+    }
+
+    @After
+    public void deleteFiles() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(copy);
+    }
+
+    @Test
+    public void testRandomPatches() throws IOException {
+        checkRandomPatches(false, 100000);
+        checkRandomPatches(true, MAPPED_SIZE);
+    }
+
+    @Test
+    public void testRevertAfterSaveInPlace() throws IOException {
+        checkRevertAfterSaveInPlace(false);
+        checkRevertAfterSaveInPlace(true);
+    }
+
+    @Test
+    public void testPatchVisibleWithoutSeek() throws IOException {
+        checkPatchVisibleWithoutSeek(false);
+        checkPatchVisibleWithoutSeek(true);
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        checkSnapshot(false);
+        checkSnapshot(true);
+    }
+
+    // assertArrayEquals is too slow for the mapped file
+    private static void assertBytes(byte[] expected, byte[] actual) {
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    private ByteSequence open(byte[] contents, boolean mapped) throws IOException {
+        Files.write(file, contents);
+        if(mapped) {
+            return ByteSequence.mapFile(file);
+        } else {
+            return ByteSequence.fromFile(file);
+        }
+    }
+
+    // patches, reverts and reads at random offsets and compares everything with a model of the bytes
+    private void checkRandomPatches(boolean mapped, int size) throws IOException {
+        byte[] original = new byte[size];
+        new Random(1).nextBytes(original);
+        byte[] model = original.clone();
+        ByteSequence seq = open(original, mapped);
+        ByteSequence reader = seq.duplicate();
+
+        Random rnd = new Random(2);
+        for(int i = 0; i < 20000; i++) {
+            long offset = rnd.nextInt(size - 16);
+            if(mapped && rnd.nextBoolean()) {
+                // close to a chunk boundary
+                offset = ((long) (1 + rnd.nextInt(2)) << 24) - rnd.nextInt(8);
+            }
+
+            int op = rnd.nextInt(10);
+            if(op == 0) {
+                int value = rnd.nextInt();
+                seq.seek(offset);
+                seq.patchDWord(value);
+                ByteBuffer.wrap(model, (int) offset, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(value);
+            } else if(op == 1) {
+                int length = rnd.nextInt(20);
+                seq.revertPatch(offset, length);
+                System.arraycopy(original, (int) offset, model, (int) offset, Math.min(length, size - (int) offset));
+            } else {
+                reader.seek(offset);
+                byte[] peeked = new byte[16];
+                assertEquals(peeked.length, reader.peek(peeked, 0, peeked.length));
+                assertBytes(Arrays.copyOfRange(model, (int) offset, (int) offset + peeked.length), peeked);
+                assertEquals(offset, reader.getPosition());
+                long expected = ByteBuffer.wrap(model, (int) offset, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+                assertEquals(expected, reader.readSQword());
+
+                long back = offset + 8 - rnd.nextInt(5000);
+                if(back >= 0) {
+                    reader.skip(back - (offset + 8));
+                    assertEquals(back, reader.getPosition());
+                    assertEquals(model[(int) back] & 0xFF, reader.readUByte());
+                }
+            }
+        }
+
+        reader.seek(0);
+        byte[] contents = new byte[size];
+        for(int i = 0; i < size; i++) {
+            contents[i] = reader.readSByte();
+        }
+        assertBytes(model, contents);
+
+        for(Map.Entry<Long, byte[]> patch : seq.getPatches().entrySet()) {
+            byte[] bytes = patch.getValue();
+            for(int i = 0; i < bytes.length; i++) {
+                assertEquals(model[(int) (patch.getKey() + i)], bytes[i]);
+            }
+        }
+
+        seq.savePatched(copy);
+        assertBytes(model, Files.readAllBytes(copy));
+        seq.savePatched(file);
+        assertBytes(model, Files.readAllBytes(file));
+    }
+
+    private void checkRevertAfterSaveInPlace(boolean mapped) throws IOException {
+        byte[] original = new byte[3 * 4096];
+        new Random(3).nextBytes(original);
+        ByteSequence seq = open(original, mapped);
+
+        seq.seek(5000);
+        seq.patchDWord(0x11223344);
+        seq.seek(9000);
+        seq.patchByte((byte) 0x55);
+        seq.savePatched(file);
+
+        // the file now contains the patches, reverting must still restore the loaded bytes
+        seq.revertPatch(5000, 4);
+        assertEquals(1, seq.getPatches().size());
+        seq.seek(5000);
+        assertEquals(ByteBuffer.wrap(original, 5000, 4).order(ByteOrder.LITTLE_ENDIAN).getInt(), seq.readSDword());
+
+        byte[] expected = original.clone();
+        expected[9000] = 0x55;
+        seq.savePatched(copy);
+        assertBytes(expected, Files.readAllBytes(copy));
+        seq.savePatched(file);
+        assertBytes(expected, Files.readAllBytes(file));
+
+        seq.revertPatch(0, original.length);
+        assertTrue(seq.getPatches().isEmpty());
+        seq.savePatched(file);
+        assertBytes(original, Files.readAllBytes(file));
+        seq.savePatched(copy);
+        assertBytes(original, Files.readAllBytes(copy));
+
+        // all pages were restored, so patching starts from the original bytes again
+        seq.seek(9001);
+        seq.patchByte((byte) 0x66);
+        expected = original.clone();
+        expected[9001] = 0x66;
+        seq.savePatched(copy);
+        assertBytes(expected, Files.readAllBytes(copy));
+        seq.seek(8998);
+        assertEquals(original[8998], seq.readSByte());
+        assertEquals(original[8999], seq.readSByte());
+        assertEquals(original[9000], seq.readSByte());
+        assertEquals(0x66, seq.readSByte());
+    }
+
+    // a duplicate that already selected a segment must see patches made by another sequence
+    private void checkPatchVisibleWithoutSeek(boolean mapped) throws IOException {
+        byte[] original = new byte[3 * 4096];
+        new Random(3).nextBytes(original);
+        ByteSequence seq = open(original, mapped);
+        ByteSequence reader = seq.duplicate();
+
+        // the reader is in the original bytes when the page is patched for the first time
+        reader.seek(100);
+        assertEquals(original[100], reader.readSByte());
+        seq.patchByte(101, (byte) ~original[101]);
+        assertEquals((byte) ~original[101], reader.readSByte());
+
+        // the reader is in the patched page when another byte of it is patched
+        seq.patchByte(102, (byte) ~original[102]);
+        assertEquals((byte) ~original[102], reader.readSByte());
+
+        // multi-byte reads and peeks
+        seq.seek(103);
+        seq.patchDWord(0x12345678);
+        byte[] peeked = new byte[4];
+        reader.peek(peeked, 0, 4);
+        assertEquals(0x12345678, ByteBuffer.wrap(peeked).order(ByteOrder.LITTLE_ENDIAN).getInt());
+        assertEquals(0x12345678, reader.readSDword());
+
+        // reverting is visible as well
+        seq.revertPatch(0, original.length);
+        reader.seek(100);
+        reader.readSByte();
+        seq.patchByte(200, (byte) ~original[200]);
+        seq.revertPatch(101, 200);
+        byte[] read = new byte[original.length - 101];
+        for(int i = 0; i < read.length; i++) {
+            read[i] = reader.readSByte();
+        }
+        assertBytes(Arrays.copyOfRange(original, 101, original.length), read);
+    }
+
+    // a snapshot keeps its bytes while the sequence is patched, reverted and saved in place
+    private void checkSnapshot(boolean mapped) throws IOException {
+        byte[] original = new byte[3 * 4096];
+        new Random(4).nextBytes(original);
+        ByteSequence seq = open(original, mapped);
+        seq.patchByte(100, (byte) ~original[100]);
+        byte[] expected = original.clone();
+        expected[100] = (byte) ~original[100];
+
+        ByteSequence snapshot = seq.snapshot();
+        // selects a segment before the changes
+        snapshot.seek(0);
+        assertEquals(expected[0], snapshot.readSByte());
+        seq.patchByte(101, (byte) ~original[101]);
+        seq.seek(5000);
+        seq.patchDWord(0x11223344);
+        seq.savePatched(file);
+        seq.revertPatch(100, 1);
+
+        byte[] read = new byte[original.length];
+        read[0] = expected[0];
+        for(int i = 1; i < read.length; i++) {
+            read[i] = snapshot.readSByte();
+        }
+        assertBytes(expected, read);
+        ByteSequence duplicate = snapshot.duplicate();
+        duplicate.seek(0);
+        assertEquals(read.length, duplicate.peek(read, 0, read.length));
+        assertBytes(expected, read);
+
+        try {
+            duplicate.patchByte(0, (byte) 0);
+            fail("a snapshot was patched");
+        } catch(UnsupportedOperationException e) {
+            assertEquals(expected[0], duplicate.readSByte());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package kianxali.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import kianxali.disassembler.DataEntry;
+import kianxali.disassembler.Disassembler;
+import kianxali.disassembler.DisassemblyData;
+import kianxali.disassembler.DisassemblyListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DisassemblerTest {
+    private static final long BASE = 0x1000;
+    private Path file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = Files.createTempFile("kianxali", ".bin");
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testPrologueAfterData() throws Exception {
+        byte[] code = new byte[] {
+                (byte) 0xC3,                            // ret, the entry point
+                (byte) 0xB8, 0x00, 0x00, 0x00,          // data that decodes as mov eax, imm32 including the push
+                0x55,                                   // push ebp
+                (byte) 0x8B, (byte) 0xEC,               // mov ebp, esp
+                0x5D,                                   // pop ebp
+                (byte) 0xC3,                            // ret
+        };
+        DisassemblyData data = analyze(code);
+
+        assertNull(data.getInfoOnExactAddress(BASE + 1));
+        DataEntry entry = data.getInfoOnExactAddress(BASE + 5);
+        assertNotNull(entry);
+        assertTrue(entry.hasInstruction());
+        assertNotNull(entry.getStartFunction());
+        assertEquals("sub_1005_i", entry.getStartFunction().getName());
+    }
+
+    private DisassemblyData analyze(byte[] code) throws IOException, InterruptedException {
+        Files.write(file, code);
+        DisassemblyData data = new DisassemblyData();
+        Disassembler disassembler = new Disassembler(new RawImageFile(file, BASE), data);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        disassembler.addListener(new DisassemblyListener() {
+            @Override
+            public void onAnalyzeStart() {
+            }
+
+            @Override
+            public void onAnalyzeError(long memAddr, String reason) {
+            }
+
+            @Override
+            public void onAnalyzeStop() {
+                stopped.countDown();
+            }
+        });
+        disassembler.startAnalyzer();
+        assertTrue(stopped.await(30, TimeUnit.SECONDS));
+        return data;
+    }
+}
@@ -0,0 +1,418 @@
+package kianxali.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import kianxali.decoder.Context;
+import kianxali.decoder.DecodedEntity;
+import kianxali.decoder.Instruction;
+import kianxali.disassembler.AddressNameListener;
+import kianxali.disassembler.DataEntry;
+import kianxali.disassembler.DisassemblyData;
+import kianxali.disassembler.DisassemblySnapshot;
+import kianxali.disassembler.Function;
+import kianxali.loader.ImageFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+// one writer changes the memory map and the references while readers query them without locking
+public class DisassemblyDataTest {
+    // the entries at multiples of STEP are never removed, the writer changes the addresses in between
+    private static final int STEP = 16;
+    private static final int STABLE = 4000;
+    // the references are only changed between this number of sources and targets, so readers often see the changes
+    private static final int HOT = 16;
+    private static final int READERS = 3;
+    private static final int OPERATIONS = 200000;
+
+    private DisassemblyData data;
+    // the writer methods that aren't public
+    private Method clear, clearDecodedEntity, insertReference;
+    // the expected entries and references, only used by the writer
+    private TreeMap<Long, String> entries;
+    private Map<Long, Map<Long, Boolean>> references;
+    // the stable sources that refer to each target, these references must be seen by every query
+    private Map<Long, Set<Long>> stableSources;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean done;
+
+    @Before
+    public void createData() throws ReflectiveOperationException {
+        data = new DisassemblyData();
+        clear = DisassemblyData.class.getDeclaredMethod("clear", long.class);
+        clearDecodedEntity = DisassemblyData.class.getDeclaredMethod("clearDecodedEntity", long.class);
+        insertReference = DisassemblyData.class.getDeclaredMethod("insertReference", DataEntry.class, long.class, boolean.class);
+        clear.setAccessible(true);
+        clearDecodedEntity.setAccessible(true);
+        insertReference.setAccessible(true);
+        entries = new TreeMap<>();
+        references = new HashMap<>();
+        stableSources = new HashMap<>();
+    }
+
+    // the references of these sources never change
+    private static boolean isStableSource(int index) {
+        return index % 8 == 1;
+    }
+
+    // the writer adds and removes the references of these sources
+    private static boolean isChangingSource(int index) {
+        return index % 8 == 2 && index / 8 < HOT;
+    }
+
+    // the address of a stable entry that is a source or a target, depending on the kind
+    private static long hotAddress(Random rnd, int kind) {
+        return (rnd.nextInt(HOT) * 8 + kind) * STEP;
+    }
+
+    // the access type of a reference depends on both ends, so a reader that follows a wrong link notices it
+    private static boolean isWrite(long src, long dst) {
+        return ((src ^ dst) / STEP) % 3 == 0;
+    }
+
+    private static long stableTarget(int source, int n) {
+        return ((source * 7 + n * 13) % STABLE) / 8 * 8 * STEP + 3 * STEP;
+    }
+
+    @Test
+    public void testConcurrentChanges() throws Throwable {
+        for(int i = 0; i < STABLE; i++) {
+            insertComment(i * STEP, 0);
+        }
+        for(int i = 0; i < STABLE; i++) {
+            if(isStableSource(i)) {
+                for(int n = 0; n < 3; n++) {
+                    long target = stableTarget(i, n);
+                    addReference(i * STEP, target);
+                    if(!stableSources.containsKey(target)) {
+                        stableSources.put(target, new HashSet<Long>());
+                    }
+                    stableSources.get(target).add((long) i * STEP);
+                }
+            }
+        }
+
+        List<Thread> readers = new ArrayList<>();
+        for(int i = 0; i < READERS; i++) {
+            final long seed = i;
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        read(new Random(seed));
+                    } catch(Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        List<DisassemblySnapshot> snapshots = new ArrayList<>();
+        List<TreeMap<Long, String>> snapshotEntries = new ArrayList<>();
+        List<Map<Long, Map<Long, Boolean>>> snapshotReferences = new ArrayList<>();
+        try {
+            Random rnd = new Random(42);
+            for(int op = 1; op <= OPERATIONS && failure.get() == null; op++) {
+                int index = rnd.nextInt(STABLE);
+                long stable = index * STEP;
+                long between = stable + 1 + rnd.nextInt(STEP - 1);
+                int choice = rnd.nextInt(20);
+                if(choice < 9) {
+                    insertComment(between, op);
+                } else if(choice < 14) {
+                    invoke(clear, between);
+                    entries.remove(between);
+                } else if(choice < 18) {
+                    addReference(hotAddress(rnd, 2), hotAddress(rnd, 3));
+                } else {
+                    long src = hotAddress(rnd, 2);
+                    invoke(clearDecodedEntity, src);
+                    references.remove(src);
+                }
+
+                if(op % 25000 == 0) {
+                    snapshots.add(data.createSnapshot());
+                    snapshotEntries.add(new TreeMap<>(entries));
+                    snapshotReferences.add(copy(references));
+                }
+            }
+        } finally {
+            done = true;
+            for(Thread reader : readers) {
+                reader.join();
+            }
+        }
+        if(failure.get() != null) {
+            throw failure.get();
+        }
+
+        // the snapshots must not have seen the later changes, not even through their entries
+        for(int i = 0; i < snapshots.size(); i++) {
+            DisassemblySnapshot snapshot = snapshots.get(i);
+            assertEquals(snapshotEntries.get(i), toMap(snapshot));
+            assertEquals(snapshotEntries.get(i).size(), snapshot.getEntryCount());
+            Map<Long, Map<Long, Boolean>> snapshotReferencesTo = invert(snapshotReferences.get(i));
+            for(long addr : snapshotEntries.get(i).keySet()) {
+                assertEquals(expectedReferences(snapshotReferences.get(i), addr), toAddresses(snapshot.getReferencesFrom(addr)));
+                assertEquals(expectedReferences(snapshotReferencesTo, addr),
+                        toAddresses(snapshot.getInfoOnExactAddress(addr).getReferences()));
+            }
+        }
+
+        assertEquals(entries, toMap(data.getEntriesInRange(Long.MIN_VALUE, Long.MAX_VALUE)));
+        assertEquals(entries.size(), data.getEntryCount());
+        for(Map.Entry<Long, Map<Long, Boolean>> from : references.entrySet()) {
+            assertEquals(from.getValue(), toAddresses(data.getReferencesFrom(from.getKey())));
+        }
+        Map<Long, Map<Long, Boolean>> referencesTo = invert(references);
+        for(long addr : entries.keySet()) {
+            DataEntry entry = data.getInfoOnExactAddress(addr);
+            assertNotNull(entry);
+            assertEquals(entries.get(addr), entry.getComment());
+            assertEquals(expectedReferences(referencesTo, addr), toAddresses(data.getReferencesTo(addr)));
+        }
+    }
+
+    @Test
+    public void testSnapshotKeepsFunctionsAndBytes() throws Throwable {
+        Path path = Files.createTempFile("kianxali", ".bin");
+        try {
+            // mov eax, 1; ret
+            Files.write(path, new byte[] {(byte) 0xB8, 0x01, 0x00, 0x00, 0x00, (byte) 0xC3});
+            ImageFile image = new RawImageFile(path, 0x1000);
+            data = new DisassemblyData(16);
+            invoke(method("insertImageFileWithSections", ImageFile.class), image);
+            invoke(method("insertEntity", DecodedEntity.class), decode(image, 0x1000));
+            invoke(method("insertEntity", DecodedEntity.class), decode(image, 0x1005));
+            Function function = createFunction(0x1000);
+            invoke(method("insertFunction", Function.class), function);
+            invoke(method("updateFunctionEnd", Function.class, long.class), function, 0x1005L);
+            addReference(0x1000, 0x2000);
+
+            DisassemblySnapshot snapshot = data.createSnapshot();
+            function.setName("renamed");
+            invoke(method("updateFunctionEnd", Function.class, long.class), function, 0x1006L);
+            image.createByteSequence(0x1001).patchByte((byte) 0x02);
+            invoke(clearDecodedEntity, 0x1000L);
+
+            Function copy = snapshot.getInfoOnExactAddress(0x1000).getStartFunction();
+            assertEquals("sub_1000", copy.getName());
+            assertEquals(0x1005, copy.getEndAddress());
+            assertSame(copy, snapshot.getInfoOnExactAddress(0x1005).getEndFunction());
+            try {
+                copy.setName("other");
+                fail("a function of a snapshot was renamed");
+            } catch(UnsupportedOperationException e) {
+                assertEquals("sub_1000", copy.getName());
+            }
+            assertEquals("renamed", data.getInfoOnExactAddress(0x1000).getStartFunction().getName());
+
+            // the compact instruction is decoded from the bytes of the snapshot
+            Instruction inst = (Instruction) snapshot.getEntityOnExactAddress(0x1000);
+            assertEquals(1, inst.getRawBytes()[1]);
+            assertEquals(2, ((Instruction) decode(image, 0x1000)).getRawBytes()[1]);
+
+            assertEquals(1, snapshot.getInfoOnExactAddress(0x2000).getReferences().size());
+            assertTrue(data.getInfoOnExactAddress(0x2000).getReferences().isEmpty());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static Method method(String name, Class<?>... types) throws ReflectiveOperationException {
+        Method res = DisassemblyData.class.getDeclaredMethod(name, types);
+        res.setAccessible(true);
+        return res;
+    }
+
+    private static Function createFunction(long start) throws ReflectiveOperationException {
+        Constructor<Function> constructor = Function.class.getDeclaredConstructor(long.class, AddressNameListener.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(start, new AddressNameListener() {
+            @Override
+            public void onFunctionNameChange(Function fun) {
+            }
+        });
+    }
+
+    private static DecodedEntity decode(ImageFile image, long memAddr) {
+        Context ctx = image.createContext();
+        ctx.setInstructionPointer(memAddr);
+        return ctx.createInstructionDecoder().decodeOpcode(ctx, image.createByteSequence(memAddr));
+    }
+
+    private void insertComment(long addr, int version) {
+        String comment = addr + "/" + version;
+        data.insertComment(addr, comment);
+        entries.put(addr, comment);
+    }
+
+    private void addReference(long src, long dst) throws Throwable {
+        invoke(insertReference, data.getInfoOnExactAddress(src), dst, isWrite(src, dst));
+        if(!references.containsKey(src)) {
+            references.put(src, new HashMap<Long, Boolean>());
+        }
+        references.get(src).put(dst, isWrite(src, dst));
+    }
+
+    private void invoke(Method method, Object... args) throws Throwable {
+        try {
+            method.invoke(data, args);
+        } catch(InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Map<Long, Map<Long, Boolean>> copy(Map<Long, Map<Long, Boolean>> refs) {
+        Map<Long, Map<Long, Boolean>> res = new HashMap<>();
+        for(Map.Entry<Long, Map<Long, Boolean>> entry : refs.entrySet()) {
+            res.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        return res;
+    }
+
+    // turns the references from each source into the references to each target
+    private static Map<Long, Map<Long, Boolean>> invert(Map<Long, Map<Long, Boolean>> refs) {
+        Map<Long, Map<Long, Boolean>> res = new HashMap<>();
+        for(Map.Entry<Long, Map<Long, Boolean>> from : refs.entrySet()) {
+            for(Map.Entry<Long, Boolean> to : from.getValue().entrySet()) {
+                if(!res.containsKey(to.getKey())) {
+                    res.put(to.getKey(), new HashMap<Long, Boolean>());
+                }
+                res.get(to.getKey()).put(from.getKey(), to.getValue());
+            }
+        }
+        return res;
+    }
+
+    private static Map<Long, Boolean> expectedReferences(Map<Long, Map<Long, Boolean>> refs, long addr) {
+        Map<Long, Boolean> res = refs.get(addr);
+        return res != null ? res : new HashMap<Long, Boolean>();
+    }
+
+    private static Map<Long, Boolean> toAddresses(Map<DataEntry, Boolean> refs) {
+        Map<Long, Boolean> res = new HashMap<>();
+        for(Map.Entry<DataEntry, Boolean> ref : refs.entrySet()) {
+            res.put(ref.getKey().getAddress(), ref.getValue());
+        }
+        return res;
+    }
+
+    private static TreeMap<Long, String> toMap(Iterable<DataEntry> entries) {
+        TreeMap<Long, String> res = new TreeMap<>();
+        long last = Long.MIN_VALUE;
+        for(DataEntry entry : entries) {
+            assertTrue(res.isEmpty() || entry.getAddress() > last);
+            last = entry.getAddress();
+            res.put(entry.getAddress(), entry.getComment());
+        }
+        return res;
+    }
+
+    // every entry has a comment that starts with its address, so a torn read shows up as a mismatch
+    private static void checkEntry(DataEntry entry, long addr) {
+        assertEquals(addr, entry.getAddress());
+        String comment = entry.getComment();
+        assertNotNull(comment);
+        assertTrue(comment, comment.startsWith(addr + "/"));
+    }
+
+    private void read(Random rnd) {
+        while(!done) {
+            int index = rnd.nextInt(STABLE);
+            long stable = index * STEP;
+            long between = stable + 1 + rnd.nextInt(STEP - 1);
+
+            checkEntry(data.getInfoOnExactAddress(stable), stable);
+            DataEntry entry = data.getInfoOnExactAddress(between);
+            if(entry != null) {
+                checkEntry(entry, between);
+            }
+
+            // the entries have no entity, so the covering entry is the one at or below the address
+            entry = data.getInfoCoveringAddress(between);
+            assertNotNull(entry);
+            assertTrue(entry.getAddress() >= stable && entry.getAddress() <= between);
+            checkEntry(entry, entry.getAddress());
+            assertNull(data.getInfoCoveringAddress(-1));
+
+            // the stable entries must be part of every iteration
+            long end = Math.min(stable + 4 * STEP, STABLE * STEP);
+            long expected = stable;
+            long last = stable - 1;
+            for(DataEntry e : data.getEntriesInRange(stable, end)) {
+                assertTrue(e.getAddress() > last && e.getAddress() < end);
+                checkEntry(e, e.getAddress());
+                assertTrue(e.getAddress() <= expected);
+                if(e.getAddress() == expected) {
+                    expected += STEP;
+                }
+                last = e.getAddress();
+            }
+            assertEquals(end, expected);
+
+            if(rnd.nextBoolean()) {
+                // one of the sources or targets whose references change
+                index = (int) (hotAddress(rnd, 2 + rnd.nextInt(2)) / STEP);
+                stable = index * STEP;
+            }
+            Map<Long, Boolean> refs = toAddresses(data.getReferencesFrom(stable));
+            if(isStableSource(index)) {
+                assertEquals(3, refs.size());
+                for(int n = 0; n < 3; n++) {
+                    assertTrue(refs.containsKey(stableTarget(index, n)));
+                }
+            }
+            for(Map.Entry<Long, Boolean> ref : refs.entrySet()) {
+                assertEquals(isWrite(stable, ref.getKey()), ref.getValue());
+            }
+            long target = index / 8 * 8 * STEP + 3 * STEP;
+            if(target < STABLE * STEP) {
+                refs = toAddresses(data.getReferencesTo(target));
+                if(stableSources.containsKey(target)) {
+                    assertTrue(refs.keySet().containsAll(stableSources.get(target)));
+                }
+                for(Map.Entry<Long, Boolean> ref : refs.entrySet()) {
+                    long src = ref.getKey();
+                    int srcIndex = (int) (src / STEP);
+                    assertEquals(0, src % STEP);
+                    assertTrue(isStableSource(srcIndex) || isChangingSource(srcIndex));
+                    assertEquals(isWrite(src, target), ref.getValue());
+                }
+            }
+
+            if(rnd.nextInt(500) == 0) {
+                // a snapshot doesn't change while the writer continues
+                DisassemblySnapshot snapshot = data.createSnapshot();
+                TreeMap<Long, String> first = toMap(snapshot);
+                assertEquals(first.size(), snapshot.getEntryCount());
+                for(int i = 0; i < STABLE; i++) {
+                    assertEquals(i * STEP + "/0", first.get((long) i * STEP));
+                }
+                assertEquals(first, toMap(snapshot));
+            }
+        }
+    }
+}
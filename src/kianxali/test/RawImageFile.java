@@ -0,0 +1,77 @@
+package kianxali.test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import kianxali.decoder.Context;
+import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
+import kianxali.decoder.arch.x86.X86CPU.Model;
+import kianxali.decoder.arch.x86.X86Context;
+import kianxali.loader.ImageFile;
+import kianxali.loader.Section;
+
+// an image file that maps the whole file to a single executable section of 32 bit code
+class RawImageFile extends ImageFile {
+    private final long base;
+    private final List<Section> sections;
+
+    RawImageFile(Path path, final long base) throws IOException {
+        super(path);
+        this.base = base;
+        Section section = new Section() {
+            @Override
+            public String getName() {
+                return ".text";
+            }
+
+            @Override
+            public boolean isExecutable() {
+                return true;
+            }
+
+            @Override
+            public long getStartAddress() {
+                return base;
+            }
+
+            @Override
+            public long getEndAddress() {
+                return base + fileSize;
+            }
+        };
+        this.sections = Collections.singletonList(section);
+    }
+
+    @Override
+    public List<Section> getSections() {
+        return sections;
+    }
+
+    @Override
+    public Context createContext() {
+        return new X86Context(Model.ANY, ExecutionMode.PROTECTED);
+    }
+
+    @Override
+    public long getCodeEntryPointMem() {
+        return base;
+    }
+
+    @Override
+    public long toFileAddress(long memAddress) {
+        return memAddress - base;
+    }
+
+    @Override
+    public long toMemAddress(long fileOffset) {
+        return fileOffset + base;
+    }
+
+    @Override
+    public Map<Long, String> getImports() {
+        return Collections.emptyMap();
+    }
+}
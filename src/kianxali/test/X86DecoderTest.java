@@ -1,8 +1,10 @@
 package kianxali.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import kianxali.decoder.Decoder;
 import kianxali.decoder.Instruction;
+import kianxali.decoder.InstructionBuffer;
 import kianxali.decoder.arch.x86.X86Context;
 import kianxali.decoder.arch.x86.X86CPU.ExecutionMode;
 import kianxali.decoder.arch.x86.X86CPU.Model;
@@ -50,6 +52,69 @@ public class X86DecoderTest {
         testControlDebug();
     }
 
+    @Test
+    public void testReusedInstruction() {
+        byte[] code = new byte[] {
+                0x55,                                   // push ebp
+                (byte) 0x89, (byte) 0xE5,               // mov ebp, esp
+                0x64, 0x67, (byte) 0xA3, 0x00, 0x00,    // mov dword ptr fs:[0], eax
+                (byte) 0xE8, 0x10, 0x00, 0x00, 0x00,    // call
+                (byte) 0xC3                             // retn
+        };
+        Decoder decoder = ctx32.createInstructionDecoder();
+        ByteSequence fresh = ByteSequence.fromBytes(code);
+        ByteSequence reused = ByteSequence.fromBytes(code);
+        Instruction buffer = null;
+        while(fresh.hasMore()) {
+            ctx32.setInstructionPointer(fresh.getPosition());
+            Instruction expected = decoder.decodeOpcode(ctx32, fresh);
+            String expectedString = expected.asString(format);
+
+            ctx32.setInstructionPointer(reused.getPosition());
+            Instruction inst = decoder.decodeOpcode(ctx32, reused, buffer);
+            if(buffer != null) {
+                assertSame(buffer, inst);
+            }
+            buffer = inst;
+            assertEquals(expectedString, inst.asString(format));
+            assertEquals(expected.getSize(), inst.getSize());
+            assertEquals(expected.getBranchAddresses(), inst.getBranchAddresses());
+        }
+    }
+
+    @Test
+    public void testDecodeRange() {
+        byte[] code = new byte[] {
+                0x55,                                   // push ebp
+                (byte) 0x89, (byte) 0xE5,               // mov ebp, esp
+                (byte) 0xE8, 0x10, 0x00, 0x00, 0x00,    // call
+                0x74, 0x01,                             // jz
+                (byte) 0xC3,                            // retn
+                (byte) 0xE8                             // truncated call
+        };
+        Decoder decoder = ctx32.createInstructionDecoder();
+        InstructionBuffer buffer = decoder.decodeRange(ctx32, ByteSequence.fromBytes(code), 0x1000, 0x1000 + code.length);
+        assertEquals(6, buffer.size());
+
+        long[] addresses = {0x1000, 0x1001, 0x1003, 0x1008, 0x100A, 0x100B};
+        int[] lengths = {1, 2, 5, 2, 1, 1};
+        String[] mnemonics = {"push", "mov", "call", "jz", "retn", null};
+        byte[] flows = {InstructionBuffer.FLOW_NORMAL, InstructionBuffer.FLOW_NORMAL, InstructionBuffer.FLOW_CALL,
+                        InstructionBuffer.FLOW_BRANCH, InstructionBuffer.FLOW_STOP, InstructionBuffer.FLOW_INVALID};
+        long[] targets = {InstructionBuffer.NO_TARGET, InstructionBuffer.NO_TARGET, 0x1018,
+                          0x100B, InstructionBuffer.NO_TARGET, InstructionBuffer.NO_TARGET};
+        for(int i = 0; i < buffer.size(); i++) {
+            assertEquals(addresses[i], buffer.getAddress(i));
+            assertEquals(lengths[i], buffer.getLength(i));
+            String mnem = buffer.getMnemonic(i);
+            assertEquals(mnemonics[i], mnem == null ? null : mnem.toLowerCase());
+            assertEquals(flows[i], buffer.getFlow(i));
+            assertEquals(targets[i], buffer.getBranchTarget(i));
+        }
+        assertEquals(2, buffer.getOperandCount(1));
+        assertEquals(InstructionBuffer.OPERANDS_REGISTER, buffer.getOperandSummary(1) & ~InstructionBuffer.OPERANDS_COUNT_MASK);
+    }
+
     private void testVM() {
         checkOpcode32(new short[] {0x0F, 0x01, 0xC1}, "vmcall");
         checkOpcode32(new short[] {0x0F, 0x01, 0xC2}, "vmlaunch");
@@ -697,5 +762,10 @@ public class X86DecoderTest {
         Instruction inst = decoder.decodeOpcode(ct, seq);
         assertEquals(expected.toLowerCase(), inst.asString(format).toLowerCase());
         assertEquals(opcode.length, inst.getSize());
+
+        // the length-only decoder must agree with the full decoder
+        ByteSequence lengthSeq = ByteSequence.fromBytes(in);
+        assertEquals(opcode.length, decoder.decodeLength(ct, lengthSeq));
+        assertEquals(opcode.length, lengthSeq.getPosition());
     }
 }